@@ -0,0 +1,94 @@
+
+/**
+ * The hidden layer activations (outputA2 in the window's old code) of a fixed theta1 for
+ * every example of a data set, computed once so that the output layer can be retrained
+ * over and over without running the input layer again.  That layer is 96% of the
+ * multiply-adds of a forward pass, and all of them are skipped.
+ *
+ * Activations are stored as 32 bit floats without the bias unit: a 256 unit hidden layer
+ * takes 1 KB per example.  The cache lives in a float[] or, if a file is given, in that
+ * file, memory mapped, for data sets whose activations would not fit in the heap.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class ActivationCache implements Closeable {
+
+    private final int size;
+    private final int hidden;
+    private final FloatBuffer values;   // size rows of hidden values
+    private final FileChannel channel;  // null for a cache in memory
+
+    private ActivationCache(int size, int hidden, FloatBuffer values, FileChannel channel) {
+        this.size = size;
+        this.hidden = hidden;
+        this.values = values;
+        this.channel = channel;
+    }
+
+    /* Runs theta1 of the model over every example of data.  If file is null the cache is kept in
+     * memory, otherwise it is written to file and mapped.
+     */
+    public static ActivationCache compute(Model model, LabelledImages data, File file) throws IOException {
+        int hidden = model.getHiddenLayerSize();
+        long floats = (long) data.size() * hidden;
+        FloatBuffer values;
+        FileChannel channel = null;
+        if (file == null) {
+            if (floats > Integer.MAX_VALUE) {
+                throw new IOException("Too many activations to keep in memory; give a cache file");
+            }
+            values = FloatBuffer.allocate((int) floats);
+        } else {
+            if (4 * floats > Integer.MAX_VALUE) {
+                throw new IOException("Activation cache too large to map: " + 4 * floats + " bytes");
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            values = channel.map(FileChannel.MapMode.READ_WRITE, 0, 4 * floats).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        }
+
+        double[] input = new double[model.getInputDimension()];
+        double[] z2 = new double[hidden];
+        LinearAlgebra kernels = NeuralNetwork.getBackend();
+        for (int i = 0; i < data.size(); i++) {
+            NeuralNetwork.toInput(data.getImage(i), input);
+            kernels.multiplyWithBias(model.getTheta1(), input, z2);
+            int offset = i * hidden;
+            for (int j = 0; j < hidden; j++) {
+                values.put(offset + j, (float) NeuralNetwork.logisticFunction(z2[j]));
+            }
+        }
+        return new ActivationCache(data.size(), hidden, values, channel);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getHiddenLayerSize() {
+        return hidden;
+    }
+
+    /* Fills a2 (hidden + 1 entries) with the activations of the example, bias unit first.
+     */
+    public void get(int example, double[] a2) {
+        a2[0] = 1;
+        int offset = example * hidden;
+        for (int j = 0; j < hidden; j++) {
+            a2[j + 1] = values.get(offset + j);
+        }
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+
+/**
+ * Makes a slightly different copy of a 20 x 20 drawing every time a training example is
+ * used: a small shift, a small rotation, a thickening (dilation) or thinning (erosion)
+ * of the strokes, and a few flipped pixels.  The copies are made while batches are
+ * assembled and thrown away afterwards, so the data set on disk and in memory does not
+ * grow no matter how many variants the network gets to see.
+ *
+ * Work is done on the packed image: it is split into one 20 bit mask per row, so shifts,
+ * dilation and erosion are a handful of shift/or/and operations per row.  Only rotation
+ * looks at individual pixels.
+ *
+ * An Augmenter has no mutable state; the randomness comes from the SplittableRandom that
+ * is passed in, so several threads can share one.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.util.SplittableRandom;
+
+public class Augmenter {
+
+    private static final int ROWS = PackedBitmap.NUM_ROWS;
+    private static final int COLS = PackedBitmap.NUM_COLS;
+    private static final int ROW_MASK = (1 << COLS) - 1;
+
+    public static final int DEFAULT_MAX_SHIFT = 2;
+    public static final double DEFAULT_MAX_ROTATION_DEGREES = 10.0;
+    public static final double DEFAULT_MORPHOLOGY_PROBABILITY = 0.2;
+    public static final double DEFAULT_NOISE_RATE = 0.005;
+    // the fraction of the ink erode() has to leave for its result to be used
+    static final double MIN_ERODED_INK = 0.6;
+
+    private final int maxShift;
+    private final double maxRotation;          // radians
+    private final double morphologyProbability;
+    private final double noiseRate;            // probability that any one pixel is flipped
+
+    public Augmenter() {
+        this(DEFAULT_MAX_SHIFT, DEFAULT_MAX_ROTATION_DEGREES, DEFAULT_MORPHOLOGY_PROBABILITY, DEFAULT_NOISE_RATE);
+    }
+
+    public Augmenter(int maxShift, double maxRotationDegrees, double morphologyProbability, double noiseRate) {
+        this.maxShift = maxShift;
+        this.maxRotation = Math.toRadians(maxRotationDegrees);
+        this.morphologyProbability = morphologyProbability;
+        this.noiseRate = noiseRate;
+    }
+
+    /* Returns a randomly distorted copy of the image.  The original is not changed.
+     */
+    public PackedBitmap augment(PackedBitmap image, SplittableRandom random) {
+        int[] rows = unpackRows(image.getWords());
+
+        if (maxRotation > 0) {
+            rows = rotate(rows, (random.nextDouble() * 2 - 1) * maxRotation);
+        }
+        if (maxShift > 0) {
+            rows = shift(rows, random.nextInt(-maxShift, maxShift + 1), random.nextInt(-maxShift, maxShift + 1));
+        }
+        if (random.nextDouble() < morphologyProbability) {
+            rows = random.nextBoolean() ? dilate(rows) : erode(rows);
+        }
+        if (noiseRate > 0) {
+            addNoise(rows, random);
+        }
+
+        return new PackedBitmap(PackedBitmap.NUM_PIXELS, packRows(rows));
+    }
+
+    /* Bit c of rows[r] is pixel (r, c).
+     */
+    static int[] unpackRows(long[] words) {
+        int[] rows = new int[ROWS];
+        for (int r = 0; r < ROWS; r++) {
+            int first = r * COLS;
+            int word = first >>> 6;
+            int offset = first & 63;
+            long bits = words[word] >>> offset;
+            if (offset + COLS > 64) {
+                bits |= words[word + 1] << (64 - offset);
+            }
+            rows[r] = (int) bits & ROW_MASK;
+        }
+        return rows;
+    }
+
+    static long[] packRows(int[] rows) {
+        long[] words = new long[PackedBitmap.wordsFor(PackedBitmap.NUM_PIXELS)];
+        for (int r = 0; r < ROWS; r++) {
+            int first = r * COLS;
+            int word = first >>> 6;
+            int offset = first & 63;
+            long bits = rows[r] & ROW_MASK;
+            words[word] |= bits << offset;
+            if (offset + COLS > 64) {
+                words[word + 1] |= bits >>> (64 - offset);
+            }
+        }
+        return words;
+    }
+
+    /* Moves the drawing dx columns right and dy rows down; whatever falls off the edge is lost.
+     */
+    static int[] shift(int[] rows, int dx, int dy) {
+        int[] shifted = new int[ROWS];
+        for (int r = 0; r < ROWS; r++) {
+            int source = r - dy;
+            if (source < 0 || source >= ROWS) {
+                continue;
+            }
+            int bits = rows[source];
+            shifted[r] = ((dx >= 0) ? bits << dx : bits >>> -dx) & ROW_MASK;
+        }
+        return shifted;
+    }
+
+    /* Turns a pixel on if it or any of its eight neighbours is on.
+     */
+    static int[] dilate(int[] rows) {
+        int[] horizontal = new int[ROWS];
+        for (int r = 0; r < ROWS; r++) {
+            horizontal[r] = (rows[r] | (rows[r] << 1) | (rows[r] >>> 1)) & ROW_MASK;
+        }
+        int[] dilated = new int[ROWS];
+        for (int r = 0; r < ROWS; r++) {
+            int above = (r > 0) ? horizontal[r - 1] : 0;
+            int below = (r < ROWS - 1) ? horizontal[r + 1] : 0;
+            dilated[r] = above | horizontal[r] | below;
+        }
+        return dilated;
+    }
+
+    /* Keeps a pixel on only if both its left and right neighbours, or both its upper and lower
+     * neighbours, are on.  A full 3 x 3 erosion would wipe out our one or two pixel wide strokes;
+     * this version trims stroke ends, corners and stray pixels instead.  Even so, a drawing made of
+     * one pixel wide strokes falls apart into scattered dots that no longer look like the label, so
+     * unless at least MIN_ERODED_INK of the ink survives the drawing is returned unchanged.
+     */
+    static int[] erode(int[] rows) {
+        int[] eroded = new int[ROWS];
+        int before = 0;
+        int after = 0;
+        for (int r = 0; r < ROWS; r++) {
+            int above = (r > 0) ? rows[r - 1] : 0;
+            int below = (r < ROWS - 1) ? rows[r + 1] : 0;
+            int leftAndRight = (rows[r] << 1) & (rows[r] >>> 1);
+            eroded[r] = rows[r] & (leftAndRight | (above & below)) & ROW_MASK;
+            before += Integer.bitCount(rows[r]);
+            after += Integer.bitCount(eroded[r]);
+        }
+        return (after < MIN_ERODED_INK * before) ? rows : eroded;
+    }
+
+    /* Rotates about the centre of the grid by nearest-neighbour lookup: each destination pixel takes
+     * the value of the source pixel that rotates onto it.
+     */
+    static int[] rotate(int[] rows, double angle) {
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        double centreRow = (ROWS - 1) / 2.0;
+        double centreCol = (COLS - 1) / 2.0;
+
+        int[] rotated = new int[ROWS];
+        for (int r = 0; r < ROWS; r++) {
+            double y = r - centreRow;
+            for (int c = 0; c < COLS; c++) {
+                double x = c - centreCol;
+                int sourceCol = (int) Math.round(cos * x + sin * y + centreCol);
+                int sourceRow = (int) Math.round(-sin * x + cos * y + centreRow);
+                if (sourceRow >= 0 && sourceRow < ROWS && sourceCol >= 0 && sourceCol < COLS
+                    && (rows[sourceRow] & (1 << sourceCol)) != 0) {
+                    rotated[r] |= 1 << c;
+                }
+            }
+        }
+        return rotated;
+    }
+
+    /* Flips about noiseRate * 400 randomly chosen pixels.  The number of flips is drawn pixel by
+     * pixel through geometric skips, so a low rate costs only a few random numbers.
+     */
+    private void addNoise(int[] rows, SplittableRandom random) {
+        double logKeep = Math.log(1 - noiseRate);
+        int pixel = -1;
+        while (true) {
+            pixel += 1 + (int) (Math.log(1 - random.nextDouble()) / logKeep);
+            if (pixel >= ROWS * COLS || pixel < 0) {
+                return;
+            }
+            rows[pixel / COLS] ^= 1 << (pixel % COLS);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+
+/**
+ * Checks every LinearAlgebra backend against the Jama reference: each kernel on random
+ * matrices of awkward shapes (1 x 1, sizes that are not multiples of the block size,
+ * vectors longer than needed), and then a whole back propagation step through
+ * NeuralNetwork with the backend switched in, one example at a time and as a batch.
+ * Results must agree to within a relative TOLERANCE.  It then times the kernels that
+ * matter for training on each backend.
+ *
+ * Exits with status 1 if any check fails, so it can be run from a script.
+ *
+ * Usage: java BackendConformance [backend ...]     (default: jama blocked)
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.util.*;
+import Jama.Matrix;
+
+public class BackendConformance {
+
+    private static final double TOLERANCE = 1e-10;
+    private static final int[][] SHAPES = {{1, 1}, {3, 7}, {10, 257}, {65, 130}, {256, 257}, {130, 64}};
+    private static final int TIMING_REPEATS = 20;
+    private static final int BATCH_SIZE = 32;
+
+    private static int failures;
+
+    public static void main(String[] args) {
+        String[] names = (args.length > 0) ? args : new String[] {"jama", "blocked"};
+        LinearAlgebra reference = new JamaBackend();
+
+        for (String name : names) {
+            LinearAlgebra backend;
+            try {
+                backend = LinearAlgebra.forName(name);
+            } catch (IllegalArgumentException e) {
+                System.out.print("SKIPPED " + name + ": " + e.getMessage() + "\n");
+                continue;
+            }
+            int before = failures;
+            checkKernels(backend, reference);
+            checkBackPropagation(backend, reference);
+            checkBatchGradient(backend);
+            System.out.print((failures == before ? "PASSED " : "FAILED ") + backend.name() + "\n");
+        }
+
+        System.out.print(String.format("%n%-10s %14s %14s %16s %16s%n", "backend", "GEMM 256 ms", "GEMV 256 us",
+            "backprop us", "batch of " + BATCH_SIZE + " us"));
+        for (String name : names) {
+            try {
+                time(LinearAlgebra.forName(name));
+            } catch (IllegalArgumentException e) {
+                // reported above
+            }
+        }
+        if (failures > 0) {
+            System.out.print(failures + " check(s) failed\n");
+            System.exit(1);
+        }
+    }
+
+    private static void checkKernels(LinearAlgebra backend, LinearAlgebra reference) {
+        Random random = new Random(7);
+        for (int[] shape : SHAPES) {
+            int rows = shape[0];
+            int cols = shape[1];
+            String where = backend.name() + " " + rows + "x" + cols + " ";
+            Matrix a = randomMatrix(rows, cols, random);
+
+            // vectors one longer than needed, to check that only the matrix decides the lengths
+            double[] x = randomVector(cols + 1, random);
+            double[] u = randomVector(rows + 1, random);
+            double[] expected = new double[rows];
+            double[] actual = new double[rows];
+
+            reference.multiplyWithBias(a, x, expected);
+            backend.multiplyWithBias(a, x, actual);
+            check(where + "multiplyWithBias", expected, actual);
+
+            reference.multiply(a, x, expected);
+            backend.multiply(a, x, actual);
+            check(where + "multiply", expected, actual);
+
+            for (int skip = 0; skip <= 1 && skip < cols; skip++) {
+                double[] expectedT = new double[cols - skip + 1];
+                double[] actualT = new double[cols - skip + 1];
+                expectedT[cols - skip] = 42;
+                actualT[cols - skip] = 42;
+                reference.multiplyTransposed(a, u, expectedT, skip);
+                backend.multiplyTransposed(a, u, actualT, skip);
+                check(where + "multiplyTransposed skip " + skip, expectedT, actualT);
+            }
+
+            for (boolean withBias : new boolean[] {false, true}) {
+                Matrix expectedM = a.copy();
+                Matrix actualM = a.copy();
+                reference.addOuterProduct(expectedM, u, x, withBias);
+                backend.addOuterProduct(actualM, u, x, withBias);
+                check(where + "addOuterProduct " + (withBias ? "with bias" : ""), expectedM, actualM);
+            }
+
+            Matrix delta = randomMatrix(rows, cols, random);
+            Matrix expectedM = a.copy();
+            Matrix actualM = a.copy();
+            reference.step(expectedM, delta, 0.3);
+            backend.step(actualM, delta, 0.3);
+            check(where + "step", expectedM, actualM);
+
+            backend.clear(actualM);
+            check(where + "clear", new Matrix(rows, cols), actualM);
+
+            check(where + "transpose", reference.transpose(a), backend.transpose(a));
+            Matrix b = randomMatrix(cols, rows + 3, random);
+            check(where + "times", reference.times(a, b), backend.times(a, b));
+        }
+    }
+
+    /* One example's gradient and a step through NeuralNetwork, with the backend switched in.
+     */
+    private static void checkBackPropagation(LinearAlgebra backend, LinearAlgebra reference) {
+        Random random = new Random(11);
+        Matrix theta1 = randomMatrix(NeuralNetwork.HIDDEN_LAYER_SIZE, NeuralNetwork.INPUT_VECTOR_DIMENSION + 1, random);
+        Matrix theta2 = randomMatrix(NeuralNetwork.NUM_OUTPUT_CLASSES, NeuralNetwork.HIDDEN_LAYER_SIZE + 1, random);
+        double[] input = new double[NeuralNetwork.INPUT_VECTOR_DIMENSION];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = random.nextBoolean() ? 1 : 0;
+        }
+        double[] target = NeuralNetwork.vectorizeY(3);
+
+        LinearAlgebra saved = NeuralNetwork.getBackend();
+        try {
+            Matrix[][] results = new Matrix[2][];
+            double[][] errors = new double[2][];
+            LinearAlgebra[] both = {reference, backend};
+            for (int r = 0; r < 2; r++) {
+                NeuralNetwork.setBackend(both[r]);
+                for (OutputLayer outputLayer : OutputLayer.values()) {
+                    Matrix t1 = theta1.copy();
+                    Matrix t2 = theta2.copy();
+                    Matrix d1 = new Matrix(t1.getRowDimension(), t1.getColumnDimension());
+                    Matrix d2 = new Matrix(t2.getRowDimension(), t2.getColumnDimension());
+                    errors[r] = new double[input.length];
+                    NeuralNetwork.accumulateGradient(input, target, t1, t2, outputLayer, d1, d2, errors[r]);
+                    NeuralNetwork.step(t1, d1, 0.5);
+                    NeuralNetwork.step(t2, d2, 0.5);
+                    if (r == 1) {
+                        String where = backend.name() + " back propagation " + outputLayer.fileName() + " ";
+                        int o = outputLayer.ordinal() * 4;
+                        check(where + "delta1", results[0][o], d1);
+                        check(where + "delta2", results[0][o + 1], d2);
+                        check(where + "theta1", results[0][o + 2], t1);
+                        check(where + "theta2", results[0][o + 3], t2);
+                    } else {
+                        if (results[0] == null) {
+                            results[0] = new Matrix[4 * OutputLayer.values().length];
+                        }
+                        int o = outputLayer.ordinal() * 4;
+                        results[0][o] = d1;
+                        results[0][o + 1] = d2;
+                        results[0][o + 2] = t1;
+                        results[0][o + 3] = t2;
+                    }
+                }
+            }
+            check(backend.name() + " back propagation input error", errors[0], errors[1]);
+        } finally {
+            NeuralNetwork.setBackend(saved);
+        }
+    }
+
+    /* The batched gradient must be the sum of the per-example gradients, for both output layers.
+     */
+    private static void checkBatchGradient(LinearAlgebra backend) {
+        Random random = new Random(13);
+        Matrix theta1 = randomMatrix(NeuralNetwork.HIDDEN_LAYER_SIZE, NeuralNetwork.INPUT_VECTOR_DIMENSION + 1, random);
+        Matrix theta2 = randomMatrix(NeuralNetwork.NUM_OUTPUT_CLASSES, NeuralNetwork.HIDDEN_LAYER_SIZE + 1, random);
+        double[][] inputs = new double[BATCH_SIZE][NeuralNetwork.INPUT_VECTOR_DIMENSION];
+        int[] labels = new int[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            for (int j = 0; j < inputs[i].length; j++) {
+                inputs[i][j] = random.nextBoolean() ? 1 : 0;
+            }
+            labels[i] = random.nextInt(NeuralNetwork.NUM_OUTPUT_CLASSES);
+        }
+        // fewer than BATCH_SIZE, as in the last batch of an epoch; the rows after it must be ignored
+        int size = BATCH_SIZE - 5;
+
+        LinearAlgebra saved = NeuralNetwork.getBackend();
+        NeuralNetwork.setBackend(backend);
+        try {
+            for (OutputLayer outputLayer : OutputLayer.values()) {
+                String where = backend.name() + " batch gradient " + outputLayer.fileName() + " ";
+                Matrix expected1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+                Matrix expected2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+                double[][] expectedA3 = new double[size][];
+                for (int i = 0; i < size; i++) {
+                    expectedA3[i] = NeuralNetwork.accumulateGradient(inputs[i], NeuralNetwork.vectorizeY(labels[i]),
+                        theta1, theta2, outputLayer, expected1, expected2);
+                }
+                Matrix actual1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+                Matrix actual2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+                double[][] actualA3 = NeuralNetwork.accumulateBatchGradient(inputs, labels, size, theta1, theta2,
+                    outputLayer, actual1, actual2);
+                check(where + "delta1", expected1, actual1);
+                check(where + "delta2", expected2, actual2);
+                for (int i = 0; i < size; i++) {
+                    check(where + "a3 of example " + i, expectedA3[i], actualA3[i]);
+                }
+            }
+        } finally {
+            NeuralNetwork.setBackend(saved);
+        }
+    }
+
+    private static void time(LinearAlgebra backend) {
+        Random random = new Random(3);
+        int n = NeuralNetwork.HIDDEN_LAYER_SIZE;
+        Matrix a = randomMatrix(n, n, random);
+        Matrix b = randomMatrix(n, n, random);
+        Matrix theta1 = randomMatrix(n, NeuralNetwork.INPUT_VECTOR_DIMENSION + 1, random);
+        Matrix theta2 = randomMatrix(NeuralNetwork.NUM_OUTPUT_CLASSES, n + 1, random);
+        Matrix d1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+        Matrix d2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+        double[] x = randomVector(n, random);
+        double[] y = new double[n];
+        double[] target = NeuralNetwork.vectorizeY(5);
+        double[][] inputs = new double[BATCH_SIZE][];
+        int[] labels = new int[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            inputs[i] = randomVector(NeuralNetwork.INPUT_VECTOR_DIMENSION, random);
+            labels[i] = i % NeuralNetwork.NUM_OUTPUT_CLASSES;
+        }
+
+        LinearAlgebra saved = NeuralNetwork.getBackend();
+        NeuralNetwork.setBackend(backend);
+        try {
+            long gemm = Long.MAX_VALUE;
+            long gemv = Long.MAX_VALUE;
+            long backprop = Long.MAX_VALUE;
+            long batchBackprop = Long.MAX_VALUE;
+            for (int repeat = 0; repeat < TIMING_REPEATS; repeat++) {
+                long t0 = System.nanoTime();
+                backend.times(a, b);
+                long t1 = System.nanoTime();
+                for (int i = 0; i < 100; i++) {
+                    backend.multiply(a, x, y);
+                }
+                long t2 = System.nanoTime();
+                for (int i = 0; i < 10; i++) {
+                    NeuralNetwork.accumulateGradient(x, target, theta1, theta2, OutputLayer.SOFTMAX, d1, d2);
+                }
+                long t3 = System.nanoTime();
+                NeuralNetwork.accumulateBatchGradient(inputs, labels, BATCH_SIZE, theta1, theta2, OutputLayer.SOFTMAX,
+                    d1, d2);
+                long t4 = System.nanoTime();
+                gemm = Math.min(gemm, t1 - t0);
+                gemv = Math.min(gemv, (t2 - t1) / 100);
+                backprop = Math.min(backprop, (t3 - t2) / 10);
+                batchBackprop = Math.min(batchBackprop, t4 - t3);
+            }
+            System.out.print(String.format("%-10s %14.2f %14.2f %16.2f %16.2f%n", backend.name(), gemm / 1e6,
+                gemv / 1e3, backprop / 1e3, batchBackprop / 1e3));
+        } finally {
+            NeuralNetwork.setBackend(saved);
+        }
+    }
+
+    private static void check(String what, double[] expected, double[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (!close(expected[i], actual[i])) {
+                fail(what + " at " + i + ": expected " + expected[i] + ", got " + actual[i]);
+                return;
+            }
+        }
+    }
+
+    private static void check(String what, Matrix expected, Matrix actual) {
+        if (expected.getRowDimension() != actual.getRowDimension()
+            || expected.getColumnDimension() != actual.getColumnDimension()) {
+            fail(what + ": expected " + expected.getRowDimension() + "x" + expected.getColumnDimension() + ", got "
+                + actual.getRowDimension() + "x" + actual.getColumnDimension());
+            return;
+        }
+        for (int i = 0; i < expected.getRowDimension(); i++) {
+            for (int j = 0; j < expected.getColumnDimension(); j++) {
+                if (!close(expected.get(i, j), actual.get(i, j))) {
+                    fail(what + " at (" + i + ", " + j + "): expected " + expected.get(i, j) + ", got " + actual.get(i, j));
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean close(double expected, double actual) {
+        return Math.abs(expected - actual) <= TOLERANCE * Math.max(1, Math.abs(expected));
+    }
+
+    private static void fail(String message) {
+        ++failures;
+        System.out.print("  " + message + "\n");
+    }
+
+    private static Matrix randomMatrix(int rows, int cols, Random random) {
+        Matrix m = new Matrix(rows, cols);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                m.set(i, j, random.nextDouble() * 2 - 1);
+            }
+        }
+        return m;
+    }
+
+    private static double[] randomVector(int length, Random random) {
+        double[] v = new double[length];
+        for (int i = 0; i < length; i++) {
+            v[i] = random.nextDouble() * 2 - 1;
+        }
+        return v;
+    }
+}
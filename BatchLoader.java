@@ -0,0 +1,243 @@
+
+/**
+ * The data loading stage of training.  A producer thread walks through the data set in a
+ * new random order every epoch and decodes the packed images of the next mini-batch into
+ * plain double arrays, while the training thread is still busy with the current one.
+ *
+ * Exactly two Batch buffers exist (double buffering): one being filled by the producer,
+ * one being trained on.  The trainer calls take() to get a filled batch and release() to
+ * hand it back once it is done with it, so nothing is allocated per batch.
+ *
+ * The order of each epoch comes from a Random seeded with the loader's seed and the epoch
+ * number, so a run can be repeated exactly.
+ *
+ * A balanced loader draws its examples instead of shuffling them: every epoch is as many
+ * draws (with replacement) as there are examples, taking the labels in turn, so rare
+ * digits are seen as often as common ones.  For a DatasetStore the draws come from its
+ * per label index (sampleBalanced()); for other sets the examples are grouped by label
+ * once, on the producer thread.
+ *
+ * If an Augmenter is given, every example is distorted afresh each time it is used.  The
+ * examples of a batch are augmented and decoded in parallel; each one gets its own
+ * SplittableRandom derived from the seed, epoch and position, so the result does not
+ * depend on how the work was split between threads.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.Closeable;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class BatchLoader implements Closeable {
+
+    private static final int NUM_BUFFERS = 2;
+    // below this many examples a batch is cheaper to fill on the producer thread alone
+    private static final int PARALLEL_THRESHOLD = 16;
+
+    /* One mini-batch: inputs[i] and labels[i] for i < size, and indices[i], the position of the
+     * example in the data set.  endOfEpoch is set on the last batch of every epoch.
+     */
+    public static final class Batch {
+        public final double[][] inputs;
+        public final int[] labels;
+        public final int[] indices;
+        public int size;
+        public int epoch;
+        public boolean endOfEpoch;
+
+        Batch(int batchSize, int inputDimension) {
+            inputs = new double[batchSize][inputDimension];
+            labels = new int[batchSize];
+            indices = new int[batchSize];
+        }
+    }
+
+    // handed out once after the last epoch, to tell the trainer we are done
+    private static final Batch END = new Batch(0, 0);
+
+    private final LabelledImages dataset;
+    private final Augmenter augmenter;   // null for no augmentation
+    private final boolean balanced;
+    private final int batchSize;
+    private final long seed;
+    private final int numEpochs;
+
+    private final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(NUM_BUFFERS);
+    private final BlockingQueue<Batch> full = new ArrayBlockingQueue<Batch>(NUM_BUFFERS + 1);
+    private final Thread producer;
+    private volatile Throwable failure;
+    private long waitNanos;
+
+    public BatchLoader(LabelledImages dataset, int batchSize, int inputDimension, long seed, int numEpochs) {
+        this(dataset, null, batchSize, inputDimension, seed, numEpochs);
+    }
+
+    public BatchLoader(LabelledImages dataset, Augmenter augmenter, int batchSize, int inputDimension, long seed,
+                       int numEpochs) {
+        this(dataset, augmenter, false, batchSize, inputDimension, seed, numEpochs);
+    }
+
+    public BatchLoader(LabelledImages dataset, Augmenter augmenter, boolean balanced, int batchSize,
+                       int inputDimension, long seed, int numEpochs) {
+        if (dataset.size() == 0) {
+            throw new IllegalArgumentException("The data set is empty");
+        }
+        this.dataset = dataset;
+        this.augmenter = augmenter;
+        this.balanced = balanced;
+        this.batchSize = Math.min(batchSize, dataset.size());
+        this.seed = seed;
+        this.numEpochs = numEpochs;
+
+        for (int i = 0; i < NUM_BUFFERS; i++) {
+            free.add(new Batch(this.batchSize, inputDimension));
+        }
+
+        producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    produce();
+                } catch (InterruptedException e) {
+                    // close() was called
+                } catch (Throwable t) {
+                    failure = t;
+                    full.offer(END);
+                }
+            }
+        }, "batch-loader");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /* Returns the next filled batch, or null once every epoch has been delivered.  The batch must
+     * be given back with release() before the one after next can be produced.
+     */
+    public Batch take() throws InterruptedException {
+        long start = System.nanoTime();
+        Batch batch = full.take();
+        waitNanos += System.nanoTime() - start;
+        if (batch == END) {
+            if (failure != null) {
+                throw new IllegalStateException("Batch loading failed", failure);
+            }
+            return null;
+        }
+        return batch;
+    }
+
+    public void release(Batch batch) {
+        free.add(batch);
+    }
+
+    /* Total time the trainer has spent blocked in take(), i.e. waiting for data.
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    public void close() {
+        producer.interrupt();
+    }
+
+    private void produce() throws InterruptedException {
+        int n = dataset.size();
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        DatasetStore store = (dataset instanceof DatasetStore) ? (DatasetStore) dataset : null;
+        int[][] byLabel = (balanced && store == null) ? groupByLabel(dataset) : null;
+
+        for (int epoch = 1; epoch <= numEpochs; epoch++) {
+            if (!balanced) {
+                shuffle(order, new Random(seed * 31 + epoch));
+            } else if (store != null) {
+                store.sampleBalanced(new SplittableRandom(seed * 31 + epoch), order);
+            } else {
+                sampleBalanced(byLabel, new SplittableRandom(seed * 31 + epoch), order);
+            }
+
+            for (int start = 0; start < n; start += batchSize) {
+                final Batch batch = free.take();
+                batch.size = Math.min(batchSize, n - start);
+                batch.epoch = epoch;
+                batch.endOfEpoch = (start + batch.size >= n);
+
+                final int first = start;
+                final long sampleSeed = (seed * 31 + epoch) * 1000003L + start;
+                IntStream positions = IntStream.range(0, batch.size);
+                if (augmenter != null && batch.size >= PARALLEL_THRESHOLD) {
+                    positions = positions.parallel();
+                }
+                positions.forEach(i -> fill(batch, i, order[first + i], sampleSeed + i));
+                full.put(batch);
+            }
+        }
+        full.put(END);
+    }
+
+    /* Decodes (and if asked, distorts) example index into position i of the batch.
+     */
+    private void fill(Batch batch, int i, int index, long sampleSeed) {
+        PackedBitmap image = dataset.getImage(index);
+        if (augmenter != null) {
+            image = augmenter.augment(image, new SplittableRandom(sampleSeed));
+        }
+        NeuralNetwork.toInput(image, batch.inputs[i]);
+        batch.labels[i] = dataset.getLabel(index);
+        batch.indices[i] = index;
+    }
+
+    /* The positions of the examples of each label.
+     */
+    private static int[][] groupByLabel(LabelledImages dataset) {
+        int[] counts = new int[DatasetStore.NUM_LABELS];
+        for (int i = 0; i < dataset.size(); i++) {
+            ++counts[dataset.getLabel(i)];
+        }
+        int[][] byLabel = new int[counts.length][];
+        for (int label = 0; label < counts.length; label++) {
+            byLabel[label] = new int[counts[label]];
+            counts[label] = 0;
+        }
+        for (int i = 0; i < dataset.size(); i++) {
+            int label = dataset.getLabel(i);
+            byLabel[label][counts[label]++] = i;
+        }
+        return byLabel;
+    }
+
+    /* Like DatasetStore.sampleBalanced(): labels in turn from a random one, skipping labels without
+     * examples, and a random example of each.
+     */
+    private static void sampleBalanced(int[][] byLabel, SplittableRandom random, int[] order) {
+        int[] present = new int[byLabel.length];
+        int numPresent = 0;
+        for (int label = 0; label < byLabel.length; label++) {
+            if (byLabel[label].length > 0) {
+                present[numPresent++] = label;
+            }
+        }
+        int next = random.nextInt(numPresent);
+        for (int i = 0; i < order.length; i++) {
+            int[] examples = byLabel[present[next]];
+            next = (next + 1) % numPresent;
+            order[i] = examples[random.nextInt(examples.length)];
+        }
+    }
+
+    /* Fisher-Yates shuffle.
+     */
+    private static void shuffle(int[] order, Random random) {
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+
+/**
+ * The drawing surface: a single component that paints a rows x cols grid of cells
+ * itself, instead of a GridLayout full of opaque JLabels with a mouse listener each.
+ *
+ * The drawing is kept as a PackedBitmap.  Every pen stroke builds a new bitmap (seven
+ * longs for 20 x 20) and swaps it in, so getBitmap() can hand the current drawing to
+ * the classifier as is, without walking any components or building Strings, and the
+ * classifier can hold on to it while the user keeps drawing.
+ *
+ * Pressing the mouse on an empty cell starts drawing, pressing on an inked cell starts
+ * erasing; dragging then paints every cell along the path, so fast strokes do not leave
+ * gaps.  Only the cells that changed are repainted.
+ *
+ * Change listeners are told (on the event dispatch thread) every time the drawing
+ * changes, which is what drives live classification.  The time taken by
+ * paintComponent() is recorded so the window can show it.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+import javax.swing.event.*;
+
+public class BitmapCanvas extends JComponent {
+
+    private static final Color INK = Color.BLACK;
+    private static final Color GRID = new Color(0xE0E0E0);
+    private static final int PREFERRED_CELL_SIZE = 24;
+
+    private final int rows;
+    private final int cols;
+    private volatile PackedBitmap bitmap;
+
+    private boolean penValue;      // true while drawing, false while erasing
+    private int lastPixel = -1;    // the cell the pen was last over, -1 when the pen is up
+
+    private long paintCount;
+    private long paintNanos;
+
+    public BitmapCanvas(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.bitmap = new PackedBitmap(rows * cols, new long[PackedBitmap.wordsFor(rows * cols)]);
+        setOpaque(true);
+        setBackground(Color.WHITE);
+        setPreferredSize(new Dimension(cols * PREFERRED_CELL_SIZE, rows * PREFERRED_CELL_SIZE));
+
+        MouseAdapter pen = new MouseAdapter() {
+            public void mousePressed(MouseEvent event) {
+                int pixel = pixelAt(event.getX(), event.getY());
+                if (pixel < 0) {
+                    return;
+                }
+                penValue = !bitmap.get(pixel);
+                lastPixel = pixel;
+                setPixels(new int[] {pixel}, 1);
+            }
+
+            public void mouseDragged(MouseEvent event) {
+                if (lastPixel < 0) {
+                    return;
+                }
+                int pixel = pixelAt(clamp(event.getX(), getWidth()), clamp(event.getY(), getHeight()));
+                if (pixel >= 0 && pixel != lastPixel) {
+                    strokeTo(pixel);
+                }
+            }
+
+            public void mouseReleased(MouseEvent event) {
+                lastPixel = -1;
+            }
+        };
+        addMouseListener(pen);
+        addMouseMotionListener(pen);
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    /* The current drawing.  Bitmaps are never modified, so the result may be kept and used from any
+     * thread.
+     */
+    public PackedBitmap getBitmap() {
+        return bitmap;
+    }
+
+    public void setBitmap(PackedBitmap newBitmap) {
+        if (newBitmap.getNumPixels() != rows * cols) {
+            throw new IllegalArgumentException("Expected " + rows * cols + " pixels, got " + newBitmap.getNumPixels());
+        }
+        bitmap = newBitmap;
+        repaint();
+        fireStateChanged();
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        listenerList.add(ChangeListener.class, listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        listenerList.remove(ChangeListener.class, listener);
+    }
+
+    public void clear() {
+        setBitmap(new PackedBitmap(rows * cols, new long[PackedBitmap.wordsFor(rows * cols)]));
+    }
+
+    /* Mean time spent in paintComponent(), in nanoseconds.
+     */
+    public double getMeanPaintNanos() {
+        return (paintCount == 0) ? 0 : paintNanos / (double) paintCount;
+    }
+
+    /* Sets the first count given pixels to the pen value, in a single new bitmap.
+     */
+    private void setPixels(int[] pixels, int count) {
+        long[] words = bitmap.getWords().clone();
+        for (int i = 0; i < count; i++) {
+            int pixel = pixels[i];
+            if (penValue) {
+                words[pixel >>> 6] |= 1L << pixel;
+            } else {
+                words[pixel >>> 6] &= ~(1L << pixel);
+            }
+        }
+        bitmap = new PackedBitmap(rows * cols, words);
+
+        for (int i = 0; i < count; i++) {
+            repaintCell(pixels[i]);
+        }
+        fireStateChanged();
+    }
+
+    private void fireStateChanged() {
+        ChangeEvent event = new ChangeEvent(this);
+        for (ChangeListener listener : listenerList.getListeners(ChangeListener.class)) {
+            listener.stateChanged(event);
+        }
+    }
+
+    /* Paints every cell on the straight line from the last pen position to pixel (Bresenham).
+     */
+    private void strokeTo(int pixel) {
+        int r0 = lastPixel / cols;
+        int c0 = lastPixel % cols;
+        int r1 = pixel / cols;
+        int c1 = pixel % cols;
+        int dr = Math.abs(r1 - r0);
+        int dc = Math.abs(c1 - c0);
+        int stepR = (r0 < r1) ? 1 : -1;
+        int stepC = (c0 < c1) ? 1 : -1;
+        int error = dc - dr;
+
+        int[] pixels = new int[dr + dc + 1];
+        int count = 0;
+        while (r0 != r1 || c0 != c1) {
+            int twice = 2 * error;
+            if (twice > -dr) {
+                error -= dr;
+                c0 += stepC;
+            }
+            if (twice < dc) {
+                error += dc;
+                r0 += stepR;
+            }
+            pixels[count++] = r0 * cols + c0;
+        }
+        lastPixel = pixel;
+        setPixels(pixels, count);
+    }
+
+    private int pixelAt(int x, int y) {
+        int col = x * cols / Math.max(getWidth(), 1);
+        int row = y * rows / Math.max(getHeight(), 1);
+        if (row < 0 || row >= rows || col < 0 || col >= cols) {
+            return -1;
+        }
+        return row * cols + col;
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(value, size - 1));
+    }
+
+    private void repaintCell(int pixel) {
+        int row = pixel / cols;
+        int col = pixel % cols;
+        int x0 = col * getWidth() / cols;
+        int y0 = row * getHeight() / rows;
+        int x1 = (col + 1) * getWidth() / cols;
+        int y1 = (row + 1) * getHeight() / rows;
+        repaint(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+
+    protected void paintComponent(Graphics g) {
+        long start = System.nanoTime();
+        int width = getWidth();
+        int height = getHeight();
+        PackedBitmap image = bitmap;
+
+        g.setColor(getBackground());
+        g.fillRect(0, 0, width, height);
+
+        g.setColor(INK);
+        long[] words = image.getWords();
+        for (int w = 0; w < words.length; w++) {
+            long bits = words[w];
+            while (bits != 0) {
+                int pixel = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int row = pixel / cols;
+                int col = pixel % cols;
+                int x0 = col * width / cols;
+                int y0 = row * height / rows;
+                g.fillRect(x0, y0, (col + 1) * width / cols - x0, (row + 1) * height / rows - y0);
+            }
+        }
+
+        g.setColor(GRID);
+        for (int col = 0; col <= cols; col++) {
+            int x = Math.min(col * width / cols, width - 1);
+            g.drawLine(x, 0, x, height - 1);
+        }
+        for (int row = 0; row <= rows; row++) {
+            int y = Math.min(row * height / rows, height - 1);
+            g.drawLine(0, y, width - 1, y);
+        }
+
+        paintNanos += System.nanoTime() - start;
+        ++paintCount;
+    }
+}
@@ -0,0 +1,171 @@
+
+/**
+ * The pure Java LinearAlgebra backend used by default.  It works on the arrays inside the
+ * Jama matrices (getArray()) and updates them in place, so the per example kernels
+ * allocate nothing.
+ *
+ * The matrix product is blocked: a BLOCK x BLOCK tile of b is reused for every row of a
+ * while it is still in cache, and rows of the result are spread over the common
+ * fork/join pool when the product is big enough to be worth it.  The matrix-vector
+ * kernels are single loops over rows, which are already cache friendly.
+ *
+ * Caution: clear(), step() and addOuterProduct() change their first argument.  Only use
+ * them on matrices nobody else can see; a published Model must never change.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.util.stream.IntStream;
+import Jama.Matrix;
+
+public class BlockedBackend implements LinearAlgebra {
+
+    private static final int BLOCK = 64;
+    // products with fewer multiply-adds than this run on the calling thread
+    private static final long PARALLEL_THRESHOLD = 1L << 20;
+
+    public String name() {
+        return "blocked";
+    }
+
+    public void multiplyWithBias(Matrix a, double[] x, double[] y) {
+        double[][] rows = a.getArray();
+        int n = a.getColumnDimension() - 1;
+        for (int j = 0; j < rows.length; j++) {
+            double[] row = rows[j];
+            double z = row[0];
+            for (int i = 0; i < n; i++) {
+                z += row[i + 1] * x[i];
+            }
+            y[j] = z;
+        }
+    }
+
+    public void multiply(Matrix a, double[] x, double[] y) {
+        double[][] rows = a.getArray();
+        int n = a.getColumnDimension();
+        for (int j = 0; j < rows.length; j++) {
+            double[] row = rows[j];
+            double z = 0;
+            for (int i = 0; i < n; i++) {
+                z += row[i] * x[i];
+            }
+            y[j] = z;
+        }
+    }
+
+    public void multiplyTransposed(Matrix a, double[] x, double[] y, int skip) {
+        double[][] rows = a.getArray();
+        int n = a.getColumnDimension() - skip;
+        java.util.Arrays.fill(y, 0, n, 0);
+        for (int k = 0; k < rows.length; k++) {
+            double xk = x[k];
+            if (xk == 0) {
+                continue;
+            }
+            double[] row = rows[k];
+            for (int i = 0; i < n; i++) {
+                y[i] += row[i + skip] * xk;
+            }
+        }
+    }
+
+    public void addOuterProduct(Matrix a, double[] u, double[] v, boolean withBias) {
+        double[][] rows = a.getArray();
+        int offset = withBias ? 1 : 0;
+        int n = a.getColumnDimension() - offset;
+        for (int j = 0; j < rows.length; j++) {
+            double uj = u[j];
+            if (uj == 0) {
+                continue;
+            }
+            double[] row = rows[j];
+            if (withBias) {
+                row[0] += uj;
+            }
+            for (int i = 0; i < n; i++) {
+                row[i + offset] += uj * v[i];
+            }
+        }
+    }
+
+    public void step(Matrix theta, Matrix delta, double rate) {
+        double[][] t = theta.getArray();
+        double[][] d = delta.getArray();
+        for (int i = 0; i < t.length; i++) {
+            double[] tRow = t[i];
+            double[] dRow = d[i];
+            for (int j = 0; j < tRow.length; j++) {
+                tRow[j] -= rate * dRow[j];
+            }
+        }
+    }
+
+    public void clear(Matrix m) {
+        double[][] entries = m.getArray();
+        for (int i = 0; i < entries.length; i++) {
+            java.util.Arrays.fill(entries[i], 0);
+        }
+    }
+
+    public Matrix times(Matrix a, Matrix b) {
+        final int rows = a.getRowDimension();
+        final int inner = a.getColumnDimension();
+        final int cols = b.getColumnDimension();
+        if (b.getRowDimension() != inner) {
+            throw new IllegalArgumentException("Matrix inner dimensions must agree.");
+        }
+        final double[][] x = a.getArray();
+        final double[][] y = b.getArray();
+        Matrix product = new Matrix(rows, cols);
+        final double[][] c = product.getArray();
+
+        int rowBlocks = (rows + BLOCK - 1) / BLOCK;
+        IntStream blocks = IntStream.range(0, rowBlocks);
+        if ((long) rows * inner * cols >= PARALLEL_THRESHOLD) {
+            blocks = blocks.parallel();
+        }
+        blocks.forEach(block -> {
+            int rowEnd = Math.min(rows, (block + 1) * BLOCK);
+            for (int k0 = 0; k0 < inner; k0 += BLOCK) {
+                int kEnd = Math.min(inner, k0 + BLOCK);
+                for (int j0 = 0; j0 < cols; j0 += BLOCK) {
+                    int jEnd = Math.min(cols, j0 + BLOCK);
+                    for (int i = block * BLOCK; i < rowEnd; i++) {
+                        double[] xRow = x[i];
+                        double[] cRow = c[i];
+                        for (int k = k0; k < kEnd; k++) {
+                            double xik = xRow[k];
+                            if (xik == 0) {
+                                continue;
+                            }
+                            double[] yRow = y[k];
+                            for (int j = j0; j < jEnd; j++) {
+                                cRow[j] += xik * yRow[j];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        return product;
+    }
+
+    public Matrix transpose(Matrix a) {
+        int rows = a.getRowDimension();
+        int cols = a.getColumnDimension();
+        double[][] from = a.getArray();
+        Matrix transposed = new Matrix(cols, rows);
+        double[][] to = transposed.getArray();
+        for (int i0 = 0; i0 < rows; i0 += BLOCK) {
+            for (int j0 = 0; j0 < cols; j0 += BLOCK) {
+                for (int i = i0; i < Math.min(rows, i0 + BLOCK); i++) {
+                    for (int j = j0; j < Math.min(cols, j0 + BLOCK); j++) {
+                        to[j][i] = from[i][j];
+                    }
+                }
+            }
+        }
+        return transposed;
+    }
+}
@@ -0,0 +1,157 @@
+
+/**
+ * Trains a small fast model and the full model on the same examples, calibrates a
+ * ModelCascade of the two, and compares the cascade with the full model alone: accuracy,
+ * the share of requests each stage served, and classifications per second.
+ *
+ * Every fifth example of the training file is held out as the test set.  If a validation
+ * file is given the threshold is calibrated on it; otherwise another fifth of the training
+ * file is held out for calibration.
+ *
+ * Usage:
+ *   java CascadeBenchmark [input-file] [validation-file | -] [fast-hidden-units] [epochs]
+ *                         [max-accuracy-loss] [sigmoid | softmax]
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.util.Random;
+import Jama.Matrix;
+
+public class CascadeBenchmark {
+
+    private static final long DEFAULT_SEED = 478978392;
+    private static final double ALPHA = 0.5;
+    private static final int BATCH_SIZE = 32;
+    private static final int TIMING_REPEATS = 200;
+
+    public static void main(String[] args) throws Exception {
+        File file = new File((args.length > 0) ? args[0] : "trainingSet.input");
+        String validationFile = (args.length > 1) ? args[1] : "-";
+        int fastHidden = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+        int epochs = (args.length > 3) ? Integer.parseInt(args[3]) : 30;
+        double maxLoss = (args.length > 4) ? Double.parseDouble(args[4]) : 0.005;
+        OutputLayer outputLayer = (args.length > 5) ? OutputLayer.fromFileName(args[5]) : OutputLayer.SIGMOID;
+
+        LabelledImages all = Dataset.open(file);
+        LabelledImages calibration = validationFile.equals("-") ? null : Dataset.open(new File(validationFile));
+        try {
+            // every fifth example is for testing, and unless a validation file was given the one before it
+            // is for calibration
+            LabelledImages train = (calibration == null) ? LabelledSubset.allBut(all, 5, 3, 4)
+                : LabelledSubset.allBut(all, 5, 4);
+            LabelledImages test = LabelledSubset.every(all, 5, 4);
+            if (calibration == null) {
+                calibration = LabelledSubset.every(all, 5, 3);
+            }
+            System.out.print(train.size() + " training, " + calibration.size() + " calibration and " + test.size()
+                + " test examples, " + epochs + " epochs\n");
+
+            Model full = train(train, NeuralNetwork.HIDDEN_LAYER_SIZE, outputLayer, epochs);
+            Model fast = train(train, fastHidden, outputLayer, epochs);
+
+            double threshold = ModelCascade.calibrate(fast, full, calibration, maxLoss);
+            ModelCascade cascade = new ModelCascade(fast, full, threshold);
+            System.out.print(String.format("Calibrated threshold %.4f for at most %.2f%% accuracy loss\n\n",
+                threshold, 100 * maxLoss));
+
+            int n = test.size();
+            double[][] inputs = new double[n][];
+            for (int i = 0; i < n; i++) {
+                inputs[i] = NeuralNetwork.toInput(test.getImage(i), full.getInputDimension());
+            }
+            int fullCorrect = 0;
+            int fastCorrect = 0;
+            int cascadeCorrect = 0;
+            for (int i = 0; i < n; i++) {
+                int label = test.getLabel(i);
+                fullCorrect += (NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(inputs[i], full)) == label)
+                    ? 1 : 0;
+                fastCorrect += (NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(inputs[i], fast)) == label)
+                    ? 1 : 0;
+                cascadeCorrect += (NeuralNetwork.getMax(cascade.computeHypothesis(inputs[i])) == label) ? 1 : 0;
+            }
+            double fastFraction = cascade.getFastFraction();
+
+            long sink = 0;
+            long fullNanos = Long.MAX_VALUE;
+            long cascadeNanos = Long.MAX_VALUE;
+            for (int repeat = 0; repeat < TIMING_REPEATS; repeat++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    sink += NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(inputs[i], full));
+                }
+                long t1 = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    sink += NeuralNetwork.getMax(cascade.computeHypothesis(inputs[i]));
+                }
+                long t2 = System.nanoTime();
+                fullNanos = Math.min(fullNanos, t1 - t0);
+                cascadeNanos = Math.min(cascadeNanos, t2 - t1);
+            }
+
+            System.out.print(String.format("%-24s %9s %14s %12s%n", "", "accuracy", "served", "digits/s"));
+            System.out.print(String.format("%-24s %8.1f%% %14s %12.0f%n",
+                "full (" + full.getHiddenLayerSize() + " hidden)",
+                100.0 * fullCorrect / n, "100% full", n / (fullNanos / 1e9)));
+            System.out.print(String.format("%-24s %8.1f%% %14s %12s%n",
+                "fast (" + fast.getHiddenLayerSize() + " hidden)",
+                100.0 * fastCorrect / n, "-", "-"));
+            System.out.print(String.format("%-24s %8.1f%% %13.1f%% %12.0f%n", "cascade", 100.0 * cascadeCorrect / n,
+                100 * fastFraction, n / (cascadeNanos / 1e9)));
+            System.out.print(String.format("%nThroughput gain %.2fx (served: %.1f%% fast, %.1f%% full)%s%n",
+                fullNanos / (double) cascadeNanos, 100 * fastFraction, 100 * (1 - fastFraction),
+                (sink == 42) ? " " : ""));
+        } finally {
+            all.close();
+            if (calibration != null) {
+                calibration.close();
+            }
+        }
+    }
+
+    /* Mini-batch gradient descent on a fresh network with the given number of hidden units.
+     */
+    private static Model train(LabelledImages train, int hidden, OutputLayer outputLayer, int epochs)
+        throws InterruptedException {
+        Random generator = new Random(DEFAULT_SEED);
+        int inputs = NeuralNetwork.INPUT_VECTOR_DIMENSION;
+        Matrix theta1 = randomMatrix(hidden, inputs + 1, generator);
+        Matrix theta2 = randomMatrix(NeuralNetwork.NUM_OUTPUT_CLASSES, hidden + 1, generator);
+        Matrix delta1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+        Matrix delta2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+
+        BatchLoader loader = new BatchLoader(train, BATCH_SIZE, inputs, DEFAULT_SEED, epochs);
+        try {
+            BatchLoader.Batch batch;
+            while ((batch = loader.take()) != null) {
+                NeuralNetwork.clear(delta1);
+                NeuralNetwork.clear(delta2);
+                for (int i = 0; i < batch.size; i++) {
+                    NeuralNetwork.accumulateGradient(batch.inputs[i], NeuralNetwork.vectorizeY(batch.labels[i]),
+                        theta1, theta2, outputLayer, delta1, delta2);
+                }
+                NeuralNetwork.step(theta1, delta1, ALPHA / batch.size);
+                NeuralNetwork.step(theta2, delta2, ALPHA / batch.size);
+                loader.release(batch);
+            }
+        } finally {
+            loader.close();
+        }
+        return new Model(theta1, theta2, outputLayer, hidden + " hidden units");
+    }
+
+    /* Uniform random entries between -1 and +1, like createInitialTheta().
+     */
+    private static Matrix randomMatrix(int rows, int cols, Random generator) {
+        Matrix m = new Matrix(rows, cols);
+        double[][] entries = m.getArray();
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                entries[i][j] = generator.nextDouble() * 2 - 1;
+            }
+        }
+        return m;
+    }
+}
@@ -1,14 +1,18 @@
 
 /**
- * Write a description of class ClassifierMain here.
+ * Starts the program.  Without arguments it opens the ClassifierWindow; with arguments
+ * it runs the headless ClassifyCli instead ("java ClassifierMain model-file [input-file]"),
+ * which never loads Swing or AWT.
  * 
- * @author (your name) 
- * @version (a version number or a date)
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
  */
 public class ClassifierMain  {
 
     public static void main(String[] arg) {
-        
+        if (arg.length > 0) {
+            ClassifyCli.main(arg);
+            return;
+        }
         ClassifierWindow window = new ClassifierWindow();
     }
 }
@@ -17,6 +17,9 @@
  * Classification can be performed on characters drawn in the canvas or on
  * vectors that are read from an input file.
  *
+ * 6. Record labelled drawings for new training data: Save Image Vector, or typing
+ * the digit, appends the drawing to a recording file (see SampleRecorder).
+ *
  *
  *
  * @author (Soho Kim, Robin Chen, and Zihao Liu)
@@ -32,61 +35,70 @@ import java.util.*;
 import java.io.*;
 import Jama.Matrix;
 import java.text.*;
+import java.util.concurrent.*;
 
 public class ClassifierWindow extends WindowManager {
 
     // Stuff from original PaintWindow
-    private static final Color BLACK = Color.BLACK;
-    private static final Color WHITE = Color.WHITE;
-
-    private final int NUM_ROWS = 20;    // # of rows in the layout for colored labels
-    private final int NUM_COLS = 20;    // # of cols in the layout for colored labels
+    private final int NUM_ROWS = PackedBitmap.NUM_ROWS;    // # of rows of cells on the drawing canvas
+    private final int NUM_COLS = PackedBitmap.NUM_COLS;    // # of cols of cells on the drawing canvas
     private final int PAD = 20;   // amount of padding around the grid
 
-    private JComboBox myComboBox;
+    private JComboBox<String> myComboBox;
     private JButton myClearButton;
     private JButton mySaveButton;
     private JButton myQuitButton;
     private JButton classifyVectorButton;
 
-    private JLabel[][] myColorBoxes;   // an array of click-to-color labels
+    private BitmapCanvas myCanvas;   // the drawing surface
+    private boolean liveClassification;   // classify on every stroke (-Dclassifier.live=false turns it off)
+    private InferenceSession inferenceSession;   // only touched on the event dispatch thread
+    private SampleRecorder sampleRecorder;   // where Save Image Vector and the digit keys record drawings
     private JLabel resultLabel;
-    private boolean myPenOn;
-    private Color myCurrentColor; // to keep track of the current color
     private String digit; //what digit am I drawing?
     private boolean digitSelected = false;
 
     // Stuff from ClassifierWindow before merge
-    private static final int NUM_OUTPUT_CLASSES = 10;
-    private static final int INPUT_VECTOR_DIMENSION = 256;  // The number of input units, not counting the bias unit.
-    private static final int HIDDEN_LAYER_SIZE = 256;
+    private static final int NUM_OUTPUT_CLASSES = NeuralNetwork.NUM_OUTPUT_CLASSES;
+    private static final int INPUT_VECTOR_DIMENSION = NeuralNetwork.INPUT_VECTOR_DIMENSION;  // The number of input units, not counting the bias unit.
+    private static final int HIDDEN_LAYER_SIZE = NeuralNetwork.HIDDEN_LAYER_SIZE;
     private static final String BORDER = new String("      ");
     private static final double epsilon = 1.0;
     private static final long DEFAULT_SEED = 478978392;
-    private static final double DEFAULT_LAMBDA_VALUE = 0.1;
     private static final double DEFAULT_ALPHA = 0.5;
     private static final int DEFAULT_NUM_ITERATIONS = 500;
+    private static final int DEFAULT_BATCH_SIZE = 32;
+    private static final int NUM_TOP_CLASSES_SHOWN = 3;
+    // what Train Network starts from
+    private static final int TRAIN_FROM_SCRATCH = 0;
+    private static final int TRAIN_WARM_START = 1;
+    private static final int TRAIN_OUTPUT_LAYER = 2;
     private static final double STOP_THRESHOLD = 0.0001;
     // This stop the program if we grow too far above our achieved minimum
     private static final double GROWTH_THRESHOLD = 5.0;
-    private static final double GRADIENT_CHECKING_EPSILON = 0.0001;
     private static final int MAX_DIMENSION_GRADIENT_CHECKING = 10;
+    // How many distinct images to remember outputs for.  Run with -Dclassifier.cacheSize=0 to turn the cache off.
+    private static final int DEFAULT_PREDICTION_CACHE_SIZE = 4096;
 
     private JButton trainNetworkButton;
     private JButton saveThetasButton;
     private JButton readMatricesButton;
     private JButton classifyFromInputFileButton;
+    private JComboBox<String> outputLayerComboBox;
+    private JButton cancelButton;
+    private JLabel statusLabel;
+    private JLabel liveLabel;   // live classification timing, kept apart from the status of background jobs
 
     private Random generator;
-    private Matrix[] theta;
-    private Matrix[] training;
-    private Matrix[] output;
-    private Matrix outputA2;
-    private double lambda;
+    private LabelledImages trainingData;   // only touched by background jobs; a store stays mapped until replaced
     private double alpha;
     private int numIterations;
-
-    private DecimalFormat decimalFormat;
+    private OutputLayer outputLayer;           // the kind of output layer the next training run uses
+    private PredictionCache predictionCache;   // null when caching is turned off
+    private ModelRegistry modelRegistry;       // the weights used for classification
+    private ExecutorService backgroundExecutor; // runs training, file classification and matrix reading
+    private Future<?> backgroundTask;          // the last job given to backgroundExecutor
+    private final Object publishLock = new Object();   // Cancel and publishUnlessCancelled() hold it
 
     public ClassifierWindow() {
         super("Digit Classifier", 780, 800);
@@ -95,7 +107,7 @@ public class ClassifierWindow extends WindowManager {
 
         String[] options = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9"};
 
-        myComboBox = new JComboBox(options);
+        myComboBox = new JComboBox<String>(options);
         myComboBox.setMaximumRowCount(options.length);
         myComboBox.addActionListener(this);
 
@@ -105,7 +117,7 @@ public class ClassifierWindow extends WindowManager {
 
         add(comboPanel, BorderLayout.NORTH);
         JPanel southPanel = new JPanel();
-        southPanel.setLayout(new GridLayout(2, 1));
+        southPanel.setLayout(new GridLayout(3, 1));
 
         add(southPanel, BorderLayout.SOUTH);
         JPanel eastPanel = new JPanel();
@@ -154,6 +166,10 @@ public class ClassifierWindow extends WindowManager {
         trainNetworkButton.addActionListener(this);
         bottomButtonPanel.add(trainNetworkButton);
 
+        outputLayerComboBox = new JComboBox<String>(new String[] {"Sigmoid output", "Softmax output"});
+        outputLayerComboBox.addActionListener(this);
+        bottomButtonPanel.add(outputLayerComboBox);
+
         saveThetasButton = new JButton("Save Thetas");
         saveThetasButton.setActionCommand("saveThetas");
         saveThetasButton.addActionListener(this);
@@ -169,51 +185,100 @@ public class ClassifierWindow extends WindowManager {
         classifyFromInputFileButton.addActionListener(this);
         bottomButtonPanel.add(classifyFromInputFileButton);
 
+        cancelButton = new JButton("Cancel");
+        cancelButton.setActionCommand("cancel");
+        cancelButton.addActionListener(this);
+        cancelButton.setEnabled(false);
+        bottomButtonPanel.add(cancelButton);
+
         southPanel.add(bottomButtonPanel);
 
+        JPanel statusPanel = new JPanel();
+        statusLabel = new JLabel("Ready");
+        statusPanel.add(statusLabel);
+        liveLabel = new JLabel("");
+        statusPanel.add(liveLabel);
+        southPanel.add(statusPanel);
+
         add(southPanel, BorderLayout.SOUTH);
 
-        JPanel gridPanel = new JPanel();
-        // set its layout to be a 7X7 grid and draw an empty padding border around
-        gridPanel.setLayout(new GridLayout(NUM_ROWS, NUM_COLS));
+        JPanel gridPanel = new JPanel(new BorderLayout());
         gridPanel.setBorder(BorderFactory.createEmptyBorder(10, 25, 0, 0));
 
-        // construct the array
-        myColorBoxes = new JLabel[NUM_ROWS][NUM_COLS];
-
-        // then walk through the array one-by-one...
-        for (int i = 0; i < myColorBoxes.length; i++) {
-            for (int j = 0; j < myColorBoxes[i].length; j++) {
-                // and construct each JLabel in the array
-                myColorBoxes[i][j] = new JLabel();
-
-                // add it to the panel
-                gridPanel.add(myColorBoxes[i][j]);
-
-                // make that background color show up (opaque becomes true)
-                myColorBoxes[i][j].setBackground(null);
-                myColorBoxes[i][j].setOpaque(true);
-
-                // make each JLabel listen for mouse clicks
-                myColorBoxes[i][j].addMouseListener(this);
+        myCanvas = new BitmapCanvas(NUM_ROWS, NUM_COLS);
+        liveClassification = Boolean.parseBoolean(System.getProperty("classifier.live", "true"));
+        myCanvas.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent event) {
+                if (liveClassification) {
+                    classifyLive();
+                }
             }
+        });
+        gridPanel.add(myCanvas, BorderLayout.CENTER);
+
+        // typing a digit records the drawing under that label and clears the canvas for the next one
+        for (int d = 0; d <= 9; d++) {
+            final int label = d;
+            String name = "record" + d;
+            getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke((char) ('0' + d)), name);
+            getRootPane().getActionMap().put(name, new AbstractAction() {
+                public void actionPerformed(ActionEvent event) {
+                    if (recordImage(label)) {
+                        clearImage();
+                    }
+                }
+            });
         }
 
-        // add the panel of JLabels to the center of the window
+        // add the canvas to the center of the window
         add(gridPanel, BorderLayout.CENTER);
 
-        myPenOn = false;
-
         generator = new Random(DEFAULT_SEED);
-        /* In our notes, the weight matrices are called theta1 and theta2.  So I do the same here for
-         * consistency.  What that means is that theta[0] remains null, and that you use theta[1] and theta[2].
-         */
-
-        theta = new Matrix[3];
-        lambda = DEFAULT_LAMBDA_VALUE;
         alpha = DEFAULT_ALPHA;
         numIterations = DEFAULT_NUM_ITERATIONS;
-        decimalFormat = new DecimalFormat("#####0.###############");
+        outputLayer = OutputLayer.SIGMOID;
+
+        int cacheSize = Integer.getInteger("classifier.cacheSize", DEFAULT_PREDICTION_CACHE_SIZE);
+        if (cacheSize > 0) {
+            predictionCache = new PredictionCache(cacheSize);
+        }
+
+        // one daemon thread, so at most one long job runs at a time and it never keeps the JVM alive
+        backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "classifier-background");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        modelRegistry = new ModelRegistry();
+        modelRegistry.addListener(new ModelRegistry.Listener() {
+            public void modelPublished(Model previous, Model current) {
+                if (predictionCache != null) {
+                    predictionCache.invalidate(current.getVersion());
+                }
+                if (liveClassification) {
+                    // the old session holds the old weights; start over and show what the new model says
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            inferenceSession = null;
+                            classifyLive();
+                        }
+                    });
+                }
+            }
+        });
+
+        // Run with -Dclassifier.modelDir=<dir> to pick up new weight files dropped into that directory.
+        String modelDirectory = System.getProperty("classifier.modelDir");
+        if (modelDirectory != null) {
+            try {
+                modelRegistry.watch(new File(modelDirectory));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
     }
 
@@ -225,20 +290,16 @@ public class ClassifierWindow extends WindowManager {
 
         } else if (actionCommand.equals(saveThetasButton.getActionCommand())) {
 
+            Model model = currentModel();
+            if (model == null) {
+                return;
+            }
             JFileChooser chooser = new JFileChooser(new File("."));
             int value = chooser.showSaveDialog(this);
             if (value == JFileChooser.APPROVE_OPTION) {
                 File file = chooser.getSelectedFile();
                 try {
-                    PrintWriter outputFile = new PrintWriter(file);
-
-                    theta[1].print(outputFile, decimalFormat, 22);
-                    outputFile.write("\n\n");
-                    theta[2].print(outputFile, decimalFormat, 22);
-
-                    outputFile.close();
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
+                    model.write(file);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -248,18 +309,23 @@ public class ClassifierWindow extends WindowManager {
             JFileChooser chooser = new JFileChooser(new File("."));
             int value = chooser.showOpenDialog(this);
             if (value == JFileChooser.APPROVE_OPTION) {
-                File file = chooser.getSelectedFile();
+                final File file = chooser.getSelectedFile();
+
+                runInBackground("Reading " + file.getName(), new Callable<String>() {
+                    public String call() throws IOException, InterruptedException {
+                        // parse and check the whole file first; classification only ever sees the finished model
+                        Model model = Model.read(file);
+                        publishUnlessCancelled(model);
+                        return "Loaded " + model;
+                    }
+                });
+            }
 
-                try {
-                    BufferedReader infile = new BufferedReader(new FileReader(file));
-                    theta[1] = Matrix.read(infile);
-                    theta[2] = Matrix.read(infile);
-                    infile.close();
-                } catch (FileNotFoundException e) {
+        } else if (actionCommand.equals(cancelButton.getActionCommand())) {
 
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            if (backgroundTask != null) {
+                synchronized (publishLock) {
+                    backgroundTask.cancel(true);   // the job notices the interrupt and stops at its next check
                 }
             }
 
@@ -273,151 +339,280 @@ public class ClassifierWindow extends WindowManager {
 
             System.exit(0);
         } else if (actionCommand.equals(classifyVectorButton.getActionCommand())) {
-            String imageVector = "";
-
-            for (int i = 0; i < myColorBoxes.length; i++) {
-                for (int j = 0; j < myColorBoxes[i].length; j++) {
-                    Color color = myColorBoxes[i][j].getBackground();
-                    imageVector = imageVector + getColorChar(color);
-                }
-
+            Model model = currentModel();
+            if (model == null) {
+                return;
             }
-
-            Matrix inputMatrix = inputStringToMatrix(imageVector);
-            Matrix resultMatrix = computeHypothesis(inputMatrix, theta[1], theta[2]);
+            long start = System.nanoTime();
+            Matrix resultMatrix = classifyImage(model, myCanvas.getBitmap());
+            long classifyNanos = System.nanoTime() - start;
             
             
             /*for(int i = 0; i < 10; i++){
             	System.out.println(resultMatrix.get(i, 0));
             }*/
 
-            int classifiedOutput = getMax(resultMatrix);
-
-            resultLabel.setText("Classified as:   " + classifiedOutput);
+            resultLabel.setText(describeTopClasses(resultMatrix.getColumnPackedCopy(), model));
+            showStatus(String.format("Classified in %.3f ms; canvas repaint takes %.3f ms on average",
+                classifyNanos / 1e6, myCanvas.getMeanPaintNanos() / 1e6));
             System.out.print("classification completed\n");
+            if (predictionCache != null) {
+                System.out.print(predictionCache + "\n");
+            }
             System.out.flush();
         } else if (actionCommand.equals(classifyFromInputFileButton.getActionCommand())) {
 
+            final Model model = currentModel();
+            if (model == null) {
+                return;
+            }
             JFileChooser chooser = new JFileChooser(new File("."));
             int value = chooser.showOpenDialog(this);
-            int numVectors;
-            int countCorrect = 0;
             if (value == JFileChooser.APPROVE_OPTION) {
-
-                File file = chooser.getSelectedFile();
-
-                try {
-                    Scanner scanner = new Scanner(file);
-                    String line;
-                    Scanner parseLine = null;
-
-                    String inputValue;
-                    String outputValue;
-
-                    Matrix inputVector;
-
-                    // determine how many training vectors are in the file. I do this by counting instances of the colon char.
-                    numVectors = 0;
-
-                    while (scanner.hasNextLine()) {
-                        line = scanner.nextLine();
-                        if (line.contains(":")) {
-                            ++numVectors;
-                        }
+                final File file = chooser.getSelectedFile();
+                runInBackground("Classifying " + file.getName(), new Callable<String>() {
+                    public String call() throws IOException, InterruptedException {
+                        return classifyFile(model, file);
                     }
+                });
+            }
 
-                    // At this point, numTrainingVectors has the true number of training vectors.
-                    // reset the scanner so it is at the beginning of the file
-                    scanner.close();
-                    scanner = new Scanner(file);
-
-                    Matrix resultMatrix;
-                    int classifiedOutput;
-                    int count = 0;
-
-                    while (scanner.hasNext()) {
-                        line = scanner.next().trim();
-                        if ((line.length() == 0) || (line.startsWith("#"))) {
-                            continue;
-                        }
-
-                        parseLine = new Scanner(line);
-                        parseLine.useDelimiter(":");
-
-                        inputValue = parseLine.next().trim();
-                        outputValue = parseLine.next().trim();
-
-                        // this matrix already has a bias unit
-                        inputVector = inputStringToMatrix(inputValue);
-
-                        resultMatrix = computeHypothesis(inputVector, theta[1], theta[2]);
-
-                        classifiedOutput = getMax(resultMatrix);
+        }
+    }
 
-                        if (classifiedOutput == Integer.parseInt(outputValue)) {
-                            ++countCorrect;
-                        }
+    /* Classifies every vector in an .input file with the given model and reports how many came out right.
+     * Runs on the background thread.
+     */
+    private String classifyFile(Model model, File file) throws IOException, InterruptedException {
+        int numVectors = 0;
+        int countCorrect = 0;
+        SampleReader reader = new SampleReader(file);
+        try {
+            while (reader.next()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                ++numVectors;
+                Matrix resultMatrix = classifyImage(model, reader.getImage());
+                if (getMax(resultMatrix) == reader.getLabel()) {
+                    ++countCorrect;
+                }
+            }
+        } finally {
+            reader.close();
+        }
 
-                    }
-                    System.out.print("\n" + countCorrect + " vectors out of " + numVectors + "classified correctly!\n");
-                    int proportion = (int) (((countCorrect / (double) numVectors) * 100.0) + 0.5);
-                    //            Properties properties = System.getProperties();
-                    //            properties.list(System.out);
-                    System.out.print("Percent correctly classified: " + proportion + "\n");
-                    scanner.close();
-                    System.out.print("classification completed\n");
+        System.out.print("\n" + countCorrect + " vectors out of " + numVectors + " classified correctly!\n");
+        int proportion = (int) (((countCorrect / (double) numVectors) * 100.0) + 0.5);
+        System.out.print("Percent correctly classified: " + proportion + "\n");
+        System.out.print("classification completed\n");
+        if (predictionCache != null) {
+            System.out.print(predictionCache + "\n");
+        }
+        return countCorrect + " of " + numVectors + " classified correctly (" + proportion + "%)";
+    }
 
+    /* Starts a long job on the background thread so the window keeps responding, and shows its progress
+     * and result in the status line.  Only one job runs at a time; the buttons that start jobs are
+     * disabled until it finishes, and the Cancel button interrupts it.
+     */
+    private void runInBackground(final String description, final Callable<String> job) {
+        if (backgroundTask != null && !backgroundTask.isDone()) {
+            showStatus("Busy; cancel the current job first");
+            return;
+        }
+        setJobButtonsEnabled(false);
+        showStatus(description + "...");
+        backgroundTask = backgroundExecutor.submit(new Runnable() {
+            public void run() {
+                try {
+                    showStatus(job.call());
+                } catch (InterruptedException e) {
+                    showStatus(description + " cancelled");
                 } catch (Exception e) {
                     e.printStackTrace();
+                    showStatus(description + " failed: " + e);
+                } finally {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            setJobButtonsEnabled(true);
+                        }
+                    });
                 }
             }
+        });
+    }
 
+    private void setJobButtonsEnabled(boolean enabled) {
+        trainNetworkButton.setEnabled(enabled);
+        readMatricesButton.setEnabled(enabled);
+        classifyFromInputFileButton.setEnabled(enabled);
+        outputLayerComboBox.setEnabled(enabled);
+        cancelButton.setEnabled(!enabled);
+    }
+
+    /* Publishes a model made by a background job, unless the job has been cancelled.  A job can be
+     * inside a call that ignores interrupts (Model.read(), say) when Cancel is pressed, and would
+     * otherwise publish its result anyway once it gets out.  Cancel interrupts while holding
+     * publishLock, so the check and the publish cannot be split by it.
+     */
+    private void publishUnlessCancelled(Model model) throws InterruptedException {
+        synchronized (publishLock) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            modelRegistry.publish(model);
         }
     }
 
+    /* May be called from any thread; the label itself is only touched on the event thread.
+     */
+    private void showStatus(final String text) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                statusLabel.setText(text);
+            }
+        });
+    }
+
     private void trainMatrix() {
 
-        readTrainingData();
+        final File trainingFile = chooseTrainingFile();
+        if (trainingFile == null) {
+            return;
+        }
 
         /* Rather than just waste all the processing that goes into training a matrix,
-         * this method saves the matrices (theta[1] and theta[2]) to a file, so they can be read in 
+         * this method saves the matrices (theta1 and theta2) to a file, so they can be read in 
          * and used again.  I have provided the code that does the reading and writing of matrices.
          */
         // find out from the user which file they should use to save the matrices.
         JFileChooser chooser = new JFileChooser(new File("."));
         int value = chooser.showSaveDialog(this);
-        PrintWriter outputFile = null;
+        File outputFile = null;
 
         if (value == JFileChooser.APPROVE_OPTION) {
-            File file = chooser.getSelectedFile();
-            try {
-                outputFile = new PrintWriter(file);
+            outputFile = chooser.getSelectedFile();
+        }
 
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
+        // with weights of the right shape loaded, training can start from them instead of from random ones
+        final Model loaded = modelRegistry.current();
+        int choice = TRAIN_FROM_SCRATCH;
+        if (loaded != null && loaded.getInputDimension() == INPUT_VECTOR_DIMENSION
+            && loaded.getHiddenLayerSize() == HIDDEN_LAYER_SIZE) {
+            Object[] choices = {"From scratch", "Warm start from loaded weights", "Retrain output layer only"};
+            choice = JOptionPane.showOptionDialog(this, "Start training from the loaded weights?\n" + loaded,
+                "Training", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, choices, choices[1]);
+            if (choice < 0) {
+                return;
             }
         }
 
-        // So the first step in training the matrix is performing back propagation.
-        theta = performBackPropagation();
+        // the dialogs had to run here on the event thread; everything after them can take minutes
+        final File modelFile = outputFile;
+        final int mode = choice;
+        // the combo box is disabled while the job runs, but the job must not read the field either
+        final OutputLayer layer = outputLayer;
+        runInBackground("Training", new Callable<String>() {
+            public String call() throws IOException, InterruptedException {
+                readTrainingData(trainingFile);
+
+                Model model;
+                if (mode == TRAIN_OUTPUT_LAYER) {
+                    // theta1 stays as it is; only theta2 is trained, on cached hidden activations
+                    showStatus("Computing hidden activations");
+                    HeadTrainer headTrainer = new HeadTrainer(loaded, trainingData, null);
+                    try {
+                        showStatus("Retraining the output layer");
+                        model = headTrainer.train(HeadTrainer.DEFAULT_EPOCHS, DEFAULT_ALPHA, layer);
+                    } finally {
+                        headTrainer.close();
+                    }
+                } else {
+                    // So the first step in training the matrix is performing back propagation.
+                    model = performBackPropagation((mode == TRAIN_WARM_START) ? loaded : null, layer);
+                }
 
-        theta[1].print(outputFile, decimalFormat, 22);
-        outputFile.write("\n\n");
-        theta[2].print(outputFile, decimalFormat, 22);
+                // the finished weights reach the window (and everyone else) through one registry swap
+                publishUnlessCancelled(model);
 
-        outputFile.close();
+                if (modelFile != null) {
+                    model.write(modelFile);
+                }
+                return "Training finished: " + model;
+            }
+        });
 
     }
 
+    /* Runs the given model on a packed image, going through the prediction cache when it is turned on.
+     * A cache hit skips computeHypothesis() entirely.  Callers take the model from currentModel() once
+     * and pass the same one for the whole request, so a hot swap halfway through cannot mix weights.
+     */
+    private Matrix classifyImage(Model model, PackedBitmap image) {
+        if (predictionCache != null) {
+            double[] cached = predictionCache.get(image, model.getVersion());
+            if (cached != null) {
+                return new Matrix(cached, cached.length);
+            }
+        }
+
+        double[] hypothesis = NeuralNetwork.computeHypothesis(NeuralNetwork.toInput(image, model.getInputDimension()), model);
+
+        if (predictionCache != null) {
+            predictionCache.put(image, hypothesis.clone(), model.getVersion());
+        }
+        return new Matrix(hypothesis, hypothesis.length);
+    }
+
+    /* Updates the result label for the drawing as it is now, from the incremental inference session.
+     * Called on the event dispatch thread after every stroke; with nothing loaded it does nothing.
+     */
+    private void classifyLive() {
+        Model model = modelRegistry.current();
+        if (model == null) {
+            return;
+        }
+        if (inferenceSession == null || inferenceSession.getModel() != model) {
+            inferenceSession = new InferenceSession(model);
+        }
+        double[] hypothesis = inferenceSession.update(myCanvas.getBitmap());
+        resultLabel.setText(describeTopClasses(hypothesis, model));
+        liveLabel.setText(String.format("Live: %d pixel(s) changed, classified in %.3f ms",
+            inferenceSession.getLastChangedPixels(), inferenceSession.getLastUpdateNanos() / 1e6));
+    }
+
+    /* Text for the result label: the winning digit followed by the runners up and their outputs.  For
+     * a softmax model those outputs are probabilities; for a sigmoid model they are independent scores.
+     */
+    private String describeTopClasses(double[] hypothesis, Model model) {
+        int[] top = NeuralNetwork.topK(hypothesis, NUM_TOP_CLASSES_SHOWN);
+        StringBuilder text = new StringBuilder("<html>Classified as:   " + top[0] + "<br>");
+        text.append(model.getOutputLayer() == OutputLayer.SOFTMAX ? "Probabilities:" : "Scores:");
+        for (int i = 0; i < top.length; i++) {
+            text.append("<br>").append(top[i]).append(String.format(":  %.3f", hypothesis[top[i]]));
+        }
+        return text.append("</html>").toString();
+    }
+
+    /* Returns the model classification should use right now, or null (after telling the user) if
+     * no weights have been trained or read yet.
+     */
+    private Model currentModel() {
+        Model model = modelRegistry.current();
+        if (model == null) {
+            System.out.print("No weights loaded: train the network or read matrices first\n");
+        }
+        return model;
+    }
+
     /* This method assumes that the input is a column vector (that is, a matrix with only a single
      * row.  It goes through the values in the matrix, and returns the ROW INDEX of the largest entry in the
      * matrix
      */
     private int getMax(Matrix m) {
         int index = 0;
-        double max = Double.MIN_VALUE;
+        double max = Double.NEGATIVE_INFINITY;
         for (int i = 0; i < NUM_OUTPUT_CLASSES; i++) {
             if (m.get(i, 0) > max) {
                 index = i;
@@ -429,171 +624,102 @@ public class ClassifierWindow extends WindowManager {
 
     /* 
      * This method assumes that the readTrainingData() method has been previously run, so
-     * that the training and output arrays have already been filled.  If this assumption is not
+     * that trainingData has already been filled.  If this assumption is not
      * valid, this method will likely throw a NullPointerException.  IMPORTANT: AN ASSUMPTION OF THIS
      * METHOD SHOULD BE THAT THE TRAINING VECTORS IN THE input ARRAY DO NOT HAVE BIAS UNITS.  You will
      * have to write code that adds that bias unit before you can perform back propagation with the
      * vectors.
+     *
+     * Runs on the background thread, so it keeps its matrices in local variables rather than in the
+     * theta field and uses the output layer it is given rather than the one currently selected.
      */
-    private Matrix[] performBackPropagation() {
+    private Model performBackPropagation(Model start, OutputLayer layer) throws InterruptedException {
         // This neural network has only three layers, so only two theta matrices
-        theta[1] = createInitialTheta(HIDDEN_LAYER_SIZE, INPUT_VECTOR_DIMENSION + 1);
-        theta[2] = createInitialTheta(NUM_OUTPUT_CLASSES, HIDDEN_LAYER_SIZE + 1);
+        Matrix theta1;
+        Matrix theta2;
+        if (start != null) {
+            // warm start from copies, so the model we start from (which may be in use) never changes;
+            // nothing else sees the copies until training is over, so they are updated in place
+            theta1 = start.getTheta1().copy();
+            theta2 = start.getTheta2().copy();
+        } else {
+            theta1 = createInitialTheta(HIDDEN_LAYER_SIZE, INPUT_VECTOR_DIMENSION + 1);
+            theta2 = createInitialTheta(NUM_OUTPUT_CLASSES, HIDDEN_LAYER_SIZE + 1);
+        }
     	
         
-        for(int iterations = 1; iterations <= DEFAULT_NUM_ITERATIONS; iterations++){
-        	Matrix delta1 = new Matrix(HIDDEN_LAYER_SIZE,HIDDEN_LAYER_SIZE+1);
-            Matrix delta2 = new Matrix(NUM_OUTPUT_CLASSES,HIDDEN_LAYER_SIZE+1);
-        	
-        	if(iterations%10==0){
-        		System.out.println(iterations);
-        	}
-        	for(int i = 0; i < training.length; i++){
-            	Matrix forward = computeHypothesis(training[i], theta[1], theta[2]);
-            	Matrix err3 = new Matrix(NUM_OUTPUT_CLASSES,1);
-            	for(int j = 0; j < NUM_OUTPUT_CLASSES; j++){
-            		err3.set(j, 0, forward.get(j, 0) - output[i].get(j, 0));
-            	}
-            	Matrix err2 = new Matrix(HIDDEN_LAYER_SIZE+1,1);
-            	err2 = (theta[2].transpose()).times(err3);
-            	
-            	for(int k = 0; k < HIDDEN_LAYER_SIZE+1; k++){
-            		err2.set(k, 0, err2.get(k, 0)*outputA2.get(k, 0)*(1-outputA2.get(k, 0)));
-            	}
-            	
-            	delta2 = delta2.plus(err3.times(outputA2.transpose()));
-            	Matrix updateErr2 = new Matrix(HIDDEN_LAYER_SIZE,1);
-            	Matrix updateA = new Matrix(HIDDEN_LAYER_SIZE+1,1);
-            	updateA.set(0, 0, 1);
-            	for(int l = 0; l < HIDDEN_LAYER_SIZE; l++){
-            		updateErr2.set(l, 0, err2.get(l+1, 0));
-            		updateA.set(l+1, 0, training[i].get(l, 0));
-            	}
-            	
-            	delta1 = delta1.plus(updateErr2.times(updateA.transpose()));
-            }
-        	
-        	/*
-        	if(iterations%100==0){
-        		Matrix[] v = gradientCheck(training, output, theta, lambda);
-        		System.out.println("NOW GRADIENT CHECKING: ");
-        		for(int z = 0; z < delta1.getRowDimension(); z++){
-            		for(int x = 0; x < delta1.getColumnDimension(); x++){
-            			System.out.print(delta1.times(1/training.length).get(z, x)-v[1].get(z, x)+ " ");
-            		}
-            		System.out.println();
-            	}
-        	}*/
-        	
-        	
-        	theta[1] = theta[1].minus(delta1.times(DEFAULT_ALPHA/training.length));
-        	theta[2] = theta[2].minus(delta2.times(DEFAULT_ALPHA/training.length));
-        	
-        	//System.out.println("JVALUE: " + jTheta(training, output, theta, lambda));
-        }
-
-        return theta;
-    }
-
-    private void readTrainingData() {
-        JFileChooser chooser = new JFileChooser(new File("."));
-        int value = chooser.showOpenDialog(this);
-        if (value == JFileChooser.APPROVE_OPTION) {
-
-            File file = chooser.getSelectedFile();
-
-            try {
-                Scanner scanner = new Scanner(file);
-                String line;
-                Scanner parseLine = null;
-
-                String inputValue;
-                String outputValue;
-
-                Matrix inputVector;
-                Matrix yVector;
-
-                // determine how many training vectors are in the file. I do this by counting instances of the colon char.
-                int numTrainingVectors = 0;
-
-                while (scanner.hasNextLine()) {
-                    line = scanner.nextLine();
-                    if (line.contains(":")) {
-                        ++numTrainingVectors;
-                    }
+        /* Mini-batch gradient descent.  The BatchLoader shuffles the examples every epoch and decodes the
+         * next batch on its own thread while we work on this one.
+         */
+        Matrix delta1 = new Matrix(HIDDEN_LAYER_SIZE, INPUT_VECTOR_DIMENSION + 1);
+        Matrix delta2 = new Matrix(NUM_OUTPUT_CLASSES, HIDDEN_LAYER_SIZE + 1);
+        // Run with -Dclassifier.augment=true to train on randomly shifted/rotated/thickened copies of the drawings.
+        Augmenter augmenter = Boolean.getBoolean("classifier.augment") ? new Augmenter() : null;
+        // Run with -Dclassifier.balanced=true to draw every digit equally often, however lopsided the file is.
+        boolean balanced = Boolean.getBoolean("classifier.balanced");
+        BatchLoader loader = new BatchLoader(trainingData, augmenter, balanced, DEFAULT_BATCH_SIZE,
+            INPUT_VECTOR_DIMENSION, DEFAULT_SEED, DEFAULT_NUM_ITERATIONS);
+        long epochStart = System.nanoTime();
+        double epochCost = 0;
+        try {
+            BatchLoader.Batch batch;
+            while ((batch = loader.take()) != null) {
+                if (Thread.interrupted()) {
+                    // the Cancel button; give up without publishing anything
+                    throw new InterruptedException();
                 }
-
-                // At this point, numTrainingVectors has the true number of training vectors.
-                // reset the scanner so it is at the beginning of the file
-                scanner.close();
-                scanner = new Scanner(file);
-
-                training = new Matrix[numTrainingVectors];
-                output = new Matrix[numTrainingVectors];
-                int index = 0;
-
-                while (scanner.hasNext()) {
-                    line = scanner.next().trim();
-                    if ((line.length() == 0) || (line.startsWith("#"))) {
-                        continue;
+                NeuralNetwork.clear(delta1);
+                NeuralNetwork.clear(delta2);
+                // the whole batch goes through the backend's matrix products at once
+                double[][] hypotheses = NeuralNetwork.accumulateBatchGradient(batch.inputs, batch.labels, batch.size,
+                    theta1, theta2, layer, delta1, delta2);
+                for (int i = 0; i < batch.size; i++) {
+                    epochCost -= Math.log(Math.max(hypotheses[i][batch.labels[i]], 1e-300));
+                }
+                NeuralNetwork.step(theta1, delta1, DEFAULT_ALPHA / batch.size);
+                NeuralNetwork.step(theta2, delta2, DEFAULT_ALPHA / batch.size);
+
+                if (batch.endOfEpoch) {
+                    long now = System.nanoTime();
+                    showStatus(String.format("Epoch %d of %d:  mean -log p(label) %.4f,  %.0f samples/sec",
+                        batch.epoch, DEFAULT_NUM_ITERATIONS, epochCost / trainingData.size(),
+                        trainingData.size() * 1e9 / (now - epochStart)));
+                    if (batch.epoch % 10 == 0) {
+                        System.out.println(batch.epoch);
                     }
-
-                    parseLine = new Scanner(line);
-                    parseLine.useDelimiter(":");
-
-                    inputValue = parseLine.next().trim();
-                    outputValue = parseLine.next().trim();
-
-                    // Make matrices out of these strings
-                    /* One note: the method inputStringToMatrix() should NOT add the bias term to the input vector
-                     * That is done by the method computeHypothesis().
-                     */
-                    training[index] = inputStringToMatrix(inputValue);
-                    output[index] = vectorizeY(outputValue);
-                    ++index;
-
+                    epochStart = now;
+                    epochCost = 0;
                 }
-
-            } catch (Exception e) {
-                e.printStackTrace();
+                loader.release(batch);
             }
+        } finally {
+            loader.close();
         }
+        System.out.print("Waited " + (loader.getWaitNanos() / 1000000) + " ms for training data\n");
 
+        return new Model(theta1, theta2, layer, "trained");
     }
 
-    /* This method should take as input a String representing a single digit (the correct digit) and creates the
-     * correct output matrix for that digit.  So, for example, if the input String is "4", the output matrix should
-     * be the 10 x 1 matrix
-     * 
-     *     0
-     *     0
-     *     0
-     *     0
-     *     1
-     *     0
-     *     0
-     *     0
-     *     0
-     *     0
-     *  
+    /* Asks the user for the file of training vectors.  Returns null if they cancel.
      */
-    private static Matrix vectorizeY(String yValue) {
-        Matrix vector = new Matrix(NUM_OUTPUT_CLASSES, 1);
-        vector.set(Integer.parseInt(yValue), 0, 1);
-        return vector;
+    private File chooseTrainingFile() {
+        JFileChooser chooser = new JFileChooser(new File("."));
+        int value = chooser.showOpenDialog(this);
+        if (value == JFileChooser.APPROVE_OPTION) {
+            return chooser.getSelectedFile();
+        }
+        return null;
     }
 
-    /* This method takes as input a String representing the binary representation of a digit.  Since the String should
-     * have length INPUT_VECTOR_DIMENSION, one should end up with a matrix that has dimensions
-     * INPUT_VECTOR_DIMENSION x 1.  Note that the 
-     * 
-     */
-    private static Matrix inputStringToMatrix(String input) {
-    	Matrix vector = new Matrix(INPUT_VECTOR_DIMENSION, 1);
-    	for(int i = 0; i < INPUT_VECTOR_DIMENSION; i++){
-    		vector.set(i, 0, Character.getNumericValue(input.charAt(i)));
-    	}
-        return vector;
+    private void readTrainingData(File file) throws IOException {
+        if (trainingData != null) {
+            trainingData.close();
+            trainingData = null;
+        }
+        // one pass, no counting first: the vectors are kept packed until a batch needs them, and a
+        // DatasetStore is mapped rather than read, so it may be larger than the heap
+        trainingData = Dataset.open(file);
+        System.out.print("Read " + trainingData.size() + " training vectors\n");
     }
 
     /* This method takes as input the size (number of rows and number of cols) of a matrix, and creates a matrix
@@ -611,56 +737,6 @@ public class ClassifierWindow extends WindowManager {
 
     }
 
-    /* 
-     * This method takes a double as input, and output the value of the logistic function when applied to x.
-     */
-    private double logisticFunction(double x) {
-
-        return (1/(1+Math.exp(0-x)));
-
-    }
-
-    /* 
-     * This method takes as input column vector, and creates a matrix whose entries are
-     * the values of the logistic function performed on the entries of the input matrix.
-     */
-    private Matrix logisticFunction(Matrix x) {
-    	Matrix vector = new Matrix(x.getRowDimension(), 1);
-    	for(int i = 0; i < x.getRowDimension(); i++){
-    		vector.set(i, 0, logisticFunction(x.get(i, 0)));
-    	}
-        return vector;
-    }
-
-    /* 
-     * This method takes as input a single input vector (without bias unit -- you'll need to add that), along with the weight matrices, and
-     * computes the output vector of the neural network. That is, it performs forward propagation.
-     */
-    private Matrix computeHypothesis(Matrix input, Matrix theta1, Matrix theta2) {
-        
-        //adding bias unit
-        Matrix a1 = new Matrix(input.getRowDimension() + 1, 1);
-        a1.set(0, 0, 1);
-        for(int i = 0; i < input.getRowDimension(); i++){
-            a1.set(i+1, 0, input.get(i, 0));
-        }
-        //times weight
-        Matrix z2 = theta1.times(a1);
-        //apply logistic function
-        Matrix input2 = logisticFunction(z2);
-        
-        Matrix a2 = new Matrix(input2.getRowDimension() + 1, 1);
-        a2.set(0, 0, 1);
-        for(int j = 0; j < input2.getRowDimension(); j++){
-            a2.set(j+1, 0, input2.get(j, 0));
-        }
-        outputA2 = a2;
-        Matrix z3 = theta2.times(a2);
-        Matrix a3 = logisticFunction(z3);
-        return a3;
-
-    }
-
     /* This is a helper method.  It takes as input a matrix that results from the output of the neural network, and checks
      * that this vector is valid (all entries are between 0 and 1).  You may not need it.  I did.
      */
@@ -688,98 +764,6 @@ public class ClassifierWindow extends WindowManager {
 
     }
 
-    /* This method takes as input an array of matrices that represent the input training data, an array of matrices that represent
-     * the corresponding output data, an array of matrices that represent the weight matrices (well, the [1] and [2] index 
-     * members do), and the value of lambda.  It returns an array of matrices, each of which represents some (but not all) of
-     * the partial derivatives (with respect to the individual theta entries) of the theta matrices.  In particular, the
-     * [1] index matrix of the output should correspond to the partials of theta[1].  The [2] index matrix of the output should
-     * corresponds to the partials of theta[2].  When computing the partials, you should use GRADIENT_CHECKING_EPSILON
-     * as the value of epsilon for gradient approximation purposes.
-     */
-    private Matrix[] gradientCheck(Matrix[] trainingData, Matrix[] outputData, Matrix[] thetaValues, double lambdaValue) {
-    	Matrix[] vector = new Matrix[thetaValues.length];
-    	
-    	for(int i = 1; i < thetaValues.length; i++){
-    		vector[i] = new Matrix(thetaValues[i].getRowDimension(),thetaValues[i].getColumnDimension());
-    		
-    	}
-    	
-    	Matrix[] thetaPlus = new Matrix[thetaValues.length];
-		Matrix[] thetaMinus = new Matrix[thetaValues.length];
-		
-		for(int index = 1; index < vector.length; index++){
-			thetaPlus[index] = new Matrix(thetaValues[index].getRowDimension(),thetaValues[index].getColumnDimension());
-    		thetaMinus[index] = new Matrix(thetaValues[index].getRowDimension(),thetaValues[index].getColumnDimension());
-			for(int j = 0; j < thetaValues[index].getRowDimension(); j++){
-				for(int k = 0; k < thetaValues[index].getColumnDimension(); k++){
-					thetaPlus[index].set(j, k, thetaValues[index].get(j, k));
-					thetaMinus[index].set(j, k, thetaValues[index].get(j, k));
-				}
-			}
-		}
-    	
-    	
-    	for(int p = 1; p < vector.length; p++){   		
-    		for(int q = 0; q < thetaValues[p].getRowDimension(); q++){
-    			for(int r = 0; r < thetaValues[p].getColumnDimension(); r++){
-    				thetaPlus[p].set(q, r, thetaValues[p].get(q, r)+GRADIENT_CHECKING_EPSILON);
-					thetaMinus[p].set(q, r, thetaValues[p].get(q, r)-GRADIENT_CHECKING_EPSILON);
-    				double derivative = (jTheta(trainingData,outputData,thetaPlus,lambdaValue)-jTheta(trainingData,outputData,thetaMinus,lambdaValue))/(2*GRADIENT_CHECKING_EPSILON);
-    				vector[p].set(q, r, derivative);
-    				thetaPlus[p].set(q, r, thetaValues[p].get(q, r));
-					thetaMinus[p].set(q, r, thetaValues[p].get(q, r));
-    			}
-    		}
-    	}
-    	
-        return vector;
-    }
-
-    /* 
-     * This method takes as input an array of matrices that represent the input training data, an array of matrices that represent
-     * the corresponding output data, an array of matrices that represent the weight matrices (well, the [1] and [2] index 
-     * members do), and the value of lambda.  It returns a double value that represents the value of the cost function J(theta) for
-     * this choice of training data, theta values, and lambda.
-     */
-    private double jTheta(Matrix[] trainingData, Matrix[] outputData, Matrix[] thetaValues, double lambdaValue) {
-        double jTheta = 0;
-        for (int i = 0; i < trainingData.length; i++){
-            Matrix hyp = computeHypothesis(trainingData[i],theta[1],theta[2]);
-            for (int k = 0; k < NUM_OUTPUT_CLASSES; k++){
-                jTheta += outputData[i].get(k,0)*Math.log(hyp.get(k,0))+(1-outputData[i].get(k,0))*Math.log(1-hyp.get(k,0));
-            }
-        }
-        //System.out.println("JTheta is now " + jTheta + " M = " + trainingData.length);
-        jTheta *= ((double)-1/trainingData.length);
-        //System.out.println("JTheta without regularization: " + jTheta);
-        double reg = 0;
-        
-        for (int l = 1; l < thetaValues.length - 1; l++)
-            reg += sumSquaredMatrixEntries(thetaValues[l]);
-        
-        jTheta += (reg*lambdaValue/(2*trainingData.length));
-        //System.out.println("reg is: " + (reg*lambdaValue/(2*trainingData.length)) + "JVALUE final: " + jTheta);
-
-        return jTheta;
-
-    }
-
-    /* You don't have to code this, but you might find it helpful for computing jTheta.  
-     * It takes as input a matrix.  It computes the sum of the squares of each matrix entry,
-     * with the exception of the first column of the matrix, which it ignores.
-     */
-    private double sumSquaredMatrixEntries(Matrix m) {
-        double sum = 0;
-        // Matrix square = m.times(m);
-        for (int i = 0; i < m.getRowDimension(); i++){
-            for (int j = 1; j < m.getColumnDimension(); j++){
-                double entry = m.get(i,j);
-                sum += (entry * entry); 
-            }
-        }
-        return sum;
-    }
-
     /* A helper method.  When debugging, it's sometimes convenient to be able to easily print out the dimensions of 
      * a matrix, along with a string that identifies to you which matrix this method is measuring.
      */
@@ -789,62 +773,8 @@ public class ClassifierWindow extends WindowManager {
 
     }
 
-    public void mousePressed(MouseEvent event) {
-        myPenOn = true;
-    }
-
-    public void mouseReleased(MouseEvent event) {
-        myPenOn = false;
-    }
-
-    public void mouseEntered(MouseEvent e) {
-        mouseExited(e);
-    }
-
-    public void mouseExited(MouseEvent event) {
-        Component component = event.getComponent();
-        String componentType = component.getClass().getName();
-        // if the class type is a JLabel, call the abstract method 
-        // to be implemented by the extending class 
-        if (myPenOn && componentType.contains("JLabel")) {
-            JLabel box = (JLabel) component;
-            box.setBackground(BLACK);
-        }
-    }
-
-    //======================================================================
-    //* public void labelClicked( JLabel whichLabel )
-    //* This method is called whenever a JLabel is clicked.  Because only
-    //* the labels in our grid are listening, this will only apply to those
-    //* labels in the grid (and not the label at the bottom of the window).
-    //======================================================================
-    public void labelClicked(JLabel whichLabel) {
-        // just set the label's color to the current color
-
-        Color currentLabelBackgroundColor = whichLabel.getBackground();
-        Color panelBackgroundColor = (whichLabel.getParent()).getBackground();
-
-        if (currentLabelBackgroundColor.equals(BLACK)) {
-            whichLabel.setBackground(panelBackgroundColor);
-        } else {
-            whichLabel.setBackground(BLACK);
-        }
-    }
-
     public void clearImage() {
-        for (int i = 0; i < myColorBoxes.length; i++) {
-            for (int j = 0; j < myColorBoxes[i].length; j++) {
-                myColorBoxes[i][j].setBackground(null);
-            }
-        }
-    }
-
-    public char getColorChar(Color color) {
-        if (color.equals(Color.black)) {
-            return '1';
-        }
-
-        return '0';
+        myCanvas.clear();
     }
 
     public void saveImage() {
@@ -875,34 +805,57 @@ public class ClassifierWindow extends WindowManager {
             }
 
         }
-        JFileChooser chooser = new JFileChooser(new File("."));
-        int value = chooser.showSaveDialog(this);
-        if (value == JFileChooser.APPROVE_OPTION) {
-            File file = chooser.getSelectedFile();
-            try {
-                PrintWriter outputFile = new PrintWriter(new BufferedWriter(new FileWriter(file.getName(), true)));
-                String imageVector = "\n";
+        recordImage(Integer.parseInt(digit));
+    }
 
-                for (int i = 0; i < myColorBoxes.length; i++) {
-                    for (int j = 0; j < myColorBoxes[i].length; j++) {
-                        Color color = myColorBoxes[i][j].getBackground();
-                        imageVector = imageVector + getColorChar(color);
+    /* Appends the drawing with the given label to the recording file, asking for the file the first
+     * time only (or taking it from -Dclassifier.recordFile).  Names ending in .bin get the packed
+     * binary format.  Returns true if the drawing is in the file now (a duplicate is not written twice).
+     */
+    private boolean recordImage(int label) {
+        if (myCanvas.getBitmap().cardinality() == 0) {
+            showStatus("Nothing drawn, nothing recorded");
+            return false;
+        }
+        try {
+            if (sampleRecorder == null) {
+                File file;
+                String recordFile = System.getProperty("classifier.recordFile");
+                if (recordFile != null) {
+                    file = new File(recordFile);
+                } else {
+                    JFileChooser chooser = new JFileChooser(new File("."));
+                    if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+                        return false;
                     }
-
+                    file = chooser.getSelectedFile();
                 }
-                imageVector = imageVector + ":" + digit;
-                outputFile.write(imageVector);
-                outputFile.write("\n\n");
-                outputFile.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
+                sampleRecorder = new SampleRecorder(file);
+                final SampleRecorder recorder = sampleRecorder;
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        try {
+                            recorder.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
             }
+            boolean added = sampleRecorder.record(myCanvas.getBitmap(), label);
+            showStatus((added ? "Recorded a " + label : "Already recorded this " + label) + ". " + sampleRecorder);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
     }
 
     public void selectionMade(JComboBox whichComboBox) {
+        if (whichComboBox == outputLayerComboBox) {
+            outputLayer = (whichComboBox.getSelectedIndex() == 1) ? OutputLayer.SOFTMAX : OutputLayer.SIGMOID;
+            return;
+        }
         digit = ((String) whichComboBox.getSelectedItem()).trim();
         digitSelected = true;
     }
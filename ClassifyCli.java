@@ -0,0 +1,166 @@
+
+/**
+ * Classifies drawings from the command line without a window, for shell pipelines:
+ *
+ *   java ClassifierMain model-file [input-file | -] ...
+ *
+ * Every record ("0010...0110" or "0010...0110:7", separated by whitespace, '#' tokens
+ * skipped as usual) gets one line on standard output with the digit the network votes
+ * for.  Anything else is skipped with a note on standard error, like SampleReader does,
+ * rather than being classified as a blank drawing.  With no input files, or "-", records
+ * are read from standard input and each answer is flushed as soon as it is known.  If
+ * the records carry labels, the number classified correctly is printed to standard error
+ * at the end.
+ *
+ * Nothing here touches Swing, AWT or NeuralNetwork, and Jama only while a text weight
+ * file is converted, so the JVM loads few classes and starts quickly (and -Dnn.backend
+ * does not matter).  The model is a MappedModel; a weight file in the text
+ * format is converted once into "<model-file>.map" next to it, and that copy is used
+ * for as long as the text file has the length and modification time recorded in it.
+ * Where the copy cannot be written (a read-only directory, say) the text file is
+ * converted in memory on every run instead.  Run build-cds.sh to also put the
+ * loaded classes into a class data sharing archive.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+
+public final class ClassifyCli {
+
+    static final String MAPPED_SUFFIX = ".map";
+
+    private ClassifyCli() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.print("Usage: java ClassifierMain model-file [input-file | -] ...\n");
+            System.exit(2);
+        }
+        try {
+            MappedModel model = openModel(new File(args[0]));
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+            int[] counts = new int[2];   // labelled records, and how many of them were right
+            if (args.length == 1) {
+                classify(model, System.in, out, true, counts);
+            }
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("-")) {
+                    classify(model, System.in, out, true, counts);
+                } else {
+                    InputStream in = new FileInputStream(args[i]);
+                    try {
+                        classify(model, in, out, false, counts);
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+            out.flush();
+            if (counts[0] > 0) {
+                System.err.print(counts[1] + " of " + counts[0] + " labelled records correct\n");
+            }
+        } catch (IOException e) {
+            System.err.print(e.getMessage() + "\n");
+            System.exit(1);
+        }
+    }
+
+    /* Maps the model, converting a text weight file first if there is no up to date mapped copy.
+     */
+    public static MappedModel openModel(File file) throws IOException {
+        if (MappedModel.isMapped(file)) {
+            return MappedModel.open(file);
+        }
+        File mapped = new File(file.getPath() + MAPPED_SUFFIX);
+        if (mapped.exists()) {
+            try {
+                MappedModel copy = MappedModel.open(mapped);
+                if (copy.isCopyOf(file)) {
+                    return copy;
+                }
+            } catch (IOException e) {
+                // an old or damaged copy; convert again
+            }
+        }
+
+        long length = file.length();
+        long modified = file.lastModified();
+        Model model = Model.read(file);
+        if (file.getAbsoluteFile().getParentFile().canWrite()) {
+            try {
+                MappedModel.write(model, mapped, length, modified);
+                return MappedModel.open(mapped);
+            } catch (IOException e) {
+                System.err.print("Cannot write " + mapped + ": " + e.getMessage() + "\n");
+            }
+        }
+        return MappedModel.fromModel(model, length, modified);
+    }
+
+    private static void classify(MappedModel model, InputStream stream, Writer out, boolean flushEach, int[] counts)
+        throws IOException {
+        InputStream in = new BufferedInputStream(stream, 1 << 16);
+        StringBuilder token = new StringBuilder();
+        int c;
+        do {
+            c = in.read();
+            if (c >= 0 && !Character.isWhitespace(c)) {
+                token.append((char) c);
+                continue;
+            }
+            if (token.length() == 0 || token.charAt(0) == '#') {
+                token.setLength(0);
+                continue;
+            }
+            int colon = token.indexOf(":");
+            int length = (colon >= 0) ? colon : token.length();
+            if (!isRecord(token, length)) {
+                System.err.print("Skipping malformed record of length " + token.length() + "\n");
+                token.setLength(0);
+                continue;
+            }
+            int digit = argmax(model.computeHypothesis(PackedBitmap.fromString(token.substring(0, length))));
+            out.write(Integer.toString(digit));
+            out.write('\n');
+            if (flushEach) {
+                out.flush();
+            }
+            if (colon >= 0) {
+                ++counts[0];
+                if (token.charAt(colon + 1) - '0' == digit) {
+                    ++counts[1];
+                }
+            }
+            token.setLength(0);
+        } while (c >= 0);
+    }
+
+    /* True for pixels ('0' and '1' only, at least one) optionally followed by ':' and a single digit
+     * label; length is where the pixels end.
+     */
+    private static boolean isRecord(StringBuilder token, int length) {
+        if (length == 0) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = token.charAt(i);
+            if (c != '0' && c != '1') {
+                return false;
+            }
+        }
+        return length == token.length()
+            || (length == token.length() - 2 && Character.isDigit(token.charAt(length + 1)));
+    }
+
+    private static int argmax(double[] hypothesis) {
+        int best = 0;
+        for (int k = 1; k < hypothesis.length; k++) {
+            if (hypothesis[k] > hypothesis[best]) {
+                best = k;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,234 @@
+
+/**
+ * Trains a small convolutional network (ConvolutionLayer in front of a dense hidden layer)
+ * and the usual dense 256 hidden unit network on the same examples, and compares them:
+ * accuracy on held out examples, arithmetic per classification, accuracy per FLOP, and
+ * measured classification time for the dense path, the im2col convolution path and the
+ * direct binary convolution path.
+ *
+ * Every fifth example of the input file is held out for testing.  Both networks see all
+ * NUM_PIXELS pixels of each drawing, so the dense reference here is a 400 input network
+ * rather than the INPUT_VECTOR_DIMENSION input one the window trains; otherwise the
+ * comparison would be between models that do not get the same information.
+ *
+ * Usage:
+ *   java ConvolutionBenchmark [input-file] [epochs] [filters] [hidden-units]
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.util.Random;
+import Jama.Matrix;
+
+public class ConvolutionBenchmark {
+
+    private static final long DEFAULT_SEED = 478978392;
+    private static final double ALPHA = 0.5;
+    private static final double CONV_ALPHA = 0.5;
+    private static final int BATCH_SIZE = 32;
+    private static final int TIMING_REPEATS = 200;
+
+    public static void main(String[] args) throws Exception {
+        File file = new File((args.length > 0) ? args[0] : "trainingSet.input");
+        int epochs = (args.length > 1) ? Integer.parseInt(args[1]) : 30;
+        int numFilters = (args.length > 2) ? Integer.parseInt(args[2]) : 6;
+        int hidden = (args.length > 3) ? Integer.parseInt(args[3]) : 32;
+
+        LabelledImages all = Dataset.open(file);
+        try {
+            LabelledImages train = LabelledSubset.allBut(all, 5, 4);
+            LabelledImages test = LabelledSubset.every(all, 5, 4);
+            System.out.print(train.size() + " training and " + test.size() + " test examples, " + epochs
+                + " epochs\n\n");
+
+            // the dense network, trained the way the window does it but on every pixel
+            Random generator = new Random(DEFAULT_SEED);
+            int inputs = PackedBitmap.NUM_PIXELS;
+            Matrix[] dense = {
+                randomMatrix(NeuralNetwork.HIDDEN_LAYER_SIZE, inputs + 1, 1.0, generator),
+                randomMatrix(NeuralNetwork.NUM_OUTPUT_CLASSES, NeuralNetwork.HIDDEN_LAYER_SIZE + 1, 1.0, generator)};
+            long start = System.nanoTime();
+            trainDense(train, dense, inputs, epochs);
+            double denseTrainSeconds = (System.nanoTime() - start) / 1e9;
+
+            // the convolutional network
+            generator = new Random(DEFAULT_SEED);
+            ConvolutionLayer conv = new ConvolutionLayer(PackedBitmap.NUM_ROWS, PackedBitmap.NUM_COLS, numFilters,
+                generator);
+            // the features are real valued and many, so the +-1 initial weights would saturate every hidden unit
+            Matrix[] head = {
+                randomMatrix(hidden, conv.getOutputDimension() + 1, Math.sqrt(6.0 / (conv.getOutputDimension() + hidden)), generator),
+                randomMatrix(NeuralNetwork.NUM_OUTPUT_CLASSES, hidden + 1, 1.0, generator)};
+            start = System.nanoTime();
+            trainConvolutional(train, conv, head, epochs);
+            double convTrainSeconds = (System.nanoTime() - start) / 1e9;
+
+            // accuracy and timing
+            // both networks take the same input vectors
+            double[][] images = new double[test.size()][];
+            for (int i = 0; i < test.size(); i++) {
+                images[i] = NeuralNetwork.toInput(test.getImage(i), PackedBitmap.NUM_PIXELS);
+            }
+            double[][] denseInputs = images;
+            ConvolutionLayer.Activations act = conv.newActivations();
+
+            int denseCorrect = 0;
+            int convCorrect = 0;
+            for (int i = 0; i < test.size(); i++) {
+                int label = test.getLabel(i);
+                if (NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(denseInputs[i], dense[0], dense[1],
+                    OutputLayer.SIGMOID, null, null)) == label) {
+                    ++denseCorrect;
+                }
+                conv.forward(test.getImage(i), act);
+                if (NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(act.features, head[0], head[1],
+                    OutputLayer.SIGMOID, null, null)) == label) {
+                    ++convCorrect;
+                }
+            }
+
+            long sink = 0;
+            long denseNanos = Long.MAX_VALUE;
+            long im2colNanos = Long.MAX_VALUE;
+            long directNanos = Long.MAX_VALUE;
+            for (int repeat = 0; repeat < TIMING_REPEATS; repeat++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < test.size(); i++) {
+                    sink += NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(denseInputs[i], dense[0], dense[1],
+                        OutputLayer.SIGMOID, null, null));
+                }
+                long t1 = System.nanoTime();
+                for (int i = 0; i < test.size(); i++) {
+                    conv.forward(images[i], act);
+                    sink += NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(act.features, head[0], head[1],
+                        OutputLayer.SIGMOID, null, null));
+                }
+                long t2 = System.nanoTime();
+                for (int i = 0; i < test.size(); i++) {
+                    conv.forward(test.getImage(i), act);
+                    sink += NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(act.features, head[0], head[1],
+                        OutputLayer.SIGMOID, null, null));
+                }
+                long t3 = System.nanoTime();
+                denseNanos = Math.min(denseNanos, t1 - t0);
+                im2colNanos = Math.min(im2colNanos, t2 - t1);
+                directNanos = Math.min(directNanos, t3 - t2);
+            }
+
+            double inkFraction = 0;
+            for (int i = 0; i < test.size(); i++) {
+                inkFraction += test.getImage(i).cardinality() / (double) PackedBitmap.NUM_PIXELS;
+            }
+            inkFraction /= test.size();
+
+            long denseFlops = denseFlops(dense);
+            long convFlops = conv.getForwardFlops() + denseFlops(head);
+            long directFlops = (long) (conv.getForwardFlops() * inkFraction) + denseFlops(head);
+            int n = test.size();
+
+            System.out.print(String.format("%-28s %9s %10s %10s %12s %11s%n",
+                "model", "weights", "accuracy", "kFLOPs", "acc/MFLOP", "us/digit"));
+            row("dense " + inputs + "-" + NeuralNetwork.HIDDEN_LAYER_SIZE + "-10", weights(dense), denseCorrect, n,
+                denseFlops, denseNanos);
+            row("conv " + numFilters + "x5x5 -" + hidden + "-10 im2col", weights(head) + numFilters * 26, convCorrect, n,
+                convFlops, im2colNanos);
+            row("conv " + numFilters + "x5x5 -" + hidden + "-10 direct", weights(head) + numFilters * 26, convCorrect, n,
+                directFlops, directNanos);
+            System.out.print(String.format("%nTraining time: dense %.1f s, convolutional %.1f s.  Mean ink %.1f%% of pixels.%s%n",
+                denseTrainSeconds, convTrainSeconds, 100 * inkFraction, (sink == 42) ? " " : ""));
+        } finally {
+            all.close();
+        }
+    }
+
+    private static void row(String name, long weights, int correct, int n, long flops, long nanos) {
+        double accuracy = correct / (double) n;
+        System.out.print(String.format("%-28s %9d %9.1f%% %10.1f %12.2f %11.2f%n",
+            name, weights, 100 * accuracy, flops / 1e3, accuracy / (flops / 1e6), nanos / 1e3 / n));
+    }
+
+    private static void trainDense(LabelledImages train, Matrix[] theta, int inputs, int epochs)
+        throws InterruptedException {
+        Matrix delta1 = new Matrix(theta[0].getRowDimension(), theta[0].getColumnDimension());
+        Matrix delta2 = new Matrix(theta[1].getRowDimension(), theta[1].getColumnDimension());
+        BatchLoader loader = new BatchLoader(train, BATCH_SIZE, inputs, DEFAULT_SEED, epochs);
+        try {
+            BatchLoader.Batch batch;
+            while ((batch = loader.take()) != null) {
+                NeuralNetwork.clear(delta1);
+                NeuralNetwork.clear(delta2);
+                for (int i = 0; i < batch.size; i++) {
+                    NeuralNetwork.accumulateGradient(batch.inputs[i], NeuralNetwork.vectorizeY(batch.labels[i]),
+                        theta[0], theta[1], OutputLayer.SIGMOID, delta1, delta2);
+                }
+                NeuralNetwork.step(theta[0], delta1, ALPHA / batch.size);
+                NeuralNetwork.step(theta[1], delta2, ALPHA / batch.size);
+                loader.release(batch);
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    private static void trainConvolutional(LabelledImages train, ConvolutionLayer conv, Matrix[] theta, int epochs)
+        throws InterruptedException {
+        Matrix delta1 = new Matrix(theta[0].getRowDimension(), theta[0].getColumnDimension());
+        Matrix delta2 = new Matrix(theta[1].getRowDimension(), theta[1].getColumnDimension());
+        double[][] filterGradient = conv.newFilterGradient();
+        double[] biasGradient = new double[conv.getNumFilters()];
+        double[] featureError = new double[conv.getOutputDimension()];
+        ConvolutionLayer.Activations act = conv.newActivations();
+
+        BatchLoader loader = new BatchLoader(train, BATCH_SIZE, PackedBitmap.NUM_PIXELS, DEFAULT_SEED, epochs);
+        try {
+            BatchLoader.Batch batch;
+            while ((batch = loader.take()) != null) {
+                NeuralNetwork.clear(delta1);
+                NeuralNetwork.clear(delta2);
+                for (int k = 0; k < filterGradient.length; k++) {
+                    java.util.Arrays.fill(filterGradient[k], 0);
+                }
+                java.util.Arrays.fill(biasGradient, 0);
+
+                for (int i = 0; i < batch.size; i++) {
+                    conv.forward(batch.inputs[i], act);
+                    NeuralNetwork.accumulateGradient(act.features, NeuralNetwork.vectorizeY(batch.labels[i]),
+                        theta[0], theta[1], OutputLayer.SIGMOID, delta1, delta2, featureError);
+                    conv.backward(batch.inputs[i], act, featureError, filterGradient, biasGradient);
+                }
+                NeuralNetwork.step(theta[0], delta1, ALPHA / batch.size);
+                NeuralNetwork.step(theta[1], delta2, ALPHA / batch.size);
+                conv.step(filterGradient, biasGradient, CONV_ALPHA / batch.size);
+                loader.release(batch);
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    /* Uniform random entries between -epsilon and +epsilon, like createInitialTheta().
+     */
+    private static Matrix randomMatrix(int rows, int cols, double epsilon, Random generator) {
+        Matrix m = new Matrix(rows, cols);
+        double[][] entries = m.getArray();
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                entries[i][j] = (generator.nextDouble() * 2 - 1) * epsilon;
+            }
+        }
+        return m;
+    }
+
+    private static long denseFlops(Matrix[] theta) {
+        return 2L * (weights(theta));
+    }
+
+    private static long weights(Matrix[] theta) {
+        long count = 0;
+        for (Matrix m : theta) {
+            count += (long) m.getRowDimension() * m.getColumnDimension();
+        }
+        return count;
+    }
+}
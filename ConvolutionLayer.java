@@ -0,0 +1,242 @@
+
+/**
+ * A convolution + max pooling layer for the drawing grid, meant to sit in front of the
+ * usual two theta matrices.  Instead of giving every hidden unit its own weight for
+ * every pixel, a handful of small 5 x 5 filters are slid over the whole 20 x 20 image
+ * (every position where they fit, so 16 x 16 of them), passed through a rectifier
+ * (max(0, x)) and reduced by taking the maximum of every 2 x 2 block.  With 6 filters
+ * that leaves 6 x 8 x 8 = 384 features for theta1 to work on, learned with only
+ * 6 x 26 weights.
+ *
+ * There are two ways to run the layer forward, with identical results:
+ *
+ *   forward(double[], ...)       im2col: copy every 5 x 5 patch into one row of a
+ *                                (positions x 25) matrix and multiply it by the
+ *                                (25 x filters) weight matrix, the standard way.
+ *
+ *   forward(PackedBitmap, ...)   direct binary: our pixels are only ever 0 or 1, so
+ *                                instead of multiplying, each pixel that is on adds its
+ *                                filter weights to the outputs it touches.  Drawings
+ *                                have far more paper than ink, so this skips most of
+ *                                the work.
+ *
+ * backward() adds the filter gradients for one example, given the derivative of the cost
+ * with respect to the features (see NeuralNetwork.accumulateGradient()).
+ *
+ * The layer's weights are shared by all threads; the per-example intermediate values
+ * live in an Activations object, one per thread.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.util.Random;
+
+public class ConvolutionLayer {
+
+    public static final int KERNEL_SIZE = 5;
+    public static final int POOL_SIZE = 2;
+    private static final int PATCH = KERNEL_SIZE * KERNEL_SIZE;
+
+    private final int rows;
+    private final int cols;
+    private final int numFilters;
+    private final int convRows;
+    private final int convCols;
+    private final int pooledRows;
+    private final int pooledCols;
+
+    private final double[][] filters;   // numFilters x 25, row-major within the 5 x 5 kernel
+    private final double[] bias;
+
+    /* Everything one forward pass produces that backward() needs again.
+     */
+    public final class Activations {
+        final double[] patches = new double[convRows * convCols * PATCH];   // the im2col matrix
+        final double[] conv = new double[numFilters * convRows * convCols]; // rectified filter outputs
+        final int[] winner = new int[numFilters * pooledRows * pooledCols]; // which conv output each pool kept
+        public final double[] features = new double[numFilters * pooledRows * pooledCols];
+    }
+
+    public ConvolutionLayer(int rows, int cols, int numFilters, Random generator) {
+        this.rows = rows;
+        this.cols = cols;
+        this.numFilters = numFilters;
+        this.convRows = rows - KERNEL_SIZE + 1;
+        this.convCols = cols - KERNEL_SIZE + 1;
+        this.pooledRows = convRows / POOL_SIZE;
+        this.pooledCols = convCols / POOL_SIZE;
+
+        // scaled so that a fully inked patch gives an output of order 1
+        double scale = Math.sqrt(6.0 / PATCH);
+        filters = new double[numFilters][PATCH];
+        bias = new double[numFilters];
+        for (int k = 0; k < numFilters; k++) {
+            for (int p = 0; p < PATCH; p++) {
+                filters[k][p] = (generator.nextDouble() * 2 - 1) * scale;
+            }
+            bias[k] = 0.1;
+        }
+    }
+
+    public Activations newActivations() {
+        return new Activations();
+    }
+
+    public int getNumFilters() {
+        return numFilters;
+    }
+
+    public int getOutputDimension() {
+        return numFilters * pooledRows * pooledCols;
+    }
+
+    /* Multiply-adds per forward pass on the im2col path.
+     */
+    public long getForwardFlops() {
+        return 2L * convRows * convCols * PATCH * numFilters;
+    }
+
+    /* im2col + GEMM forward pass on an image of rows * cols input units.
+     */
+    public void forward(double[] image, Activations act) {
+        double[] patches = act.patches;
+        int positions = convRows * convCols;
+        for (int r = 0, row = 0; r < convRows; r++) {
+            for (int c = 0; c < convCols; c++, row += PATCH) {
+                for (int i = 0; i < KERNEL_SIZE; i++) {
+                    System.arraycopy(image, (r + i) * cols + c, patches, row + i * KERNEL_SIZE, KERNEL_SIZE);
+                }
+            }
+        }
+
+        // (positions x 25) times (25 x numFilters), written out filter by filter
+        double[] conv = act.conv;
+        for (int k = 0; k < numFilters; k++) {
+            double[] w = filters[k];
+            double b = bias[k];
+            int out = k * positions;
+            for (int pos = 0, row = 0; pos < positions; pos++, row += PATCH) {
+                double sum = b;
+                for (int p = 0; p < PATCH; p++) {
+                    sum += patches[row + p] * w[p];
+                }
+                conv[out + pos] = sum;
+            }
+        }
+        rectifyAndPool(act);
+    }
+
+    /* Direct forward pass for a binary image: scatter the filter weights of every inked pixel into
+     * the outputs whose windows cover it.
+     */
+    public void forward(PackedBitmap image, Activations act) {
+        double[] conv = act.conv;
+        int positions = convRows * convCols;
+        for (int k = 0; k < numFilters; k++) {
+            java.util.Arrays.fill(conv, k * positions, (k + 1) * positions, bias[k]);
+        }
+
+        long[] words = image.getWords();
+        for (int w = 0; w < words.length; w++) {
+            long bits = words[w];
+            while (bits != 0) {
+                int pixel = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (pixel >= rows * cols) {
+                    break;
+                }
+                int r = pixel / cols;
+                int c = pixel % cols;
+                // output (r - i, c - j) sees this pixel through kernel entry (i, j)
+                int iFirst = Math.max(0, r - convRows + 1);
+                int iLast = Math.min(KERNEL_SIZE - 1, r);
+                int jFirst = Math.max(0, c - convCols + 1);
+                int jLast = Math.min(KERNEL_SIZE - 1, c);
+                for (int k = 0; k < numFilters; k++) {
+                    double[] f = filters[k];
+                    int base = k * positions;
+                    for (int i = iFirst; i <= iLast; i++) {
+                        int out = base + (r - i) * convCols + c;
+                        int p = i * KERNEL_SIZE;
+                        for (int j = jFirst; j <= jLast; j++) {
+                            conv[out - j] += f[p + j];
+                        }
+                    }
+                }
+            }
+        }
+        rectifyAndPool(act);
+    }
+
+    private void rectifyAndPool(Activations act) {
+        double[] conv = act.conv;
+        for (int i = 0; i < conv.length; i++) {
+            if (conv[i] < 0) {
+                conv[i] = 0;
+            }
+        }
+
+        int positions = convRows * convCols;
+        int f = 0;
+        for (int k = 0; k < numFilters; k++) {
+            int base = k * positions;
+            for (int pr = 0; pr < pooledRows; pr++) {
+                for (int pc = 0; pc < pooledCols; pc++, f++) {
+                    int best = base + (pr * POOL_SIZE) * convCols + pc * POOL_SIZE;
+                    for (int i = 0; i < POOL_SIZE; i++) {
+                        int index = base + (pr * POOL_SIZE + i) * convCols + pc * POOL_SIZE;
+                        for (int j = 0; j < POOL_SIZE; j++, index++) {
+                            if (conv[index] > conv[best]) {
+                                best = index;
+                            }
+                        }
+                    }
+                    act.winner[f] = best;
+                    act.features[f] = conv[best];
+                }
+            }
+        }
+    }
+
+    /* Adds this example's gradient to filterGradient (numFilters x 25) and biasGradient.  Only the
+     * conv outputs that won their pool and were not cut off by the rectifier pass the error on.
+     */
+    public void backward(double[] image, Activations act, double[] featureError,
+                         double[][] filterGradient, double[] biasGradient) {
+        int positions = convRows * convCols;
+        for (int f = 0; f < featureError.length; f++) {
+            int index = act.winner[f];
+            double err = featureError[f];
+            if (err == 0 || act.conv[index] <= 0) {
+                continue;
+            }
+            int k = index / positions;
+            int pos = index % positions;
+            int r = pos / convCols;
+            int c = pos % convCols;
+            biasGradient[k] += err;
+            double[] g = filterGradient[k];
+            for (int i = 0; i < KERNEL_SIZE; i++) {
+                int pixel = (r + i) * cols + c;
+                for (int j = 0; j < KERNEL_SIZE; j++) {
+                    g[i * KERNEL_SIZE + j] += err * image[pixel + j];
+                }
+            }
+        }
+    }
+
+    /* filters := filters - rate * gradient, and the same for the biases.
+     */
+    public void step(double[][] filterGradient, double[] biasGradient, double rate) {
+        for (int k = 0; k < numFilters; k++) {
+            for (int p = 0; p < PATCH; p++) {
+                filters[k][p] -= rate * filterGradient[k][p];
+            }
+            bias[k] -= rate * biasGradient[k];
+        }
+    }
+
+    public double[][] newFilterGradient() {
+        return new double[numFilters][PATCH];
+    }
+}
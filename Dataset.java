@@ -0,0 +1,100 @@
+
+/**
+ * A labelled data set held in memory as packed images, one long[] of seven words per
+ * 20 x 20 drawing instead of a 256 x 1 Matrix of doubles.  The conversion to doubles is
+ * done when a batch is assembled (see BatchLoader), not when the file is read.  Code that
+ * only reads the examples takes a LabelledImages, so a mapped DatasetStore works there too;
+ * open() maps a store and only reads the other formats into a Dataset.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.util.Arrays;
+
+public class Dataset implements LabelledImages {
+
+    private PackedBitmap[] images;
+    private int[] labels;
+    private int size;
+
+    public Dataset() {
+        images = new PackedBitmap[256];
+        labels = new int[256];
+    }
+
+    /* Opens a data file for training: a DatasetStore is mapped and stays open (so it may be larger than
+     * the heap) until the result is closed; anything else is read into memory as by read().
+     */
+    public static LabelledImages open(File file) throws IOException {
+        if (DatasetStore.isStore(file)) {
+            return DatasetStore.open(file);
+        }
+        return read(file);
+    }
+
+    /* Reads every record of an .input file in a single pass.  Binary files written by SampleRecorder
+     * and DatasetStore files are recognised by their header; a store is copied into memory and closed
+     * again (use open() to train from the mapped file instead).
+     */
+    public static Dataset read(File file) throws IOException {
+        if (DatasetStore.isStore(file)) {
+            DatasetStore store = DatasetStore.open(file);
+            try {
+                return copyOf(store);
+            } finally {
+                store.close();
+            }
+        }
+        if (SampleRecorder.isBinary(file)) {
+            return SampleRecorder.readBinary(file);
+        }
+        Dataset dataset = new Dataset();
+        SampleReader reader = new SampleReader(file);
+        try {
+            while (reader.next()) {
+                dataset.add(reader.getImage(), reader.getLabel());
+            }
+        } finally {
+            reader.close();
+        }
+        return dataset;
+    }
+
+    /* An in-memory copy of any labelled set.
+     */
+    public static Dataset copyOf(LabelledImages source) {
+        Dataset copy = new Dataset();
+        for (int i = 0; i < source.size(); i++) {
+            copy.add(source.getImage(i), source.getLabel(i));
+        }
+        return copy;
+    }
+
+    public void add(PackedBitmap image, int label) {
+        if (size == images.length) {
+            images = Arrays.copyOf(images, size * 2);
+            labels = Arrays.copyOf(labels, size * 2);
+        }
+        images[size] = image;
+        labels[size] = label;
+        ++size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public PackedBitmap getImage(int index) {
+        return images[index];
+    }
+
+    public int getLabel(int index) {
+        return labels[index];
+    }
+
+    /* Nothing to release: the examples are on the heap.
+     */
+    public void close() {
+    }
+}
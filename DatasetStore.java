@@ -0,0 +1,395 @@
+
+/**
+ * A labelled data set kept in an indexed binary file and read through memory mapping, so
+ * that any record can be fetched directly and sets larger than the heap can be trained on
+ * (only the pages that are touched are brought in, and the operating system can drop them
+ * again).
+ *
+ * File layout (little endian):
+ *   header:  MAGIC, VERSION, number of pixels, number of labels, number of records,
+ *            offset of the record section, offset of the index section, and then the
+ *            number of records of each label;
+ *   records: fixed stride, one label byte followed by the packed words of the bitmap,
+ *            in the order of the source file;
+ *   index:   for each label in turn, the record numbers with that label.
+ *
+ * The per label index is what makes class balanced batches and stratified splits cheap:
+ * "the k-th 7" is one lookup in the index and one in the records.
+ *
+ * A DatasetStore is a read only LabelledImages, so it can be handed to BatchLoader and
+ * the trainers as is; the caller closes it when done.  Dataset.open() maps a store like
+ * this, which is how the training programs read their data; Dataset.read() copies a
+ * store into an ordinary Dataset instead.  The splits from stratifiedSplit() can be
+ * trained on without copying through LabelledSubset, and BatchLoader can draw class
+ * balanced batches with sampleBalanced().  Use convert() (or main) to build a store from
+ * an .input file.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+public class DatasetStore implements LabelledImages, Closeable {
+
+    public static final int MAGIC = 0x44494758;   // "DIGX"
+    public static final int VERSION = 1;
+    public static final int NUM_LABELS = 10;
+
+    private static final int FIXED_HEADER_SIZE = 4 * 4 + 3 * 8;
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;   // records are mapped in pieces of at most this size
+
+    private final FileChannel channel;
+    private final int numPixels;
+    private final int numWords;
+    private final int stride;
+    private final int size;
+    private final int[] labelCounts;
+    private final int[] labelStarts;      // where each label's part of the index begins
+    private final int recordsPerSegment;
+    private final MappedByteBuffer[] segments;
+    private final IntBuffer index;
+
+    private DatasetStore(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a dataset store");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported dataset store version " + version);
+        }
+        numPixels = header.getInt();
+        int numLabels = header.getInt();
+        long records = header.getLong();
+        long recordsOffset = header.getLong();
+        long indexOffset = header.getLong();
+        if (numLabels != NUM_LABELS || records > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt dataset store header");
+        }
+        size = (int) records;
+        numWords = PackedBitmap.wordsFor(numPixels);
+        stride = recordSize(numPixels);
+
+        ByteBuffer counts = ByteBuffer.allocate(4 * numLabels).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, counts, FIXED_HEADER_SIZE);
+        counts.flip();
+        labelCounts = new int[numLabels];
+        labelStarts = new int[numLabels + 1];
+        for (int i = 0; i < numLabels; i++) {
+            labelCounts[i] = counts.getInt();
+            labelStarts[i + 1] = labelStarts[i] + labelCounts[i];
+        }
+        if (labelStarts[numLabels] != size || indexOffset + 4L * size > channel.size()) {
+            throw new IOException("Truncated or corrupt dataset store");
+        }
+
+        recordsPerSegment = MAX_SEGMENT_BYTES / stride;
+        segments = new MappedByteBuffer[(size + recordsPerSegment - 1) / recordsPerSegment];
+        for (int s = 0; s < segments.length; s++) {
+            long first = (long) s * recordsPerSegment;
+            long count = Math.min(recordsPerSegment, size - first);
+            segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset + first * stride, count * stride);
+            segments[s].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (4L * size > Integer.MAX_VALUE) {
+            throw new IOException("Dataset store index too large to map");
+        }
+        ByteBuffer indexBytes = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, 4L * size);
+        index = indexBytes.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    public static DatasetStore open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new DatasetStore(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /* True if the file starts with the store header.
+     */
+    public static boolean isStore(File file) throws IOException {
+        if (file.length() < FIXED_HEADER_SIZE) {
+            return false;
+        }
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(in, magic, 0);
+            return magic.getInt(0) == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNumPixels() {
+        return numPixels;
+    }
+
+    public int getLabel(int index) {
+        ByteBuffer segment = segments[index / recordsPerSegment];
+        return segment.get((index % recordsPerSegment) * stride);
+    }
+
+    public PackedBitmap getImage(int index) {
+        ByteBuffer segment = segments[index / recordsPerSegment];
+        int position = (index % recordsPerSegment) * stride + 1;
+        long[] words = new long[numWords];
+        for (int w = 0; w < numWords; w++) {
+            words[w] = segment.getLong(position + 8 * w);
+        }
+        return new PackedBitmap(numPixels, words);
+    }
+
+    /* Decodes record index straight into an input vector (1.0 for ink, 0.0 otherwise), without
+     * making a PackedBitmap first.  Fills input.length units.
+     */
+    public void readInput(int index, double[] input) {
+        ByteBuffer segment = segments[index / recordsPerSegment];
+        int position = (index % recordsPerSegment) * stride + 1;
+        for (int w = 0, i = 0; w < numWords && i < input.length; w++) {
+            long word = segment.getLong(position + 8 * w);
+            for (int bit = 0; bit < 64 && i < input.length; bit++, i++) {
+                input[i] = (word >>> bit) & 1L;
+            }
+        }
+    }
+
+    public int getLabelCount(int label) {
+        return labelCounts[label];
+    }
+
+    /* The record number of the k-th record with the given label, in file order.
+     */
+    public int getRecordOfLabel(int label, int k) {
+        if (k < 0 || k >= labelCounts[label]) {
+            throw new IndexOutOfBoundsException(k + " of " + labelCounts[label] + " records labelled " + label);
+        }
+        return index.get(labelStarts[label] + k);
+    }
+
+    /* Fills records with a class balanced sample: labels are taken in turn, starting at a random one
+     * and skipping labels with no records, and for each a record with that label is drawn at random
+     * (with replacement).
+     */
+    public void sampleBalanced(SplittableRandom random, int[] records) {
+        int[] present = new int[NUM_LABELS];
+        int numPresent = 0;
+        for (int label = 0; label < NUM_LABELS; label++) {
+            if (labelCounts[label] > 0) {
+                present[numPresent++] = label;
+            }
+        }
+        if (numPresent == 0) {
+            throw new IllegalStateException("The dataset store is empty");
+        }
+        int next = random.nextInt(numPresent);
+        for (int i = 0; i < records.length; i++) {
+            int label = present[next];
+            next = (next + 1) % numPresent;
+            records[i] = index.get(labelStarts[label] + random.nextInt(labelCounts[label]));
+        }
+    }
+
+    /* Splits the record numbers into a training part and a validation part holding (about)
+     * validationFraction of every label, so both keep the label proportions of the whole set.
+     * Returns {training, validation}; the same seed gives the same split.
+     */
+    public int[][] stratifiedSplit(double validationFraction, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int numValidation = 0;
+        int[] takes = new int[NUM_LABELS];
+        for (int label = 0; label < NUM_LABELS; label++) {
+            takes[label] = (int) Math.round(labelCounts[label] * validationFraction);
+            numValidation += takes[label];
+        }
+        int[] training = new int[size - numValidation];
+        int[] validation = new int[numValidation];
+        int t = 0;
+        int v = 0;
+        for (int label = 0; label < NUM_LABELS; label++) {
+            int[] records = new int[labelCounts[label]];
+            for (int k = 0; k < records.length; k++) {
+                records[k] = index.get(labelStarts[label] + k);
+            }
+            // partial Fisher-Yates: the first takes[label] entries end up a uniform random choice
+            for (int i = 0; i < takes[label]; i++) {
+                int j = i + random.nextInt(records.length - i);
+                int swap = records[i];
+                records[i] = records[j];
+                records[j] = swap;
+            }
+            System.arraycopy(records, 0, validation, v, takes[label]);
+            System.arraycopy(records, takes[label], training, t, records.length - takes[label]);
+            v += takes[label];
+            t += records.length - takes[label];
+        }
+        Arrays.sort(training);
+        Arrays.sort(validation);
+        return new int[][] {training, validation};
+    }
+
+    /* Copies the given records into an ordinary in-memory Dataset.
+     */
+    public Dataset select(int[] records) {
+        Dataset selection = new Dataset();
+        for (int record : records) {
+            selection.add(getImage(record), getLabel(record));
+        }
+        return selection;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public String toString() {
+        return "DatasetStore(" + size + " records, per label " + Arrays.toString(labelCounts) + ")";
+    }
+
+    /* Converts an .input file into a store, streaming the records so the source never has to fit in
+     * memory (only the index is kept until the end).  Returns the number of records written.  The store
+     * is written to a temporary file next to output and renamed into place, like Model.write(), so a
+     * failure leaves any old store as it was.
+     */
+    public static int convert(File input, File output) throws IOException {
+        int numPixels = PackedBitmap.NUM_PIXELS;
+        int stride = recordSize(numPixels);
+        long recordsOffset = FIXED_HEADER_SIZE + 4L * NUM_LABELS;
+        int[][] byLabel = new int[NUM_LABELS][64];
+        int[] counts = new int[NUM_LABELS];
+
+        File target = output.getAbsoluteFile();
+        File temporary = File.createTempFile(".store", ".tmp", target.getParentFile());
+        try {
+            writeStore(input, temporary, numPixels, stride, recordsOffset, byLabel, counts);
+            try {
+                Files.move(temporary.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temporary.delete();
+        }
+        int numRecords = 0;
+        for (int count : counts) {
+            numRecords += count;
+        }
+        return numRecords;
+    }
+
+    /* The body of convert(): streams the records of input into the file temporary and fills in byLabel
+     * and counts on the way.
+     */
+    private static void writeStore(File input, File temporary, int numPixels, int stride, long recordsOffset,
+                                   int[][] byLabel, int[] counts) throws IOException {
+        int numRecords = 0;
+        FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            out.position(recordsOffset);
+
+            SampleReader reader = new SampleReader(input);
+            try {
+                while (reader.next()) {
+                    int label = reader.getLabel();
+                    if (buffer.remaining() < stride) {
+                        drain(out, buffer);
+                    }
+                    buffer.put((byte) label);
+                    for (long word : reader.getImage().getWords()) {
+                        buffer.putLong(word);
+                    }
+                    if (counts[label] == byLabel[label].length) {
+                        byLabel[label] = Arrays.copyOf(byLabel[label], counts[label] * 2);
+                    }
+                    byLabel[label][counts[label]++] = numRecords++;
+                }
+            } finally {
+                reader.close();
+            }
+            drain(out, buffer);
+
+            long indexOffset = recordsOffset + (long) numRecords * stride;
+            for (int label = 0; label < NUM_LABELS; label++) {
+                for (int k = 0; k < counts[label]; k++) {
+                    if (buffer.remaining() < 4) {
+                        drain(out, buffer);
+                    }
+                    buffer.putInt(byLabel[label][k]);
+                }
+            }
+            drain(out, buffer);
+
+            // the header goes in last, so a half written store is never mistaken for a good one
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(numPixels).putInt(NUM_LABELS);
+            buffer.putLong(numRecords).putLong(recordsOffset).putLong(indexOffset);
+            for (int label = 0; label < NUM_LABELS; label++) {
+                buffer.putInt(counts[label]);
+            }
+            buffer.flip();
+            long position = 0;
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+            out.force(true);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int recordSize(int numPixels) {
+        return 1 + 8 * PackedBitmap.wordsFor(numPixels);
+    }
+
+    private static void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /* Converts an .input file: java DatasetStore trainingSet.input trainingSet.store
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.print("Usage: java DatasetStore input-file store-file\n");
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            int numRecords = convert(new File(args[0]), new File(args[1]));
+            DatasetStore store = open(new File(args[1]));
+            System.out.print("Wrote " + numRecords + " records in " + (System.nanoTime() - start) / 1000000
+                + " ms: " + store + "\n");
+            store.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
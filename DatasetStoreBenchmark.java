@@ -0,0 +1,104 @@
+
+/**
+ * Compares getting training samples out of an .input file with getting them out of a
+ * DatasetStore built from it (in a temporary file, removed afterwards).
+ *
+ * Without an index, the only way to a class balanced mini-batch (or to sample N) is to
+ * parse the whole text file again; with the store it is a few index lookups and reads
+ * from the mapped file.  The benchmark converts the file, checks that the store holds
+ * exactly the records of the text file, and then times both ways of drawing batches,
+ * random access to single records and a stratified validation split.
+ *
+ * Usage: java DatasetStoreBenchmark [input-file] [batches] [batch-size]
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.util.SplittableRandom;
+
+public class DatasetStoreBenchmark {
+
+    private static final int TEXT_PASSES = 5;
+
+    public static void main(String[] args) {
+        File input = new File(args.length > 0 ? args[0] : "trainingSet.input");
+        int numBatches = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+        int batchSize = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+        File storeFile = null;
+
+        try {
+            storeFile = File.createTempFile("dataset", ".store");
+            long start = System.nanoTime();
+            int numRecords = DatasetStore.convert(input, storeFile);
+            System.out.print(String.format("Converted %d records in %.1f ms (%d bytes of text, %d bytes of store)\n",
+                numRecords, (System.nanoTime() - start) / 1e6, input.length(), storeFile.length()));
+
+            start = System.nanoTime();
+            DatasetStore store = DatasetStore.open(storeFile);
+            System.out.print(String.format("Opened in %.3f ms: %s\n", (System.nanoTime() - start) / 1e6, store));
+
+            // the text way: every batch needs a fresh parse of the whole file
+            Dataset text = null;
+            start = System.nanoTime();
+            for (int pass = 0; pass < TEXT_PASSES; pass++) {
+                text = Dataset.read(input);
+            }
+            double parseMillis = (System.nanoTime() - start) / 1e6 / TEXT_PASSES;
+
+            if (text.size() != store.size()) {
+                System.out.print("MISMATCH: text has " + text.size() + " records, store " + store.size() + "\n");
+                return;
+            }
+            for (int i = 0; i < text.size(); i++) {
+                if (text.getLabel(i) != store.getLabel(i) || !text.getImage(i).equals(store.getImage(i))) {
+                    System.out.print("MISMATCH at record " + i + "\n");
+                    return;
+                }
+            }
+            System.out.print("Store matches the text file record for record\n");
+
+            SplittableRandom random = new SplittableRandom(1);
+            int[] records = new int[batchSize];
+            double[][] inputs = new double[batchSize][NeuralNetwork.INPUT_VECTOR_DIMENSION];
+            int[] perLabel = new int[DatasetStore.NUM_LABELS];
+            for (int warmup = 0; warmup < 1000; warmup++) {
+                store.sampleBalanced(random, records);
+            }
+            start = System.nanoTime();
+            for (int b = 0; b < numBatches; b++) {
+                store.sampleBalanced(random, records);
+                for (int i = 0; i < batchSize; i++) {
+                    store.readInput(records[i], inputs[i]);
+                    ++perLabel[store.getLabel(records[i])];
+                }
+            }
+            double batchMicros = (System.nanoTime() - start) / 1e3 / numBatches;
+
+            long checksum = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                checksum += store.getImage(random.nextInt(store.size())).cardinality();
+            }
+            double accessNanos = (System.nanoTime() - start) / 100000.0;
+
+            start = System.nanoTime();
+            int[][] split = store.stratifiedSplit(0.2, 7);
+            double splitMillis = (System.nanoTime() - start) / 1e6;
+
+            System.out.print(String.format("Balanced batch of %d: text re-parse %.2f ms, store %.2f us (%.0fx)\n",
+                batchSize, parseMillis, batchMicros, parseMillis * 1000 / batchMicros));
+            System.out.print("Labels drawn over " + numBatches + " batches: " + java.util.Arrays.toString(perLabel) + "\n");
+            System.out.print(String.format("Random access to one record: %.0f ns (checksum %d)\n", accessNanos, checksum));
+            System.out.print(String.format("Stratified 80/20 split: %d / %d records in %.2f ms\n",
+                split[0].length, split[1].length, splitMillis));
+            store.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (storeFile != null) {
+                storeFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+
+/**
+ * Trains a small student network to imitate a trained teacher model (knowledge
+ * distillation), so a cheap serving model can be had without collecting more data.
+ *
+ * The teacher's outputs for every training example are computed once, softened with a
+ * temperature (the output layer is applied to z3 / T instead of z3), and cached in a file
+ * next to the training data together with a fingerprint of the teacher, the temperature
+ * and the examples; a later run with the same inputs reads them back instead of running
+ * the teacher again.  The student is then trained with the usual backpropagation code
+ * on a blend of two costs: the usual one against the one-hot labels, and the same cost
+ * against the soft targets with the student's own outputs softened at the same
+ * temperature.  The second one is scaled by T^2, which keeps its gradients about as large
+ * as those of the first whatever the temperature (Hinton et al.):
+ *
+ *     cost = (1 - softWeight) * cost(a(z), hard) + softWeight * T^2 * cost(a(z / T), soft)
+ *     dcost/dz = (1 - softWeight) * (a(z) - hard) + softWeight * T * (a(z / T) - soft)
+ *
+ * The cache files are named after the input file with SOFT_TARGET_SUFFIX added and are
+ * ignored by git.
+ *
+ * main() distills students of several sizes and prints them next to the teacher, with
+ * accuracy on held out examples and time per classification, so the smallest one that
+ * meets the accuracy bar can be picked; that one is written out if a file is given.
+ *
+ * Usage:
+ *   java Distiller teacher-model input-file [hidden-sizes] [epochs] [soft-weight]
+ *                  [temperature] [accuracy-bar] [student-out]
+ *   e.g. java Distiller trainedTheta trainingSet.input 8,16,32,64 30 0.7 2.0 0.9 student
+ *
+ * Every fifth example of the input file is held out for testing.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.util.Random;
+import Jama.Matrix;
+
+public class Distiller {
+
+    private static final long DEFAULT_SEED = 478978392;
+    private static final double ALPHA = 0.5;
+    private static final int BATCH_SIZE = 32;
+    private static final int TIMING_REPEATS = 200;
+    private static final double DEFAULT_SOFT_WEIGHT = 0.7;
+    private static final double DEFAULT_TEMPERATURE = 2.0;
+    private static final int SOFT_TARGET_MAGIC = 0x534f4654;   // "SOFT"
+    private static final String SOFT_TARGET_SUFFIX = ".soft";
+
+    /* The teacher's softened outputs, one row per example of data.
+     */
+    public static Matrix computeSoftTargets(Model teacher, LabelledImages data, double temperature) {
+        int classes = teacher.getNumOutputClasses();
+        Matrix targets = new Matrix(data.size(), classes);
+        double[][] rows = targets.getArray();
+        double[] z3 = new double[classes];
+        for (int i = 0; i < data.size(); i++) {
+            double[] input = NeuralNetwork.toInput(data.getImage(i), teacher.getInputDimension());
+            NeuralNetwork.computeHypothesis(input, teacher.getTheta1(), teacher.getTheta2(), teacher.getOutputLayer(),
+                null, z3);
+            for (int k = 0; k < classes; k++) {
+                z3[k] /= temperature;
+            }
+            teacher.getOutputLayer().activate(z3, rows[i]);
+        }
+        return targets;
+    }
+
+    /* Soft targets from the cache file if it was made for this teacher, temperature and data, and
+     * otherwise computed and written to it.
+     */
+    public static Matrix softTargets(Model teacher, LabelledImages data, double temperature, File cache) {
+        long fingerprint = fingerprint(teacher, data, temperature);
+        if (cache.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+                try {
+                    if (in.readInt() == SOFT_TARGET_MAGIC && in.readLong() == fingerprint) {
+                        System.out.print("Read soft targets from " + cache + "\n");
+                        return GradientCodec.read(in);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        long start = System.nanoTime();
+        Matrix targets = computeSoftTargets(teacher, data, temperature);
+        System.out.print(String.format("Computed %d soft targets in %.1f ms\n", data.size(),
+            (System.nanoTime() - start) / 1e6));
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cache)));
+            try {
+                out.writeInt(SOFT_TARGET_MAGIC);
+                out.writeLong(fingerprint);
+                GradientCodec.write(out, targets, 1);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return targets;
+    }
+
+    /* Trains a student with the given number of hidden units on the blended cost.  temperature must be
+     * the one the soft targets were made with.
+     */
+    public static Model distill(LabelledImages data, Matrix softTargets, int hidden, OutputLayer outputLayer,
+                                double softWeight, double temperature, int epochs) throws InterruptedException {
+        Random generator = new Random(DEFAULT_SEED);
+        int inputs = NeuralNetwork.INPUT_VECTOR_DIMENSION;
+        int classes = NeuralNetwork.NUM_OUTPUT_CLASSES;
+        Matrix theta1 = randomMatrix(hidden, inputs + 1, generator);
+        Matrix theta2 = randomMatrix(classes, hidden + 1, generator);
+        Matrix delta1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+        Matrix delta2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+        double[][] soft = softTargets.getArray();
+        double[] a2 = new double[hidden + 1];
+        double[] z3 = new double[classes];
+        double[] softened = new double[classes];
+        double[] err3 = new double[classes];
+
+        BatchLoader loader = new BatchLoader(data, BATCH_SIZE, inputs, DEFAULT_SEED, epochs);
+        try {
+            BatchLoader.Batch batch;
+            while ((batch = loader.take()) != null) {
+                NeuralNetwork.clear(delta1);
+                NeuralNetwork.clear(delta2);
+                for (int i = 0; i < batch.size; i++) {
+                    double[] teacher = soft[batch.indices[i]];
+                    double[] a3 = NeuralNetwork.computeHypothesis(batch.inputs[i], theta1, theta2, outputLayer, a2, z3);
+                    for (int k = 0; k < classes; k++) {
+                        softened[k] = z3[k] / temperature;
+                    }
+                    outputLayer.activate(softened, softened);
+                    for (int k = 0; k < classes; k++) {
+                        double hard = (k == batch.labels[i]) ? 1 : 0;
+                        err3[k] = (1 - softWeight) * (a3[k] - hard)
+                            + softWeight * temperature * (softened[k] - teacher[k]);
+                    }
+                    NeuralNetwork.backPropagate(batch.inputs[i], a2, err3, theta1, theta2, delta1, delta2, null);
+                }
+                NeuralNetwork.step(theta1, delta1, ALPHA / batch.size);
+                NeuralNetwork.step(theta2, delta2, ALPHA / batch.size);
+                loader.release(batch);
+            }
+        } finally {
+            loader.close();
+        }
+        return new Model(theta1, theta2, outputLayer, "student with " + hidden + " hidden units");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.print("usage: java Distiller teacher-model input-file [hidden-sizes] [epochs] [soft-weight]"
+                + " [temperature] [accuracy-bar] [student-out]\n");
+            System.exit(1);
+        }
+        Model teacher = Model.read(new File(args[0]));
+        File file = new File(args[1]);
+        String[] sizes = ((args.length > 2) ? args[2] : "8,16,32,64").split(",");
+        int epochs = (args.length > 3) ? Integer.parseInt(args[3]) : 30;
+        double softWeight = (args.length > 4) ? Double.parseDouble(args[4]) : DEFAULT_SOFT_WEIGHT;
+        double temperature = (args.length > 5) ? Double.parseDouble(args[5]) : DEFAULT_TEMPERATURE;
+
+        LabelledImages all = Dataset.open(file);
+        try {
+            LabelledImages train = LabelledSubset.allBut(all, 5, 4);
+            LabelledImages test = LabelledSubset.every(all, 5, 4);
+            Matrix soft = softTargets(teacher, train, temperature, new File(file.getPath() + SOFT_TARGET_SUFFIX));
+
+            double[][] inputs = new double[test.size()][];
+            for (int i = 0; i < test.size(); i++) {
+                inputs[i] = NeuralNetwork.toInput(test.getImage(i), teacher.getInputDimension());
+            }
+            double teacherAccuracy = accuracy(teacher, inputs, test);
+            double bar = (args.length > 6) ? Double.parseDouble(args[6]) : teacherAccuracy - 0.02;
+            System.out.print(train.size() + " training and " + test.size() + " test examples, " + epochs
+                + " epochs, soft weight " + softWeight + ", temperature " + temperature + "\n\n");
+
+            System.out.print(String.format("%-26s %9s %10s %11s%n", "model", "weights", "accuracy", "us/digit"));
+            row("teacher (" + teacher.getHiddenLayerSize() + " hidden)", teacher, teacherAccuracy, inputs);
+            Model chosen = null;
+            for (String size : sizes) {
+                Model student = distill(train, soft, Integer.parseInt(size.trim()), teacher.getOutputLayer(),
+                    softWeight, temperature, epochs);
+                double studentAccuracy = accuracy(student, inputs, test);
+                row("student (" + student.getHiddenLayerSize() + " hidden)", student, studentAccuracy, inputs);
+                if (chosen == null && studentAccuracy >= bar) {
+                    chosen = student;
+                }
+            }
+
+            if (chosen == null) {
+                System.out.print(String.format("%nNo student reached the accuracy bar of %.1f%%%n", 100 * bar));
+                return;
+            }
+            System.out.print(String.format("%nSmallest student reaching %.1f%%: %d hidden units%n", 100 * bar,
+                chosen.getHiddenLayerSize()));
+            if (args.length > 7) {
+                chosen.write(new File(args[7]));
+                System.out.print("Wrote it to " + args[7] + "\n");
+            }
+        } finally {
+            all.close();
+        }
+    }
+
+    private static double accuracy(Model model, double[][] inputs, LabelledImages test) {
+        int correct = 0;
+        for (int i = 0; i < inputs.length; i++) {
+            if (NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(inputs[i], model)) == test.getLabel(i)) {
+                ++correct;
+            }
+        }
+        return correct / (double) inputs.length;
+    }
+
+    private static void row(String name, Model model, double accuracy, double[][] inputs) {
+        long sink = 0;
+        long best = Long.MAX_VALUE;
+        for (int repeat = 0; repeat < TIMING_REPEATS; repeat++) {
+            long start = System.nanoTime();
+            for (double[] input : inputs) {
+                sink += NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(input, model));
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        long weights = (long) model.getTheta1().getRowDimension() * model.getTheta1().getColumnDimension()
+            + (long) model.getTheta2().getRowDimension() * model.getTheta2().getColumnDimension();
+        System.out.print(String.format("%-26s %9d %9.1f%% %11.2f%s%n", name, weights, 100 * accuracy,
+            best / 1e3 / inputs.length, (sink == 42) ? " " : ""));
+    }
+
+    /* Identifies the teacher weights, output layer, temperature and examples a cache file was made for.
+     */
+    private static long fingerprint(Model teacher, LabelledImages data, double temperature) {
+        long hash = Double.doubleToLongBits(temperature) * 31 + teacher.getOutputLayer().ordinal();
+        for (Matrix m : new Matrix[] {teacher.getTheta1(), teacher.getTheta2()}) {
+            for (double[] row : m.getArray()) {
+                for (double entry : row) {
+                    hash = hash * 31 + Double.doubleToLongBits(entry);
+                }
+            }
+        }
+        hash = hash * 31 + data.size();
+        for (int i = 0; i < data.size(); i++) {
+            hash = hash * 31 + data.getImage(i).hashCode() * 11L + data.getLabel(i);
+        }
+        return hash;
+    }
+
+    /* Uniform random entries between -1 and +1, like createInitialTheta().
+     */
+    private static Matrix randomMatrix(int rows, int cols, Random generator) {
+        Matrix m = new Matrix(rows, cols);
+        double[][] entries = m.getArray();
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                entries[i][j] = generator.nextDouble() * 2 - 1;
+            }
+        }
+        return m;
+    }
+}
@@ -0,0 +1,464 @@
+
+/**
+ * Data-parallel training across several JVMs.  Each worker process owns a shard of an
+ * .input file (every numWorkers-th example, starting at its own index), computes
+ * mini-batch gradients with NeuralNetwork.accumulateGradient() (the same back
+ * propagation the window uses) and exchanges them with a coordinator over TCP, encoded
+ * by GradientCodec.
+ *
+ * The coordinator owns the master weights and runs in one of two modes:
+ *
+ *   sync   Every step waits for one gradient from every worker, applies their average
+ *          and sends the new weights back to all of them (a reduce followed by a
+ *          broadcast, so all workers always train on identical weights).
+ *
+ *   async  A parameter server: each gradient is applied the moment it arrives and only
+ *          that worker gets the updated weights back.  Nobody waits for stragglers, at
+ *          the price of gradients computed on slightly stale weights.
+ *
+ * Usage:
+ *   java DistributedTrainer coordinator port numWorkers (sync | async) steps model-out [start-model | -] [alpha] [sigmoid | softmax]
+ *   java DistributedTrainer worker host port input-file workerIndex numWorkers [batch-size]
+ *   java DistributedTrainer local numWorkers (sync | async) input-file model-out [steps] [batch-size]
+ *
+ * "local" starts a coordinator in this JVM and the workers as separate java processes on
+ * localhost.  It first does the same run with a single worker and then reports the
+ * scaling efficiency: throughput with N workers / (N x throughput with one).  A step is
+ * one weight update; in sync mode it consumes one batch from every worker.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import Jama.Matrix;
+
+public class DistributedTrainer {
+
+    private static final long DEFAULT_SEED = 478978392;
+    private static final double DEFAULT_ALPHA = 0.5;
+    private static final int DEFAULT_BATCH_SIZE = 64;
+    private static final int DEFAULT_STEPS = 200;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // how long the coordinator waits for each worker to connect (-Ddistributed.acceptTimeoutMillis)
+    private static final int DEFAULT_ACCEPT_TIMEOUT_MILLIS = 60000;
+
+    // what the coordinator sends after each gradient
+    private static final int CONTINUE = 1;
+    private static final int STOP = 0;
+
+    //======================================================================
+    //* Coordinator
+    //======================================================================
+
+    private final Matrix theta1;
+    private final Matrix theta2;
+    private final OutputLayer outputLayer;
+    private final double alpha;
+    private final int totalSteps;
+
+    private int stepsDone;
+    private long samplesDone;
+    private long workerComputeNanos;
+    private double costSum;
+    private double throughput;
+
+    public DistributedTrainer(Model start, double alpha, int totalSteps) {
+        this.theta1 = start.getTheta1().copy();
+        this.theta2 = start.getTheta2().copy();
+        this.outputLayer = start.getOutputLayer();
+        this.alpha = alpha;
+        this.totalSteps = totalSteps;
+    }
+
+    /* Accepts numWorkers connections on the server socket, trains, and returns the final model.  Gives
+     * up if a worker takes longer than the accept timeout to connect.  Whatever happens, every worker
+     * connection is closed on the way out, so no worker is left waiting for weights that never come.
+     */
+    public Model coordinate(ServerSocket server, int numWorkers, boolean synchronous) throws IOException {
+        List<Connection> workers = new ArrayList<Connection>();
+        try {
+            server.setSoTimeout(Integer.getInteger("distributed.acceptTimeoutMillis", DEFAULT_ACCEPT_TIMEOUT_MILLIS));
+            for (int i = 0; i < numWorkers; i++) {
+                Connection worker = new Connection(server.accept());
+                workers.add(worker);
+                worker.in.readInt();   // the worker's index, only used in its own log messages
+                worker.out.writeInt(outputLayer.ordinal());
+                sendWeights(worker, theta1, theta2);
+            }
+
+            long start = System.nanoTime();
+            if (synchronous) {
+                runSynchronous(workers);
+            } else {
+                runAsynchronous(workers);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            report(numWorkers, synchronous, elapsed);
+            throughput = samplesDone * 1e9 / elapsed;
+            return new Model(theta1.copy(), theta2.copy(), outputLayer, "distributed, " + stepsDone + " steps");
+        } finally {
+            closeAll(workers);
+        }
+    }
+
+    private static void closeAll(List<Connection> workers) {
+        for (Connection worker : workers) {
+            try {
+                worker.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /* Samples per second of the last coordinate() run.
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    private void runSynchronous(List<Connection> workers) throws IOException {
+        Matrix sum1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+        Matrix sum2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+
+        while (stepsDone < totalSteps) {
+            NeuralNetwork.clear(sum1);
+            NeuralNetwork.clear(sum2);
+            int stepSamples = 0;
+            for (Connection worker : workers) {
+                // each worker sends a mean gradient; weight it by its batch size to get the overall mean
+                int batchSize = worker.in.readInt();
+                costSum += worker.in.readDouble();
+                workerComputeNanos += worker.in.readLong();
+                GradientCodec.addInto(worker.in, sum1, batchSize);
+                GradientCodec.addInto(worker.in, sum2, batchSize);
+                stepSamples += batchSize;
+            }
+            NeuralNetwork.step(theta1, sum1, alpha / stepSamples);
+            NeuralNetwork.step(theta2, sum2, alpha / stepSamples);
+            samplesDone += stepSamples;
+            ++stepsDone;
+
+            for (Connection worker : workers) {
+                if (stepsDone < totalSteps) {
+                    sendWeights(worker, theta1, theta2);
+                } else {
+                    worker.out.writeInt(STOP);
+                    worker.out.flush();
+                }
+            }
+        }
+    }
+
+    private void runAsynchronous(final List<Connection> workers) throws IOException {
+        List<Thread> threads = new ArrayList<Thread>();
+        final IOException[] failure = new IOException[1];
+        for (final Connection worker : workers) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        serveAsynchronous(worker);
+                    } catch (Exception e) {
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = (e instanceof IOException) ? (IOException) e : new IOException(e);
+                            }
+                        }
+                        // the other threads are blocked reading from their workers; closing the sockets frees them
+                        closeAll(workers);
+                    }
+                }
+            }, "parameter-server");
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closeAll(workers);
+                throw new InterruptedIOException("Interrupted while training");
+            }
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    private void serveAsynchronous(Connection worker) throws IOException {
+        Matrix gradient1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+        Matrix gradient2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+        // this worker's copy of the weights, taken under the lock and sent after it is released
+        Matrix snapshot1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+        Matrix snapshot2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+        while (true) {
+            // decode outside the lock so the other workers are not held up by this one's network transfer
+            int batchSize = worker.in.readInt();
+            double cost = worker.in.readDouble();
+            long computeNanos = worker.in.readLong();
+            GradientCodec.readInto(worker.in, gradient1);
+            GradientCodec.readInto(worker.in, gradient2);
+
+            boolean stop;
+            synchronized (this) {
+                stop = (stepsDone >= totalSteps);
+                if (!stop) {
+                    NeuralNetwork.step(theta1, gradient1, alpha);
+                    NeuralNetwork.step(theta2, gradient2, alpha);
+                    costSum += cost;
+                    workerComputeNanos += computeNanos;
+                    samplesDone += batchSize;
+                    ++stepsDone;
+                    copy(theta1, snapshot1);
+                    copy(theta2, snapshot2);
+                }
+            }
+            if (stop) {
+                worker.out.writeInt(STOP);
+                worker.out.flush();
+                return;
+            }
+            sendWeights(worker, snapshot1, snapshot2);
+        }
+    }
+
+    private static void copy(Matrix source, Matrix target) {
+        double[][] from = source.getArray();
+        double[][] to = target.getArray();
+        for (int i = 0; i < from.length; i++) {
+            System.arraycopy(from[i], 0, to[i], 0, from[i].length);
+        }
+    }
+
+    private static void sendWeights(Connection worker, Matrix weights1, Matrix weights2) throws IOException {
+        worker.out.writeInt(CONTINUE);
+        GradientCodec.write(worker.out, weights1, 1.0);
+        GradientCodec.write(worker.out, weights2, 1.0);
+        worker.out.flush();
+    }
+
+    private void report(int numWorkers, boolean synchronous, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        double perWorkerCompute = samplesDone / (workerComputeNanos / 1e9);
+        long bytesPerStep = 2 * (GradientCodec.encodedSize(theta1) + GradientCodec.encodedSize(theta2));
+        System.out.print(String.format("%s, %d worker(s): %d steps, %d samples in %.2f s = %.1f samples/sec%n",
+            synchronous ? "sync" : "async", numWorkers, stepsDone, samplesDone, seconds, samplesDone / seconds));
+        System.out.print(String.format("  compute-only rate per worker %.1f samples/sec, mean cost %.4f, %d KB on the wire per step and worker%n",
+            perWorkerCompute, costSum / samplesDone, bytesPerStep / 1024));
+    }
+
+    //======================================================================
+    //* Worker
+    //======================================================================
+
+    /* Connects to the coordinator and trains on this worker's shard until told to stop.
+     */
+    public static void work(String host, int port, Dataset shard, int workerIndex, int batchSize) throws IOException {
+        Connection coordinator = new Connection(new Socket(host, port));
+        coordinator.out.writeInt(workerIndex);
+        coordinator.out.flush();
+
+        OutputLayer outputLayer = OutputLayer.values()[coordinator.in.readInt()];
+        coordinator.in.readInt();   // CONTINUE
+        Matrix theta1 = GradientCodec.read(coordinator.in);
+        Matrix theta2 = GradientCodec.read(coordinator.in);
+
+        Matrix delta1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+        Matrix delta2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+
+        BatchLoader loader = new BatchLoader(shard, batchSize, theta1.getColumnDimension() - 1,
+            DEFAULT_SEED + workerIndex, Integer.MAX_VALUE);
+        try {
+            while (true) {
+                BatchLoader.Batch batch = loader.take();
+                long start = System.nanoTime();
+                NeuralNetwork.clear(delta1);
+                NeuralNetwork.clear(delta2);
+                double cost = 0;
+                for (int i = 0; i < batch.size; i++) {
+                    double[] target = NeuralNetwork.vectorizeY(batch.labels[i]);
+                    double[] hypothesis = NeuralNetwork.accumulateGradient(batch.inputs[i], target, theta1, theta2,
+                        outputLayer, delta1, delta2);
+                    cost -= Math.log(Math.max(hypothesis[batch.labels[i]], 1e-300));
+                }
+                long computeNanos = System.nanoTime() - start;
+
+                coordinator.out.writeInt(batch.size);
+                coordinator.out.writeDouble(cost);
+                coordinator.out.writeLong(computeNanos);
+                GradientCodec.write(coordinator.out, delta1, 1.0 / batch.size);
+                GradientCodec.write(coordinator.out, delta2, 1.0 / batch.size);
+                coordinator.out.flush();
+                loader.release(batch);
+
+                if (coordinator.in.readInt() == STOP) {
+                    break;
+                }
+                GradientCodec.readInto(coordinator.in, theta1);
+                GradientCodec.readInto(coordinator.in, theta2);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            loader.close();
+            coordinator.close();
+        }
+    }
+
+    /* Every numWorkers-th example of the file, starting at workerIndex.
+     */
+    public static Dataset readShard(File file, int workerIndex, int numWorkers) throws IOException {
+        Dataset shard = new Dataset();
+        SampleReader reader = new SampleReader(file);
+        try {
+            for (int index = 0; reader.next(); index++) {
+                if (index % numWorkers == workerIndex) {
+                    shard.add(reader.getImage(), reader.getLabel());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return shard;
+    }
+
+    //======================================================================
+    //* Local launcher
+    //======================================================================
+
+    /* Runs a coordinator here and numWorkers worker JVMs on localhost; returns the throughput.
+     */
+    private static double runLocal(int numWorkers, boolean synchronous, String inputFile, File modelOut, int steps,
+                                   int batchSize) throws IOException {
+        ServerSocket server = new ServerSocket(0, numWorkers, InetAddress.getLoopbackAddress());
+        String port = Integer.toString(server.getLocalPort());
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        List<Process> processes = new ArrayList<Process>();
+        boolean finished = false;
+        // in sync mode every step uses a batch from every worker; keep the work per worker the same
+        int totalSteps = synchronous ? steps : steps * numWorkers;
+        Model start = OnlineTrainer.createInitialModel(new Random(DEFAULT_SEED), OutputLayer.SIGMOID);
+        DistributedTrainer trainer = new DistributedTrainer(start, DEFAULT_ALPHA, totalSteps);
+        try {
+            for (int i = 0; i < numWorkers; i++) {
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "DistributedTrainer", "worker", "localhost", port, inputFile, Integer.toString(i),
+                    Integer.toString(numWorkers), Integer.toString(batchSize));
+                builder.inheritIO();
+                processes.add(builder.start());
+            }
+            trainer.coordinate(server, numWorkers, synchronous).write(modelOut);
+            finished = true;
+        } finally {
+            server.close();
+            for (Process process : processes) {
+                if (!finished) {
+                    // a worker may be stuck before it ever connected; don't wait for it
+                    process.destroy();
+                }
+                try {
+                    process.waitFor();
+                } catch (InterruptedException e) {
+                    process.destroy();
+                }
+            }
+        }
+        return trainer.getThroughput();
+    }
+
+    //======================================================================
+    //* Plumbing
+    //======================================================================
+
+    private static final class Connection implements Closeable {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static boolean parseMode(String mode) {
+        if (mode.equals("sync")) {
+            return true;
+        }
+        if (mode.equals("async")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Mode must be sync or async, not " + mode);
+    }
+
+    private static void usage() {
+        System.out.print("usage:\n"
+            + "  java DistributedTrainer coordinator port numWorkers (sync | async) steps model-out [start-model | -] [alpha] [sigmoid | softmax]\n"
+            + "  java DistributedTrainer worker host port input-file workerIndex numWorkers [batch-size]\n"
+            + "  java DistributedTrainer local numWorkers (sync | async) input-file model-out [steps] [batch-size]\n");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            usage();
+        }
+
+        if (args[0].equals("coordinator") && args.length >= 6) {
+            int port = Integer.parseInt(args[1]);
+            int numWorkers = Integer.parseInt(args[2]);
+            boolean synchronous = parseMode(args[3]);
+            int steps = Integer.parseInt(args[4]);
+            OutputLayer outputLayer = (args.length > 8) ? OutputLayer.fromFileName(args[8]) : OutputLayer.SIGMOID;
+            Model start = (args.length > 6 && !args[6].equals("-"))
+                ? Model.read(new File(args[6]))
+                : OnlineTrainer.createInitialModel(new Random(DEFAULT_SEED), outputLayer);
+            double alpha = (args.length > 7) ? Double.parseDouble(args[7]) : DEFAULT_ALPHA;
+
+            ServerSocket server = new ServerSocket(port);
+            try {
+                new DistributedTrainer(start, alpha, steps).coordinate(server, numWorkers, synchronous)
+                    .write(new File(args[5]));
+            } finally {
+                server.close();
+            }
+
+        } else if (args[0].equals("worker") && args.length >= 6) {
+            int workerIndex = Integer.parseInt(args[4]);
+            int numWorkers = Integer.parseInt(args[5]);
+            int batchSize = (args.length > 6) ? Integer.parseInt(args[6]) : DEFAULT_BATCH_SIZE;
+            Dataset shard = readShard(new File(args[3]), workerIndex, numWorkers);
+            work(args[1], Integer.parseInt(args[2]), shard, workerIndex, batchSize);
+
+        } else if (args[0].equals("local") && args.length >= 5) {
+            int numWorkers = Integer.parseInt(args[1]);
+            boolean synchronous = parseMode(args[2]);
+            int steps = (args.length > 5) ? Integer.parseInt(args[5]) : DEFAULT_STEPS;
+            int batchSize = (args.length > 6) ? Integer.parseInt(args[6]) : DEFAULT_BATCH_SIZE;
+            File modelOut = new File(args[4]);
+
+            double single = runLocal(1, synchronous, args[3], modelOut, steps, batchSize);
+            if (numWorkers > 1) {
+                double parallel = runLocal(numWorkers, synchronous, args[3], modelOut, steps, batchSize);
+                System.out.print(String.format("Scaling efficiency with %d workers: %.1f%% (%.2fx speed-up)%n",
+                    numWorkers, 100 * parallel / (numWorkers * single), parallel / single));
+            }
+
+        } else {
+            usage();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+
+/**
+ * Mini-batch training in single precision.  Weights, activations and gradient
+ * accumulators are float arrays (the weights flattened row by row, bias column first),
+ * which halves the memory traffic of the training loop compared with double[][] Jama
+ * matrices.
+ *
+ * Two things keep float from costing accuracy:
+ *   - master weights (optional): a double copy of the weights receives the updates and the
+ *     float working copy is rounded from it after every step, so small updates are not
+ *     lost against large weights;
+ *   - compensated summation (optional): the gradient accumulators use Kahan summation, so
+ *     adding up a batch of per example gradients does not lose their low bits.
+ *
+ * Measured with MixedPrecisionBenchmark (514 training examples, one core), float is not
+ * faster than the double path: the loops are scalar and the weights fit in cache either
+ * way.  Master weights cost next to nothing on top of that, but Kahan summation adds a
+ * quarter to a half to every epoch, because each accumulator update also reads and writes
+ * its compensation.  All of them reach the same accuracy there, so Kahan only pays for
+ * itself with batches large enough for the summation error to matter.
+ *
+ * The math is the same as NeuralNetwork.accumulateGradient(); only the precision differs.
+ * toModel() turns the result into an ordinary Model.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.util.Random;
+import Jama.Matrix;
+
+public class FloatTrainer {
+
+    private final int inputs;
+    private final int hidden;
+    private final int classes;
+    private final OutputLayer outputLayer;
+    private final boolean kahan;
+
+    private final float[] w1;        // hidden rows of inputs + 1
+    private final float[] w2;        // classes rows of hidden + 1
+    private final double[] master1;  // null without master weights
+    private final double[] master2;
+    private final float[] g1;
+    private final float[] g2;
+    private final float[] c1;        // Kahan compensation for g1 and g2, null without
+    private final float[] c2;
+
+    // scratch for one example
+    private final float[] a2;
+    private final float[] z3;
+    private final float[] a3;
+    private final float[] err2;
+    private final float[] err3;
+
+    /* Starts from the weights of the model, rounded to float.
+     */
+    public FloatTrainer(Model start, OutputLayer outputLayer, boolean masterWeights, boolean kahan) {
+        this.inputs = start.getInputDimension();
+        this.hidden = start.getHiddenLayerSize();
+        this.classes = start.getNumOutputClasses();
+        this.outputLayer = outputLayer;
+        this.kahan = kahan;
+
+        w1 = flatten(start.getTheta1());
+        w2 = flatten(start.getTheta2());
+        master1 = masterWeights ? flattenDouble(start.getTheta1()) : null;
+        master2 = masterWeights ? flattenDouble(start.getTheta2()) : null;
+        g1 = new float[w1.length];
+        g2 = new float[w2.length];
+        c1 = kahan ? new float[w1.length] : null;
+        c2 = kahan ? new float[w2.length] : null;
+
+        a2 = new float[hidden + 1];
+        z3 = new float[classes];
+        a3 = new float[classes];
+        err2 = new float[hidden];
+        err3 = new float[classes];
+    }
+
+    /* Trains for the given number of epochs over data.  The examples are visited in the same order as
+     * a BatchLoader with the same seed would hand them out, so the result can be compared with the
+     * double precision path step for step.
+     */
+    public void train(LabelledImages data, int epochs, int batchSize, double alpha, long seed) {
+        int n = data.size();
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        float[][] batch = new float[batchSize][inputs];
+        int[] labels = new int[batchSize];
+
+        for (int epoch = 1; epoch <= epochs; epoch++) {
+            Random random = new Random(seed * 31 + epoch);
+            for (int i = n - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+            for (int start = 0; start < n; start += batchSize) {
+                int size = Math.min(batchSize, n - start);
+                for (int b = 0; b < size; b++) {
+                    toInput(data.getImage(order[start + b]), batch[b]);
+                    labels[b] = data.getLabel(order[start + b]);
+                }
+                for (int b = 0; b < size; b++) {
+                    accumulate(batch[b], labels[b]);
+                }
+                step(alpha / size);
+            }
+        }
+    }
+
+    /* Output activations for one input, in float.
+     */
+    public float[] computeHypothesis(float[] input) {
+        forward(input);
+        return a3.clone();
+    }
+
+    /* The weights as an ordinary Model: the master weights if there are any, since they are the ones
+     * the updates went into, and otherwise the float working copy.
+     */
+    public Model toModel(String source) {
+        if (master1 != null) {
+            return new Model(unflattenDouble(master1, hidden, inputs + 1),
+                unflattenDouble(master2, classes, hidden + 1), outputLayer, source);
+        }
+        return new Model(unflatten(w1, hidden, inputs + 1), unflatten(w2, classes, hidden + 1), outputLayer, source);
+    }
+
+    private void forward(float[] x) {
+        int stride1 = inputs + 1;
+        a2[0] = 1;
+        for (int j = 0; j < hidden; j++) {
+            int row = j * stride1;
+            float z = w1[row];
+            for (int i = 0; i < inputs; i++) {
+                z += w1[row + 1 + i] * x[i];
+            }
+            a2[j + 1] = (float) (1 / (1 + Math.exp(-z)));
+        }
+
+        int stride2 = hidden + 1;
+        for (int k = 0; k < classes; k++) {
+            int row = k * stride2;
+            float z = 0;
+            for (int j = 0; j <= hidden; j++) {
+                z += w2[row + j] * a2[j];
+            }
+            z3[k] = z;
+        }
+        outputLayer.activate(z3, a3);
+    }
+
+    /* Adds the gradient of one example to g1 and g2.
+     */
+    private void accumulate(float[] x, int label) {
+        forward(x);
+        int stride1 = inputs + 1;
+        int stride2 = hidden + 1;
+
+        for (int k = 0; k < classes; k++) {
+            err3[k] = a3[k] - ((k == label) ? 1 : 0);
+            add(g2, c2, k * stride2, err3[k], a2, 0, stride2);
+        }
+
+        for (int j = 0; j < hidden; j++) {
+            float sum = 0;
+            for (int k = 0; k < classes; k++) {
+                sum += w2[k * stride2 + j + 1] * err3[k];
+            }
+            float a = a2[j + 1];
+            err2[j] = sum * a * (1 - a);
+        }
+        for (int j = 0; j < hidden; j++) {
+            float e = err2[j];
+            if (e == 0) {
+                continue;
+            }
+            int row = j * stride1;
+            if (kahan) {
+                kahanAdd(g1, c1, row, e);
+            } else {
+                g1[row] += e;
+            }
+            add(g1, c1, row + 1, e, x, 0, inputs);
+        }
+    }
+
+    /* g[offset + i] += scale * v[from + i] for i < length, compensated if Kahan summation is on.
+     */
+    private void add(float[] g, float[] c, int offset, float scale, float[] v, int from, int length) {
+        if (c == null) {
+            for (int i = 0; i < length; i++) {
+                g[offset + i] += scale * v[from + i];
+            }
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            float y = scale * v[from + i] - c[offset + i];
+            float t = g[offset + i] + y;
+            c[offset + i] = (t - g[offset + i]) - y;
+            g[offset + i] = t;
+        }
+    }
+
+    private static void kahanAdd(float[] g, float[] c, int i, float value) {
+        float y = value - c[i];
+        float t = g[i] + y;
+        c[i] = (t - g[i]) - y;
+        g[i] = t;
+    }
+
+    /* w := w - rate * g, through the master weights if there are any, and clears the accumulators.
+     */
+    private void step(double rate) {
+        update(w1, master1, g1, rate);
+        update(w2, master2, g2, rate);
+        java.util.Arrays.fill(g1, 0);
+        java.util.Arrays.fill(g2, 0);
+        if (kahan) {
+            java.util.Arrays.fill(c1, 0);
+            java.util.Arrays.fill(c2, 0);
+        }
+    }
+
+    private static void update(float[] w, double[] master, float[] g, double rate) {
+        if (master == null) {
+            float r = (float) rate;
+            for (int i = 0; i < w.length; i++) {
+                w[i] -= r * g[i];
+            }
+            return;
+        }
+        for (int i = 0; i < w.length; i++) {
+            master[i] -= rate * g[i];
+            w[i] = (float) master[i];
+        }
+    }
+
+    /* Unpacks the first input.length pixels of an image, like NeuralNetwork.toInput().
+     */
+    public static void toInput(PackedBitmap image, float[] input) {
+        long[] words = image.getWords();
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (words[i >>> 6] >>> i) & 1L;
+        }
+    }
+
+    private static float[] flatten(Matrix m) {
+        double[][] rows = m.getArray();
+        int cols = m.getColumnDimension();
+        float[] flat = new float[rows.length * cols];
+        for (int r = 0; r < rows.length; r++) {
+            for (int c = 0; c < cols; c++) {
+                flat[r * cols + c] = (float) rows[r][c];
+            }
+        }
+        return flat;
+    }
+
+    private static double[] flattenDouble(Matrix m) {
+        double[][] rows = m.getArray();
+        int cols = m.getColumnDimension();
+        double[] flat = new double[rows.length * cols];
+        for (int r = 0; r < rows.length; r++) {
+            // start from the float-rounded weights, so master and working copy agree
+            for (int c = 0; c < cols; c++) {
+                flat[r * cols + c] = (float) rows[r][c];
+            }
+        }
+        return flat;
+    }
+
+    private static Matrix unflatten(float[] flat, int rows, int cols) {
+        Matrix m = new Matrix(rows, cols);
+        double[][] entries = m.getArray();
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                entries[r][c] = flat[r * cols + c];
+            }
+        }
+        return m;
+    }
+
+    private static Matrix unflattenDouble(double[] flat, int rows, int cols) {
+        Matrix m = new Matrix(rows, cols);
+        double[][] entries = m.getArray();
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(flat, r * cols, entries[r], 0, cols);
+        }
+        return m;
+    }
+}
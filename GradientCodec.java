@@ -0,0 +1,100 @@
+
+/**
+ * The wire format used by DistributedTrainer to ship gradients and weights between JVMs.
+ *
+ * A message is a list of matrices.  Each one is sent as its row and column counts
+ * followed by its entries as 32 bit floats, row by row, which halves the traffic
+ * compared to doubles.  Gradients are averaged over many examples before they are sent,
+ * so float precision loses nothing we would notice.  Weights are sent the same way;
+ * the receiver keeps doing its arithmetic in doubles.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import Jama.Matrix;
+
+public final class GradientCodec {
+
+    // far more than any matrix we send, and small enough that a corrupt header cannot exhaust memory
+    private static final int MAX_ENTRIES = 1 << 26;
+
+    private GradientCodec() {
+    }
+
+    /* Writes m scaled by factor (so a summed gradient can be sent as a mean without a temporary matrix).
+     */
+    public static void write(DataOutputStream out, Matrix m, double factor) throws IOException {
+        double[][] entries = m.getArray();
+        out.writeInt(entries.length);
+        out.writeInt(entries[0].length);
+        for (int i = 0; i < entries.length; i++) {
+            double[] row = entries[i];
+            for (int j = 0; j < row.length; j++) {
+                out.writeFloat((float) (row[j] * factor));
+            }
+        }
+    }
+
+    /* Reads a matrix of whatever shape was sent.
+     */
+    public static Matrix read(DataInputStream in) throws IOException {
+        int rows = in.readInt();
+        int cols = in.readInt();
+        if (rows <= 0 || cols <= 0 || (long) rows * cols > MAX_ENTRIES) {
+            throw new IOException("Corrupt matrix header: " + rows + " x " + cols);
+        }
+        Matrix m = new Matrix(rows, cols);
+        double[][] entries = m.getArray();
+        for (int i = 0; i < entries.length; i++) {
+            double[] row = entries[i];
+            for (int j = 0; j < row.length; j++) {
+                row[j] = in.readFloat();
+            }
+        }
+        return m;
+    }
+
+    /* Reads a matrix into target, which must already have the right shape.
+     */
+    public static void readInto(DataInputStream in, Matrix target) throws IOException {
+        double[][] entries = target.getArray();
+        int rows = in.readInt();
+        int cols = in.readInt();
+        if (rows != entries.length || cols != entries[0].length) {
+            throw new IOException("Expected a " + entries.length + " x " + entries[0].length
+                + " matrix but got " + rows + " x " + cols);
+        }
+        for (int i = 0; i < rows; i++) {
+            double[] row = entries[i];
+            for (int j = 0; j < cols; j++) {
+                row[j] = in.readFloat();
+            }
+        }
+    }
+
+    /* Reads a matrix and adds weight times it to target.  Used by the coordinator to sum up the
+     * gradients of several workers without keeping a copy of each.
+     */
+    public static void addInto(DataInputStream in, Matrix target, double weight) throws IOException {
+        double[][] entries = target.getArray();
+        int rows = in.readInt();
+        int cols = in.readInt();
+        if (rows != entries.length || cols != entries[0].length) {
+            throw new IOException("Expected a " + entries.length + " x " + entries[0].length
+                + " matrix but got " + rows + " x " + cols);
+        }
+        for (int i = 0; i < rows; i++) {
+            double[] row = entries[i];
+            for (int j = 0; j < cols; j++) {
+                row[j] += weight * in.readFloat();
+            }
+        }
+    }
+
+    /* The number of bytes write() produces for m.
+     */
+    public static long encodedSize(Matrix m) {
+        return 8L + 4L * m.getRowDimension() * m.getColumnDimension();
+    }
+}
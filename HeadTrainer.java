@@ -0,0 +1,206 @@
+
+/**
+ * Retrains only the output layer (theta2) of a trained network, with theta1 frozen.  The
+ * hidden activations of every example are computed once into an ActivationCache, and
+ * then mini-batch gradient descent runs on the 10 x (hidden + 1) output weights alone,
+ * which is a small fraction of the work of an epoch of full back propagation.  Use it to
+ * retune the classifier head after new labelled data arrives, or to switch a model
+ * between the sigmoid and softmax output layers.
+ *
+ * main() reports accuracy on the training and the held out examples before and after, and
+ * how long the head took compared with the same number of epochs of full training
+ * (measured over one epoch).
+ *
+ * Usage:
+ *   java HeadTrainer model-file | - input-file [epochs] [alpha] [sigmoid | softmax] [cache-file | -] [model-out]
+ *
+ * Every fifth example of the input file is held out for testing.  The test figures are only
+ * held out if the model never saw those examples; a model trained on the whole input file
+ * has, so with - in place of the model file a base model is first trained from scratch,
+ * for BASE_EPOCHS epochs, on the training examples alone.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.util.Random;
+import Jama.Matrix;
+
+public class HeadTrainer {
+
+    public static final int DEFAULT_EPOCHS = 200;
+    public static final double DEFAULT_ALPHA = 0.5;
+    private static final int BASE_EPOCHS = 200;
+    private static final int BATCH_SIZE = 32;
+    private static final long DEFAULT_SEED = 478978392;
+
+    private final Model base;
+    private final LabelledImages data;
+    private final ActivationCache cache;
+    private final long cacheNanos;
+
+    /* Computes the activation cache straight away; cacheFile null keeps it in memory.
+     */
+    public HeadTrainer(Model base, LabelledImages data, File cacheFile) throws IOException {
+        this.base = base;
+        this.data = data;
+        long start = System.nanoTime();
+        this.cache = ActivationCache.compute(base, data, cacheFile);
+        this.cacheNanos = System.nanoTime() - start;
+    }
+
+    public long getCacheNanos() {
+        return cacheNanos;
+    }
+
+    /* Trains a copy of theta2 for the given number of epochs, starting from the base model's, and
+     * returns a new Model with the base's theta1 and the new theta2.  The thread's interrupt flag is
+     * checked every batch.
+     */
+    public Model train(int epochs, double alpha, OutputLayer outputLayer) throws InterruptedException {
+        Matrix theta2 = base.getTheta2().copy();
+        Matrix delta2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+        LinearAlgebra kernels = NeuralNetwork.getBackend();
+        int n = cache.size();
+        int classes = theta2.getRowDimension();
+        double[] a2 = new double[cache.getHiddenLayerSize() + 1];
+        double[] z3 = new double[classes];
+        double[] err3 = new double[classes];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+
+        for (int epoch = 1; epoch <= epochs; epoch++) {
+            Random random = new Random(DEFAULT_SEED * 31 + epoch);
+            for (int i = n - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+            for (int start = 0; start < n; start += BATCH_SIZE) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                int end = Math.min(n, start + BATCH_SIZE);
+                kernels.clear(delta2);
+                for (int b = start; b < end; b++) {
+                    int example = order[b];
+                    cache.get(example, a2);
+                    kernels.multiply(theta2, a2, z3);
+                    outputLayer.activate(z3, err3);
+                    err3[data.getLabel(example)] -= 1;
+                    kernels.addOuterProduct(delta2, err3, a2, false);
+                }
+                kernels.step(theta2, delta2, alpha / (end - start));
+            }
+        }
+        return new Model(base.getTheta1(), theta2, outputLayer, "head retrained from " + base.getSource());
+    }
+
+    public void close() throws IOException {
+        cache.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.print("usage: java HeadTrainer model-file input-file [epochs] [alpha] [sigmoid | softmax]"
+                + " [cache-file | -] [model-out]\n");
+            System.exit(1);
+        }
+        LabelledImages all = Dataset.open(new File(args[1]));
+        try {
+            int epochs = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_EPOCHS;
+            double alpha = (args.length > 3) ? Double.parseDouble(args[3]) : DEFAULT_ALPHA;
+            File cacheFile = (args.length > 5 && !args[5].equals("-")) ? new File(args[5]) : null;
+
+            LabelledImages train = LabelledSubset.allBut(all, 5, 4);
+            LabelledImages test = LabelledSubset.every(all, 5, 4);
+
+            Model model;
+            if (args[0].equals("-")) {
+                OutputLayer baseLayer = (args.length > 4) ? OutputLayer.fromFileName(args[4]) : OutputLayer.SIGMOID;
+                Model initial = OnlineTrainer.createInitialModel(new Random(DEFAULT_SEED), baseLayer);
+                model = trainFull(initial, train, BASE_EPOCHS, alpha);
+                System.out.print("Trained a base model on the training examples for " + BASE_EPOCHS + " epochs\n");
+            } else {
+                model = Model.read(new File(args[0]));
+            }
+            OutputLayer outputLayer = (args.length > 4) ? OutputLayer.fromFileName(args[4]) : model.getOutputLayer();
+
+            HeadTrainer trainer = new HeadTrainer(model, train, cacheFile);
+            long start = System.nanoTime();
+            Model retrained;
+            try {
+                retrained = trainer.train(epochs, alpha, outputLayer);
+            } finally {
+                trainer.close();
+            }
+            long headNanos = System.nanoTime() - start;
+
+            // one epoch of full back propagation over the same examples, for comparison; the first is a warm-up
+            Model full = new Model(model.getTheta1(), model.getTheta2(), outputLayer, model.getSource());
+            trainFull(full, train, 1, alpha);
+            start = System.nanoTime();
+            trainFull(full, train, 1, alpha);
+            long fullEpochNanos = System.nanoTime() - start;
+
+            System.out.print(train.size() + " training and " + test.size() + " test examples, " + outputLayer.fileName()
+                + " output\n");
+            System.out.print(String.format("%-28s %9s %9s%n", "accuracy", "train", "test"));
+            System.out.print(String.format("%-28s %8.1f%% %8.1f%%%n", "before", 100 * accuracy(model, train),
+                100 * accuracy(model, test)));
+            System.out.print(String.format("%-28s %8.1f%% %8.1f%%%n", "after " + epochs + " epochs of the head",
+                100 * accuracy(retrained, train), 100 * accuracy(retrained, test)));
+            System.out.print(String.format("Activation cache %.1f ms, head training %.1f ms; %d full epochs would take"
+                + " about %.0f ms (%.1f%%)\n", trainer.getCacheNanos() / 1e6, headNanos / 1e6, epochs,
+                fullEpochNanos * (double) epochs / 1e6,
+                100.0 * (trainer.getCacheNanos() + headNanos) / (fullEpochNanos * (double) epochs)));
+            if (args.length > 6) {
+                retrained.write(new File(args[6]));
+                System.out.print("Wrote " + args[6] + "\n");
+            }
+        } finally {
+            all.close();
+        }
+    }
+
+    /* Mini-batch back propagation of both layers, as the window trains, starting from copies of the
+     * model's weights.
+     */
+    private static Model trainFull(Model start, LabelledImages data, int epochs, double alpha)
+            throws InterruptedException {
+        Matrix theta1 = start.getTheta1().copy();
+        Matrix theta2 = start.getTheta2().copy();
+        Matrix delta1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+        Matrix delta2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+        BatchLoader loader = new BatchLoader(data, BATCH_SIZE, start.getInputDimension(), DEFAULT_SEED, epochs);
+        try {
+            BatchLoader.Batch batch;
+            while ((batch = loader.take()) != null) {
+                NeuralNetwork.clear(delta1);
+                NeuralNetwork.clear(delta2);
+                NeuralNetwork.accumulateBatchGradient(batch.inputs, batch.labels, batch.size, theta1, theta2,
+                    start.getOutputLayer(), delta1, delta2);
+                NeuralNetwork.step(theta1, delta1, alpha / batch.size);
+                NeuralNetwork.step(theta2, delta2, alpha / batch.size);
+                loader.release(batch);
+            }
+        } finally {
+            loader.close();
+        }
+        return new Model(theta1, theta2, start.getOutputLayer(), "trained on " + data.size() + " examples");
+    }
+
+    private static double accuracy(Model model, LabelledImages test) {
+        int correct = 0;
+        for (int i = 0; i < test.size(); i++) {
+            double[] input = NeuralNetwork.toInput(test.getImage(i), model.getInputDimension());
+            if (NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(input, model)) == test.getLabel(i)) {
+                ++correct;
+            }
+        }
+        return correct / (double) test.size();
+    }
+}
@@ -0,0 +1,160 @@
+
+/**
+ * Classifies a drawing as it is being drawn, without redoing the whole forward pass after
+ * every pen event.
+ *
+ * The input units are binary, so the hidden pre-activations theta1 * a1 only change by
+ * one column of theta1 (plus or minus) for each pixel that is switched on or off.  The
+ * session keeps those pre-activations for the last bitmap it saw; update() compares the
+ * new bitmap with the old one word by word and applies only the columns of the pixels
+ * that differ, then redoes the small hidden-to-output part.  A stroke touching a few
+ * cells costs a few hundred additions instead of the 65,000 multiply-adds of the input
+ * layer.
+ *
+ * The columns of theta1 are copied once into rows of their own so each delta is a
+ * contiguous pass.  Repeated additions and subtractions drift a little, so after
+ * RESYNC_INTERVAL pixel changes the pre-activations are recomputed from scratch.
+ *
+ * A session belongs to one model; make a new one when a different model is published.
+ * It is not thread safe.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+public class InferenceSession {
+
+    private static final int RESYNC_INTERVAL = 4096;   // pixel changes between full recomputations
+
+    private final Model model;
+    private final double[][] columns;   // columns[i] is column i + 1 of theta1 (the weights of input unit i)
+    private final double[] bias;        // column 0 of theta1
+    private final double[] z2;          // hidden pre-activations for the current bitmap
+    private final double[] a2;
+    private final double[] z3;
+    private final int inputs;
+
+    private PackedBitmap current;
+    private int changesSinceResync;
+    private long lastUpdateNanos;
+    private int lastChangedPixels;
+
+    public InferenceSession(Model model) {
+        this.model = model;
+        double[][] t1 = model.getTheta1().getArray();
+        int hidden = t1.length;
+        inputs = model.getInputDimension();
+
+        columns = new double[inputs][hidden];
+        bias = new double[hidden];
+        for (int j = 0; j < hidden; j++) {
+            bias[j] = t1[j][0];
+            for (int i = 0; i < inputs; i++) {
+                columns[i][j] = t1[j][i + 1];
+            }
+        }
+        z2 = bias.clone();
+        a2 = new double[hidden + 1];
+        z3 = new double[model.getNumOutputClasses()];
+        current = new PackedBitmap(PackedBitmap.NUM_PIXELS, new long[PackedBitmap.wordsFor(PackedBitmap.NUM_PIXELS)]);
+    }
+
+    public Model getModel() {
+        return model;
+    }
+
+    /* Moves the session to the given bitmap and returns the output activations for it.
+     */
+    public double[] update(PackedBitmap image) {
+        long start = System.nanoTime();
+        if (image.getNumPixels() != current.getNumPixels()) {
+            current = new PackedBitmap(image.getNumPixels(), new long[image.getWords().length]);
+            System.arraycopy(bias, 0, z2, 0, z2.length);
+        }
+        long[] oldWords = current.getWords();
+        long[] newWords = image.getWords();
+        int changed = 0;
+
+        for (int w = 0; w < newWords.length; w++) {
+            long diff = oldWords[w] ^ newWords[w];
+            while (diff != 0) {
+                int pixel = (w << 6) + Long.numberOfTrailingZeros(diff);
+                diff &= diff - 1;
+                ++changed;
+                if (pixel >= inputs) {
+                    continue;   // pixels past the input dimension are not seen by the network
+                }
+                double[] column = columns[pixel];
+                if (image.get(pixel)) {
+                    for (int j = 0; j < z2.length; j++) {
+                        z2[j] += column[j];
+                    }
+                } else {
+                    for (int j = 0; j < z2.length; j++) {
+                        z2[j] -= column[j];
+                    }
+                }
+            }
+        }
+        current = image;
+        changesSinceResync += changed;
+        if (changesSinceResync >= RESYNC_INTERVAL) {
+            resync();
+        }
+
+        double[] a3 = computeOutput();
+        lastChangedPixels = changed;
+        lastUpdateNanos = System.nanoTime() - start;
+        return a3;
+    }
+
+    /* Recomputes the hidden pre-activations for the current bitmap from scratch.
+     */
+    public void resync() {
+        System.arraycopy(bias, 0, z2, 0, z2.length);
+        long[] words = current.getWords();
+        for (int w = 0; w < words.length; w++) {
+            long bits = words[w];
+            while (bits != 0) {
+                int pixel = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (pixel < inputs) {
+                    double[] column = columns[pixel];
+                    for (int j = 0; j < z2.length; j++) {
+                        z2[j] += column[j];
+                    }
+                }
+            }
+        }
+        changesSinceResync = 0;
+    }
+
+    public long getLastUpdateNanos() {
+        return lastUpdateNanos;
+    }
+
+    public int getLastChangedPixels() {
+        return lastChangedPixels;
+    }
+
+    /* The cheap part of the forward pass: hidden activations from z2, then the output layer.  Same
+     * arithmetic as NeuralNetwork.computeHypothesis() from that point on.
+     */
+    private double[] computeOutput() {
+        a2[0] = 1;
+        for (int j = 0; j < z2.length; j++) {
+            a2[j + 1] = NeuralNetwork.logisticFunction(z2[j]);
+        }
+        double[][] t2 = model.getTheta2().getArray();
+        for (int k = 0; k < t2.length; k++) {
+            double[] row = t2[k];
+            double z = 0;
+            for (int j = 0; j < a2.length; j++) {
+                z += row[j] * a2[j];
+            }
+            z3[k] = z;
+        }
+        double[] a3 = new double[z3.length];
+        model.getOutputLayer().activate(z3, a3);
+        return a3;
+    }
+}
@@ -0,0 +1,82 @@
+
+/**
+ * The reference LinearAlgebra backend: everything is done with Jama's own operations, the
+ * way the network was first written.  Vectors are wrapped in column matrices and every
+ * product makes new matrices, so it is slow; it is here to check the other backends
+ * against (see BackendConformance) and as a fall back.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import Jama.Matrix;
+
+public class JamaBackend implements LinearAlgebra {
+
+    public String name() {
+        return "jama";
+    }
+
+    public void multiplyWithBias(Matrix a, double[] x, double[] y) {
+        Matrix withBias = new Matrix(a.getColumnDimension(), 1);
+        withBias.set(0, 0, 1);
+        for (int i = 1; i < a.getColumnDimension(); i++) {
+            withBias.set(i, 0, x[i - 1]);
+        }
+        copyColumn(a.times(withBias), y, 0, a.getRowDimension());
+    }
+
+    public void multiply(Matrix a, double[] x, double[] y) {
+        copyColumn(a.times(column(x, a.getColumnDimension())), y, 0, a.getRowDimension());
+    }
+
+    public void multiplyTransposed(Matrix a, double[] x, double[] y, int skip) {
+        copyColumn(a.transpose().times(column(x, a.getRowDimension())), y, skip, a.getColumnDimension() - skip);
+    }
+
+    public void addOuterProduct(Matrix a, double[] u, double[] v, boolean withBias) {
+        Matrix right = new Matrix(1, a.getColumnDimension());
+        int offset = 0;
+        if (withBias) {
+            right.set(0, 0, 1);
+            offset = 1;
+        }
+        for (int i = offset; i < a.getColumnDimension(); i++) {
+            right.set(0, i, v[i - offset]);
+        }
+        a.plusEquals(column(u, a.getRowDimension()).times(right));
+    }
+
+    public void step(Matrix theta, Matrix delta, double rate) {
+        theta.minusEquals(delta.times(rate));
+    }
+
+    public void clear(Matrix m) {
+        for (int i = 0; i < m.getRowDimension(); i++) {
+            for (int j = 0; j < m.getColumnDimension(); j++) {
+                m.set(i, j, 0);
+            }
+        }
+    }
+
+    public Matrix times(Matrix a, Matrix b) {
+        return a.times(b);
+    }
+
+    public Matrix transpose(Matrix a) {
+        return a.transpose();
+    }
+
+    private static Matrix column(double[] x, int length) {
+        Matrix m = new Matrix(length, 1);
+        for (int i = 0; i < length; i++) {
+            m.set(i, 0, x[i]);
+        }
+        return m;
+    }
+
+    private static void copyColumn(Matrix m, double[] y, int skip, int length) {
+        for (int i = 0; i < length; i++) {
+            y[i] = m.get(i + skip, 0);
+        }
+    }
+}
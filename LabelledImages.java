@@ -0,0 +1,23 @@
+
+/**
+ * Read only access to a labelled set of drawings, by position.  Dataset (in memory),
+ * DatasetStore (memory mapped) and LabelledSubset (some records of another set) all
+ * provide it, so the code that only reads its examples -- the BatchLoader and the
+ * trainers -- works with any of them.
+ *
+ * close() releases whatever the set holds on to; for a store that is the mapped file,
+ * for the others it does nothing.  Dataset.open() gives the right kind for a file.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.Closeable;
+
+public interface LabelledImages extends Closeable {
+
+    int size();
+
+    PackedBitmap getImage(int index);
+
+    int getLabel(int index);
+}
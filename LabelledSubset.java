@@ -0,0 +1,64 @@
+
+/**
+ * Some of the records of another LabelledImages, picked by record number, without copying
+ * them: a training or test split of a mapped DatasetStore stays on disk.  Closing a
+ * subset does not close the set it was taken from; whoever opened that closes it.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.util.Arrays;
+
+public class LabelledSubset implements LabelledImages {
+
+    private final LabelledImages source;
+    private final int[] records;
+
+    public LabelledSubset(LabelledImages source, int[] records) {
+        this.source = source;
+        this.records = records;
+    }
+
+    /* The records whose position modulo every is remainder: every(all, 5, 4) is every fifth record,
+     * the usual held out test examples.
+     */
+    public static LabelledSubset every(LabelledImages source, int every, int remainder) {
+        int[] records = new int[(source.size() + every - 1 - remainder) / every];
+        for (int k = 0; k < records.length; k++) {
+            records[k] = k * every + remainder;
+        }
+        return new LabelledSubset(source, records);
+    }
+
+    /* The records whose position modulo every is none of the given remainders.
+     */
+    public static LabelledSubset allBut(LabelledImages source, int every, int... remainders) {
+        int[] records = new int[source.size()];
+        int count = 0;
+        for (int i = 0; i < source.size(); i++) {
+            boolean excluded = false;
+            for (int remainder : remainders) {
+                excluded |= (i % every == remainder);
+            }
+            if (!excluded) {
+                records[count++] = i;
+            }
+        }
+        return new LabelledSubset(source, Arrays.copyOf(records, count));
+    }
+
+    public int size() {
+        return records.length;
+    }
+
+    public PackedBitmap getImage(int index) {
+        return source.getImage(records[index]);
+    }
+
+    public int getLabel(int index) {
+        return source.getLabel(records[index]);
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,75 @@
+
+/**
+ * The handful of matrix kernels the network needs for the forward pass, back propagation
+ * and the weight update, behind one interface so the implementation can be swapped.
+ * NeuralNetwork does all its arithmetic through the backend returned by
+ * NeuralNetwork.getBackend().
+ *
+ * Matrices are Jama Matrix objects throughout, so weights, files and the rest of the
+ * program do not change with the backend; vectors are plain double arrays.  Weight
+ * matrices keep the bias in column 0, as everywhere else.  Vector lengths are taken from
+ * the matrix: a vector may be longer than needed, and the extra entries are ignored (and
+ * left alone, for outputs).
+ *
+ * Backends, by the name forName() knows them by:
+ *   "jama"     JamaBackend, only Jama's own operations (times, transpose, plusEquals,
+ *              ...); slow, but the reference the others are checked against;
+ *   "blocked"  BlockedBackend, plain loops over the arrays, in place, with a blocked
+ *              and multi-threaded matrix product; the default.
+ * Pick one with -Dnn.backend=<name>.  BackendConformance checks every backend against
+ * the reference.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import Jama.Matrix;
+
+public interface LinearAlgebra {
+
+    String name();
+
+    /* y = a * [1; x]: column 0 of a is multiplied by the bias unit, and x holds the other
+     * columns - 1 entries.
+     */
+    void multiplyWithBias(Matrix a, double[] x, double[] y);
+
+    /* y = a * x.
+     */
+    void multiply(Matrix a, double[] x, double[] y);
+
+    /* y = (a' * x) without the first skip entries: y[i] = sum over k of a[k][i + skip] * x[k], for
+     * i < columns - skip.  With skip 1 this is the back propagated error without the bias unit.
+     */
+    void multiplyTransposed(Matrix a, double[] x, double[] y, int skip);
+
+    /* a += u * [1; v]' if withBias, otherwise a += u * v'.
+     */
+    void addOuterProduct(Matrix a, double[] u, double[] v, boolean withBias);
+
+    /* theta := theta - rate * delta, in place.
+     */
+    void step(Matrix theta, Matrix delta, double rate);
+
+    /* Sets every entry to zero, in place.
+     */
+    void clear(Matrix m);
+
+    /* A new matrix a * b.  Back propagation of a whole mini-batch is made of these and transpose()
+     * (see NeuralNetwork.accumulateBatchGradient()).
+     */
+    Matrix times(Matrix a, Matrix b);
+
+    /* A new matrix a'.
+     */
+    Matrix transpose(Matrix a);
+
+    static LinearAlgebra forName(String name) {
+        if (name.equalsIgnoreCase("jama")) {
+            return new JamaBackend();
+        }
+        if (name.equalsIgnoreCase("blocked")) {
+            return new BlockedBackend();
+        }
+        throw new IllegalArgumentException("Unknown linear algebra backend: " + name + " (use jama or blocked)");
+    }
+}
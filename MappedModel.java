@@ -0,0 +1,249 @@
+
+/**
+ * Network weights in a flat binary file that is memory mapped rather than read, for
+ * programs that start, classify a few drawings and exit (see ClassifyCli).  Opening one
+ * costs a header read and an mmap; the weights are paged in by the operating system the
+ * first time the forward pass touches them, and nothing is parsed or copied.
+ *
+ * File layout, little-endian: MAGIC, VERSION, the output layer ordinal, the input,
+ * hidden and output sizes as ints, the length and modification time of the weight file
+ * it was converted from as longs (-1 if there was none), then theta1 and theta2 row by
+ * row as doubles (bias column first), starting at HEADER_SIZE so they are 8-byte aligned.
+ * isCopyOf() compares the recorded length and time with those of the source, so a
+ * converted copy is only used while the source is exactly the file it was made from.
+ *
+ * fromModel() gives the same thing on the heap, for when the file cannot be written.
+ *
+ * Classifying through this class loads only it, OutputLayer and the java.nio classes:
+ * not Jama, and not NeuralNetwork or its LinearAlgebra backend, so -Dnn.backend plays no
+ * part.  Only converting a text weight file (write(), fromModel()) goes through Model
+ * and Jama.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+public final class MappedModel {
+
+    static final int MAGIC = 0x44474d4d;   // "DGMM"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+
+    private final DoubleBuffer weights;
+    private final OutputLayer outputLayer;
+    private final int inputs;
+    private final int hidden;
+    private final int classes;
+    private final int theta2Offset;
+    private final long sourceLength;
+    private final long sourceModified;
+
+    private MappedModel(DoubleBuffer weights, OutputLayer outputLayer, int inputs, int hidden, int classes,
+                        long sourceLength, long sourceModified) {
+        this.weights = weights;
+        this.outputLayer = outputLayer;
+        this.inputs = inputs;
+        this.hidden = hidden;
+        this.classes = classes;
+        this.theta2Offset = hidden * (inputs + 1);
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+    }
+
+    /* Maps a file written by write().  The mapping stays valid after the channel is closed.
+     */
+    public static MappedModel open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new IOException(file + " is not a mapped model");
+            }
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, length), file.toString());
+        } finally {
+            channel.close();
+        }
+    }
+
+    /* The model in a heap buffer laid out like the file, for when there is nowhere to write a mapped
+     * copy.  The source arguments are as for write().
+     */
+    public static MappedModel fromModel(Model model, long sourceLength, long sourceModified) throws IOException {
+        return parse(encode(model, sourceLength, sourceModified), model.toString());
+    }
+
+    /* True if this was converted from source as it is now: same length and modification time.
+     */
+    public boolean isCopyOf(File source) {
+        return sourceLength >= 0 && source.length() == sourceLength && source.lastModified() == sourceModified;
+    }
+
+    /* Checks the first four bytes only.
+     */
+    public static boolean isMapped(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return Integer.reverseBytes(in.readInt()) == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /* Writes the model to a temporary file next to the target and renames it into place, like
+     * Model.write().  sourceLength and sourceModified are those of the weight file the model was read
+     * from, or -1.  They should be taken before reading it, so a change made meanwhile shows up as a
+     * mismatch rather than being missed.
+     */
+    public static void write(Model model, File file, long sourceLength, long sourceModified) throws IOException {
+        ByteBuffer buffer = encode(model, sourceLength, sourceModified);
+
+        File target = file.getAbsoluteFile();
+        File temp = File.createTempFile(".model", ".tmp", target.getParentFile());
+        try {
+            FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                channel.close();
+            }
+            try {
+                Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /* Checks the header and wraps the weights that follow it.  name is only used in messages.
+     */
+    private static MappedModel parse(ByteBuffer buffer, String name) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(name + " is not a mapped model");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(name + " has unsupported version " + buffer.getInt(4));
+        }
+        int layer = buffer.getInt(8);
+        int inputs = buffer.getInt(12);
+        int hidden = buffer.getInt(16);
+        int classes = buffer.getInt(20);
+        OutputLayer[] layers = OutputLayer.values();
+        if (layer < 0 || layer >= layers.length || inputs < 1 || hidden < 1 || classes < 1) {
+            throw new IOException(name + " has a corrupt header");
+        }
+        long expected = HEADER_SIZE + 8L * ((long) hidden * (inputs + 1) + (long) classes * (hidden + 1));
+        if (buffer.limit() != expected) {
+            throw new IOException(name + " is " + buffer.limit() + " bytes, expected " + expected);
+        }
+        buffer.position(HEADER_SIZE);
+        return new MappedModel(buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer(), layers[layer],
+            inputs, hidden, classes, buffer.getLong(24), buffer.getLong(32));
+    }
+
+    /* The file contents, ready to be written.
+     */
+    private static ByteBuffer encode(Model model, long sourceLength, long sourceModified) {
+        double[][] theta1 = model.getTheta1().getArray();
+        double[][] theta2 = model.getTheta2().getArray();
+        int inputs = model.getInputDimension();
+        int hidden = model.getHiddenLayerSize();
+        int classes = model.getNumOutputClasses();
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 * (hidden * (inputs + 1) + classes * (hidden + 1)))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(model.getOutputLayer().ordinal());
+        buffer.putInt(inputs).putInt(hidden).putInt(classes);
+        buffer.putLong(sourceLength).putLong(sourceModified);
+        buffer.position(HEADER_SIZE);
+        for (double[] row : theta1) {
+            for (double w : row) {
+                buffer.putDouble(w);
+            }
+        }
+        for (double[] row : theta2) {
+            for (double w : row) {
+                buffer.putDouble(w);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public OutputLayer getOutputLayer() {
+        return outputLayer;
+    }
+
+    public int getInputDimension() {
+        return inputs;
+    }
+
+    public int getHiddenLayerSize() {
+        return hidden;
+    }
+
+    public int getNumOutputClasses() {
+        return classes;
+    }
+
+    /* Output activations for one drawing; the first getInputDimension() pixels are the input units.
+     * Only the columns of ink pixels are added up, since the others are multiplied by 0.
+     */
+    public double[] computeHypothesis(PackedBitmap image) {
+        DoubleBuffer w = weights;
+        long[] words = image.getWords();
+        int stride1 = inputs + 1;
+
+        double[] a2 = new double[hidden + 1];
+        a2[0] = 1;
+        for (int j = 0; j < hidden; j++) {
+            int row = j * stride1;
+            double z = w.get(row);
+            for (int word = 0; word < words.length; word++) {
+                long bits = words[word];
+                while (bits != 0) {
+                    int i = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    if (i >= inputs) {
+                        break;
+                    }
+                    z += w.get(row + 1 + i);
+                    bits &= bits - 1;
+                }
+            }
+            a2[j + 1] = 1 / (1 + Math.exp(-z));
+        }
+
+        int stride2 = hidden + 1;
+        double[] z3 = new double[classes];
+        for (int k = 0; k < classes; k++) {
+            int row = theta2Offset + k * stride2;
+            double z = 0;
+            for (int j = 0; j <= hidden; j++) {
+                z += w.get(row + j) * a2[j];
+            }
+            z3[k] = z;
+        }
+        double[] a3 = new double[classes];
+        outputLayer.activate(z3, a3);
+        return a3;
+    }
+
+    public String toString() {
+        return "MappedModel (" + inputs + "-" + hidden + "-" + classes + " " + outputLayer.fileName() + ")";
+    }
+}
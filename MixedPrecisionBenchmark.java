@@ -0,0 +1,106 @@
+
+/**
+ * Trains the same network from the same initial weights in double precision (the
+ * NeuralNetwork path the window uses) and with FloatTrainer in its three settings, and
+ * compares the time per epoch, the final accuracy on held out examples and how far the
+ * final weights drifted from the double precision ones.
+ *
+ * Usage: java MixedPrecisionBenchmark [input-file] [epochs] [alpha] [sigmoid | softmax]
+ *
+ * Every fifth example of the input file is held out for testing.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.util.Random;
+import Jama.Matrix;
+
+public class MixedPrecisionBenchmark {
+
+    private static final long DEFAULT_SEED = 478978392;
+    private static final int BATCH_SIZE = 32;
+    // after 30 epochs every path still gives the same 50% on the training set, which compares nothing
+    private static final int DEFAULT_EPOCHS = 200;
+
+    public static void main(String[] args) throws Exception {
+        File file = new File((args.length > 0) ? args[0] : "trainingSet.input");
+        int epochs = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_EPOCHS;
+        double alpha = (args.length > 2) ? Double.parseDouble(args[2]) : 0.5;
+        OutputLayer outputLayer = (args.length > 3) ? OutputLayer.fromFileName(args[3]) : OutputLayer.SIGMOID;
+
+        LabelledImages all = Dataset.open(file);
+        try {
+            LabelledImages train = LabelledSubset.allBut(all, 5, 4);
+            LabelledImages test = LabelledSubset.every(all, 5, 4);
+            Model start = OnlineTrainer.createInitialModel(new Random(DEFAULT_SEED), outputLayer);
+            System.out.print(train.size() + " training and " + test.size() + " test examples, " + epochs + " epochs, "
+                + outputLayer.fileName() + " output\n\n");
+            System.out.print(String.format("%-36s %12s %10s %14s%n", "path", "ms/epoch", "accuracy", "max |w - w64|"));
+
+            // double precision, one example at a time like FloatTrainer (performBackPropagation() batches the same math)
+            Matrix theta1 = start.getTheta1().copy();
+            Matrix theta2 = start.getTheta2().copy();
+            Matrix delta1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+            Matrix delta2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+            long t0 = System.nanoTime();
+            BatchLoader loader = new BatchLoader(train, BATCH_SIZE, start.getInputDimension(), DEFAULT_SEED, epochs);
+            try {
+                BatchLoader.Batch batch;
+                while ((batch = loader.take()) != null) {
+                    NeuralNetwork.clear(delta1);
+                    NeuralNetwork.clear(delta2);
+                    for (int i = 0; i < batch.size; i++) {
+                        NeuralNetwork.accumulateGradient(batch.inputs[i], NeuralNetwork.vectorizeY(batch.labels[i]),
+                            theta1, theta2, outputLayer, delta1, delta2);
+                    }
+                    NeuralNetwork.step(theta1, delta1, alpha / batch.size);
+                    NeuralNetwork.step(theta2, delta2, alpha / batch.size);
+                    loader.release(batch);
+                }
+            } finally {
+                loader.close();
+            }
+            Model reference = new Model(theta1, theta2, outputLayer, "double");
+            row("double", System.nanoTime() - t0, epochs, reference, reference, test);
+
+            boolean[][] settings = {{true, true}, {true, false}, {false, false}};
+            for (boolean[] setting : settings) {
+                FloatTrainer trainer = new FloatTrainer(start, outputLayer, setting[0], setting[1]);
+                t0 = System.nanoTime();
+                trainer.train(train, epochs, BATCH_SIZE, alpha, DEFAULT_SEED);
+                long nanos = System.nanoTime() - t0;
+                String name = "float" + (setting[0] ? ", double master weights" : "") + (setting[1] ? ", Kahan" : "");
+                row(name, nanos, epochs, trainer.toModel(name), reference, test);
+            }
+        } finally {
+            all.close();
+        }
+    }
+
+    private static void row(String name, long nanos, int epochs, Model model, Model reference, LabelledImages test) {
+        int correct = 0;
+        for (int i = 0; i < test.size(); i++) {
+            double[] input = NeuralNetwork.toInput(test.getImage(i), model.getInputDimension());
+            if (NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(input, model)) == test.getLabel(i)) {
+                ++correct;
+            }
+        }
+        double drift = Math.max(maxDifference(model.getTheta1(), reference.getTheta1()),
+            maxDifference(model.getTheta2(), reference.getTheta2()));
+        System.out.print(String.format("%-36s %12.1f %9.1f%% %14.2e%n", name, nanos / 1e6 / epochs,
+            100.0 * correct / test.size(), drift));
+    }
+
+    private static double maxDifference(Matrix a, Matrix b) {
+        double[][] x = a.getArray();
+        double[][] y = b.getArray();
+        double max = 0;
+        for (int i = 0; i < x.length; i++) {
+            for (int j = 0; j < x[i].length; j++) {
+                max = Math.max(max, Math.abs(x[i][j] - y[i][j]));
+            }
+        }
+        return max;
+    }
+}
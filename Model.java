@@ -0,0 +1,188 @@
+
+/**
+ * One complete, immutable set of network weights: theta1 (input to hidden) and theta2
+ * (hidden to output).  Models are read and validated in full before anybody gets to see
+ * them, and are then handed out as a single reference, so a classification can never
+ * pair a new theta1 with an old theta2.
+ *
+ * A Model also records which OutputLayer it was trained with.  Weight files start with a
+ * "# output-layer softmax" style header line; files without one are from before we had
+ * a choice and are read as sigmoid models.
+ *
+ * Every Model gets its own version number when it is created.  Things that depend on a
+ * particular set of weights (the PredictionCache, for example) use it to tell models apart.
+ *
+ * The theta matrices are shared, not copied.  Nobody may modify them once they have been
+ * wrapped in a Model.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import Jama.Matrix;
+
+public final class Model {
+
+    private static final AtomicLong NEXT_VERSION = new AtomicLong(1);
+    private static final String OUTPUT_LAYER_HEADER = "# output-layer ";
+    private static final int MAX_HEADER_LENGTH = 1 << 16;
+
+    private final Matrix theta1;
+    private final Matrix theta2;
+    private final OutputLayer outputLayer;
+    private final long version;
+    private final String source;   // where the weights came from, for log messages
+
+    public Model(Matrix theta1, Matrix theta2, OutputLayer outputLayer, String source) {
+        validate(theta1, theta2);
+        this.theta1 = theta1;
+        this.theta2 = theta2;
+        this.outputLayer = outputLayer;
+        this.source = source;
+        this.version = NEXT_VERSION.getAndIncrement();
+    }
+
+    public Matrix getTheta1() {
+        return theta1;
+    }
+
+    public Matrix getTheta2() {
+        return theta2;
+    }
+
+    public OutputLayer getOutputLayer() {
+        return outputLayer;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int getInputDimension() {
+        return theta1.getColumnDimension() - 1;
+    }
+
+    public int getHiddenLayerSize() {
+        return theta1.getRowDimension();
+    }
+
+    public int getNumOutputClasses() {
+        return theta2.getRowDimension();
+    }
+
+    /* Reads a model in the format written by write() (and by the "Save Thetas" button):
+     * the optional header line, then theta1 and theta2 as printed by Matrix.print(), one
+     * after the other.
+     */
+    public static Model read(File file) throws IOException {
+        BufferedReader infile = new BufferedReader(new FileReader(file));
+        try {
+            return read(infile, file.getPath());
+        } finally {
+            infile.close();
+        }
+    }
+
+    public static Model read(BufferedReader infile, String source) throws IOException {
+        OutputLayer outputLayer = readHeader(infile);
+        Matrix theta1 = Matrix.read(infile);
+        Matrix theta2 = Matrix.read(infile);
+        try {
+            return new Model(theta1, theta2, outputLayer, source);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(source + ": " + e.getMessage());
+        }
+    }
+
+    /* Writes the model to a temporary file next to the target and then renames it into
+     * place, so a ModelRegistry watching the directory never sees a half written file.
+     */
+    public void write(File file) throws IOException {
+        File target = file.getAbsoluteFile();
+        File temp = File.createTempFile(".model", ".tmp", target.getParentFile());
+        try {
+            PrintWriter outputFile = new PrintWriter(new BufferedWriter(new FileWriter(temp)));
+            DecimalFormat decimalFormat = new DecimalFormat("#####0.###############");
+            outputFile.write(OUTPUT_LAYER_HEADER + outputLayer.fileName() + "\n");
+            theta1.print(outputFile, decimalFormat, 22);
+            outputFile.write("\n\n");
+            theta2.print(outputFile, decimalFormat, 22);
+            outputFile.close();
+            if (outputFile.checkError()) {
+                throw new IOException("Error writing " + temp);
+            }
+            try {
+                Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /* Looks for the header line in front of theta1 and leaves the reader just after it.  If the first
+     * line with anything on it is not a header, the reader is put back where it was.
+     */
+    private static OutputLayer readHeader(BufferedReader infile) throws IOException {
+        infile.mark(MAX_HEADER_LENGTH);
+        String line;
+        while ((line = infile.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            if (line.startsWith(OUTPUT_LAYER_HEADER.trim())) {
+                try {
+                    return OutputLayer.fromFileName(line.substring(OUTPUT_LAYER_HEADER.trim().length()));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown output layer in \"" + line + "\"");
+                }
+            }
+            break;
+        }
+        infile.reset();
+        return OutputLayer.SIGMOID;
+    }
+
+    /* Checks that the two matrices fit together and hold nothing but finite numbers.
+     */
+    private static void validate(Matrix theta1, Matrix theta2) {
+        if (theta1 == null || theta2 == null) {
+            throw new IllegalArgumentException("Both theta1 and theta2 are required");
+        }
+        if (theta1.getColumnDimension() < 2) {
+            throw new IllegalArgumentException("theta1 has no input columns");
+        }
+        if (theta2.getColumnDimension() != theta1.getRowDimension() + 1) {
+            throw new IllegalArgumentException("theta2 has " + theta2.getColumnDimension()
+                + " columns but theta1 has " + theta1.getRowDimension() + " hidden units");
+        }
+        checkFinite("theta1", theta1);
+        checkFinite("theta2", theta2);
+    }
+
+    private static void checkFinite(String name, Matrix m) {
+        double[][] entries = m.getArray();
+        for (int i = 0; i < entries.length; i++) {
+            for (int j = 0; j < entries[i].length; j++) {
+                if (Double.isNaN(entries[i][j]) || Double.isInfinite(entries[i][j])) {
+                    throw new IllegalArgumentException(name + "(" + i + ", " + j + ") is " + entries[i][j]);
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return "Model v" + version + " (" + getInputDimension() + "-" + getHiddenLayerSize() + "-"
+            + getNumOutputClasses() + " " + outputLayer.fileName() + ", " + source + ")";
+    }
+}
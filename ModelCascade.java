@@ -0,0 +1,143 @@
+
+/**
+ * Two models in a row: a small, fast one that answers on its own when it is sure enough,
+ * and the full model for everything else.  Most drawings are easy, so most requests never
+ * pay for the full 256 hidden unit forward pass.
+ *
+ * "Sure enough" means that the margin between the largest and the second largest output
+ * of the fast model is at least the threshold.  calibrate() picks the threshold on a
+ * validation set: the lowest one (so the most traffic goes to the fast model) for which
+ * the cascade is at most a given fraction less accurate than the full model alone.
+ *
+ * The cascade counts how many requests each stage served.  It is thread safe.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ModelCascade {
+
+    private final Model fast;
+    private final Model full;
+    private final double threshold;
+    private final AtomicLong servedByFast = new AtomicLong();
+    private final AtomicLong servedByFull = new AtomicLong();
+
+    public ModelCascade(Model fast, Model full, double threshold) {
+        if (fast.getInputDimension() != full.getInputDimension()
+            || fast.getNumOutputClasses() != full.getNumOutputClasses()) {
+            throw new IllegalArgumentException("The models do not have the same inputs and outputs: " + fast + ", " + full);
+        }
+        this.fast = fast;
+        this.full = full;
+        this.threshold = threshold;
+    }
+
+    public Model getFastModel() {
+        return fast;
+    }
+
+    public Model getFullModel() {
+        return full;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /* Output activations for the input, from the fast model if its margin reaches the threshold and
+     * from the full model otherwise.
+     */
+    public double[] computeHypothesis(double[] input) {
+        double[] hypothesis = NeuralNetwork.computeHypothesis(input, fast);
+        if (margin(hypothesis) >= threshold) {
+            servedByFast.incrementAndGet();
+            return hypothesis;
+        }
+        servedByFull.incrementAndGet();
+        return NeuralNetwork.computeHypothesis(input, full);
+    }
+
+    public long getServedByFast() {
+        return servedByFast.get();
+    }
+
+    public long getServedByFull() {
+        return servedByFull.get();
+    }
+
+    /* Fraction of the requests so far that the fast model answered.
+     */
+    public double getFastFraction() {
+        long f = servedByFast.get();
+        long total = f + servedByFull.get();
+        return (total == 0) ? 0 : f / (double) total;
+    }
+
+    public void resetCounters() {
+        servedByFast.set(0);
+        servedByFull.set(0);
+    }
+
+    public String toString() {
+        return String.format("ModelCascade(threshold %.4f, fast %d, full %d, %.1f%% fast)",
+            threshold, getServedByFast(), getServedByFull(), 100 * getFastFraction());
+    }
+
+    /* Largest output minus the second largest.
+     */
+    public static double margin(double[] hypothesis) {
+        double first = Double.NEGATIVE_INFINITY;
+        double second = Double.NEGATIVE_INFINITY;
+        for (double h : hypothesis) {
+            if (h > first) {
+                second = first;
+                first = h;
+            } else if (h > second) {
+                second = h;
+            }
+        }
+        return first - second;
+    }
+
+    /* The lowest threshold for which the cascade gets at most maxAccuracyLoss (a fraction, 0.005 for
+     * half a percent) fewer of the validation examples right than the full model does.  Returns
+     * positive infinity if no threshold is good enough, in which case everything goes to the full
+     * model.
+     */
+    public static double calibrate(Model fast, Model full, LabelledImages validation, double maxAccuracyLoss) {
+        int n = validation.size();
+        double[] margins = new double[n];
+        boolean[] fastCorrect = new boolean[n];
+        int fullCorrect = 0;
+        boolean[] fullRight = new boolean[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            double[] input = NeuralNetwork.toInput(validation.getImage(i), full.getInputDimension());
+            double[] fastHypothesis = NeuralNetwork.computeHypothesis(input, fast);
+            margins[i] = margin(fastHypothesis);
+            fastCorrect[i] = NeuralNetwork.getMax(fastHypothesis) == validation.getLabel(i);
+            fullRight[i] = NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(input, full)) == validation.getLabel(i);
+            if (fullRight[i]) {
+                ++fullCorrect;
+            }
+            order[i] = i;
+        }
+        java.util.Arrays.sort(order, (a, b) -> Double.compare(margins[b], margins[a]));
+
+        // accept the k most confident examples with the fast model and send the rest on
+        double required = fullCorrect - maxAccuracyLoss * n;
+        double best = Double.POSITIVE_INFINITY;
+        int correct = fullCorrect;
+        for (int k = 1; k <= n; k++) {
+            int i = order[k - 1];
+            correct += (fastCorrect[i] ? 1 : 0) - (fullRight[i] ? 1 : 0);
+            boolean cut = (k == n) || margins[order[k]] < margins[i];   // thresholds cannot split ties
+            if (cut && correct >= required) {
+                best = margins[i];
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,289 @@
+
+/**
+ * Turns a saved model into a Java class made for that one model: the layer sizes are
+ * constants, the weights are static final flat arrays (one per layer, row after row)
+ * instead of a double[][] behind a Matrix, and the inner loops are unrolled UNROLL times
+ * with separate partial sums so the JIT gets straight-line code with independent
+ * additions.  The class is compiled in memory with the system Java compiler and loaded
+ * as a hidden class, or written out as source.
+ *
+ * A method may not be more than 64 KB of bytecode, and neither may the static
+ * initializer, so 65,000 weights cannot be written out as array literals or fully
+ * unrolled statements.  The weights are embedded as Base64 string constants instead and
+ * decoded into the arrays when the class is initialized.
+ *
+ * The partial sums add the products in a different order than
+ * NeuralNetwork.computeHypothesis(), so results can differ in the last bits; main()
+ * checks that they stay within epsilon and compares the speed of both.
+ *
+ * Usage:
+ *   java ModelCompiler model-file [input-file] [epsilon] [source-dir]
+ *
+ * model-file may be a text weight file or a sparse (.csr) file from Pruner.  Needs a JDK,
+ * not just a JRE, for the compiler.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.*;
+import javax.tools.*;
+
+public class ModelCompiler {
+
+    private static final int UNROLL = 8;
+    private static final int PARTIAL_SUMS = 4;
+    private static final int CHUNK_LENGTH = 60000;   // a string constant may hold at most 65535 bytes
+    private static final double DEFAULT_EPSILON = 1e-9;
+    private static final int NUM_RANDOM_INPUTS = 1000;
+    private static final int TIMING_REPEATS = 200;
+
+    /* What a compiled model looks like from the outside.
+     */
+    public interface CompiledModel {
+        double[] computeHypothesis(double[] input);
+    }
+
+    private ModelCompiler() {
+    }
+
+    /* Reads a weight file in either format.
+     */
+    public static Model readModel(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        int magic;
+        try {
+            magic = (file.length() >= 4) ? in.readInt() : 0;
+        } finally {
+            in.close();
+        }
+        if (magic == SparseModel.MAGIC) {
+            return SparseModel.read(file).toModel(file.getName());
+        }
+        return Model.read(file);
+    }
+
+    /* Source of a class called className, specialized for the model.
+     */
+    public static String generateSource(Model model, String className) {
+        double[][] t1 = model.getTheta1().getArray();
+        double[][] t2 = model.getTheta2().getArray();
+        int inputs = t1[0].length - 1;
+        int hidden = t1.length;
+        int outputs = t2.length;
+
+        StringBuilder source = new StringBuilder();
+        source.append("/**\n * Generated by ModelCompiler from ").append(model).append(".  Do not edit.\n */\n\n");
+        source.append("public final class ").append(className).append(" implements ModelCompiler.CompiledModel {\n\n");
+        source.append("    private static final double[] W1 = ModelCompiler.decode(new String[] {");
+        appendChunks(source, t1);
+        source.append("});\n");
+        source.append("    private static final double[] W2 = ModelCompiler.decode(new String[] {");
+        appendChunks(source, t2);
+        source.append("});\n\n");
+
+        source.append("    public double[] computeHypothesis(double[] input) {\n");
+        source.append("        if (input.length < ").append(inputs).append(") {\n");
+        source.append("            throw new IllegalArgumentException(\"Expected ").append(inputs)
+            .append(" inputs, got \" + input.length);\n        }\n");
+        source.append("        double[] w1 = W1;\n        double[] w2 = W2;\n");
+        source.append("        double[] a2 = new double[").append(hidden + 1).append("];\n");
+        source.append("        a2[0] = 1;\n");
+        appendLayer(source, "w1", "input", 0, inputs, hidden);
+        source.append("            a2[j + 1] = 1 / (1 + Math.exp(0 - z));\n        }\n");
+
+        source.append("        double[] z3 = new double[").append(outputs).append("];\n");
+        appendLayer(source, "w2", "a2", -1, hidden + 1, outputs);
+        source.append("            z3[j] = z;\n        }\n");
+        source.append("        double[] a3 = new double[").append(outputs).append("];\n");
+        source.append("        OutputLayer.").append(model.getOutputLayer().name()).append(".activate(z3, a3);\n");
+        source.append("        return a3;\n    }\n}\n");
+        return source.toString();
+    }
+
+    /* A loop over the rows of a flat weight array computing z for each: bias + row . x when bias is
+     * 0 (x has width entries and the row width + 1, bias first), or row . x when bias is -1 (x and
+     * the row both have width entries).  The body of the loop is left open for the caller.
+     */
+    private static void appendLayer(StringBuilder source, String w, String x, int bias, int width, int rows) {
+        int stride = (bias == 0) ? width + 1 : width;
+        int first = (bias == 0) ? 1 : 0;
+        source.append("        for (int j = 0, row = 0; j < ").append(rows).append("; j++, row += ").append(stride)
+            .append(") {\n");
+        for (int s = 0; s < PARTIAL_SUMS; s++) {
+            source.append("            double s").append(s).append(" = ")
+                .append((s == 0 && bias == 0) ? w + "[row]" : "0").append(";\n");
+        }
+        int blocked = width - width % UNROLL;
+        source.append("            for (int i = 0; i < ").append(blocked).append("; i += ").append(UNROLL).append(") {\n");
+        source.append("                int k = row + i + ").append(first).append(";\n");
+        for (int u = 0; u < UNROLL; u++) {
+            source.append("                s").append(u % PARTIAL_SUMS).append(" += ").append(w).append("[k + ").append(u)
+                .append("] * ").append(x).append("[i + ").append(u).append("];\n");
+        }
+        source.append("            }\n");
+        for (int i = blocked; i < width; i++) {
+            source.append("            s").append(i % PARTIAL_SUMS).append(" += ").append(w).append("[row + ")
+                .append(i + first).append("] * ").append(x).append("[").append(i).append("];\n");
+        }
+        source.append("            double z = (s0 + s1) + (s2 + s3);\n");
+    }
+
+    private static void appendChunks(StringBuilder source, double[][] rows) {
+        ByteBuffer bytes = ByteBuffer.allocate(8 * rows.length * rows[0].length);
+        for (double[] row : rows) {
+            for (double entry : row) {
+                bytes.putDouble(entry);
+            }
+        }
+        String encoded = Base64.getEncoder().encodeToString(bytes.array());
+        for (int start = 0; start < encoded.length(); start += CHUNK_LENGTH) {
+            source.append("\n        \"").append(encoded, start, Math.min(encoded.length(), start + CHUNK_LENGTH))
+                .append("\",");
+        }
+        source.append("\n    ");
+    }
+
+    /* Used by the generated classes to unpack their weights.
+     */
+    public static double[] decode(String[] chunks) {
+        StringBuilder encoded = new StringBuilder();
+        for (String chunk : chunks) {
+            encoded.append(chunk);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(Base64.getDecoder().decode(encoded.toString()));
+        double[] values = new double[bytes.remaining() / 8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = bytes.getDouble();
+        }
+        return values;
+    }
+
+    /* Generates, compiles and loads the class for the model as a hidden class.
+     */
+    public static CompiledModel compile(Model model) throws IOException {
+        String className = "CompiledModel" + model.getVersion();
+        byte[] bytecode = javac(className, generateSource(model, className));
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytecode, true);
+            return (CompiledModel) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable t) {
+            throw new IOException("Could not load the compiled model", t);
+        }
+    }
+
+    private static byte[] javac(String className, String source) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IOException("No Java compiler available; run on a JDK");
+        }
+        final ByteArrayOutputStream bytecode = new ByteArrayOutputStream();
+        JavaFileObject input = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+            JavaFileObject.Kind.SOURCE) {
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        JavaFileManager files = new ForwardingJavaFileManager<JavaFileManager>(
+            compiler.getStandardFileManager(null, null, null)) {
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + name + ".class"), kind) {
+                    public OutputStream openOutputStream() {
+                        return bytecode;
+                    }
+                };
+            }
+        };
+        StringWriter messages = new StringWriter();
+        List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"));
+        boolean ok = compiler.getTask(messages, files, null, options, null, Collections.singletonList(input)).call();
+        files.close();
+        if (!ok) {
+            throw new IOException("Compiling " + className + " failed:\n" + messages);
+        }
+        return bytecode.toByteArray();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.print("usage: java ModelCompiler model-file [input-file] [epsilon] [source-dir]\n");
+            System.exit(1);
+        }
+        Model model = readModel(new File(args[0]));
+        double epsilon = (args.length > 2) ? Double.parseDouble(args[2]) : DEFAULT_EPSILON;
+
+        long start = System.nanoTime();
+        CompiledModel compiled = compile(model);
+        System.out.print(String.format("Compiled %s in %.0f ms\n", model, (System.nanoTime() - start) / 1e6));
+        if (args.length > 3) {
+            File sourceFile = new File(args[3], "CompiledModel" + model.getVersion() + ".java");
+            Writer out = new BufferedWriter(new FileWriter(sourceFile));
+            try {
+                out.write(generateSource(model, "CompiledModel" + model.getVersion()));
+            } finally {
+                out.close();
+            }
+            System.out.print("Wrote " + sourceFile + "\n");
+        }
+
+        // the inputs to check and time: the examples of the input file, if any, and random ones
+        List<double[]> inputs = new ArrayList<double[]>();
+        if (args.length > 1 && !args[1].equals("-")) {
+            Dataset data = Dataset.read(new File(args[1]));
+            for (int i = 0; i < data.size(); i++) {
+                inputs.add(NeuralNetwork.toInput(data.getImage(i), model.getInputDimension()));
+            }
+        }
+        Random random = new Random(1);
+        for (int n = 0; n < NUM_RANDOM_INPUTS; n++) {
+            double[] input = new double[model.getInputDimension()];
+            for (int i = 0; i < input.length; i++) {
+                input[i] = random.nextDouble();
+            }
+            inputs.add(input);
+        }
+
+        double maxError = 0;
+        int disagreements = 0;
+        for (double[] input : inputs) {
+            double[] expected = NeuralNetwork.computeHypothesis(input, model);
+            double[] actual = compiled.computeHypothesis(input);
+            for (int k = 0; k < expected.length; k++) {
+                maxError = Math.max(maxError, Math.abs(expected[k] - actual[k]));
+            }
+            if (NeuralNetwork.getMax(expected) != NeuralNetwork.getMax(actual)) {
+                ++disagreements;
+            }
+        }
+        System.out.print(String.format("Verified %d inputs: max difference %.3e (epsilon %.1e), %d different answers: %s\n",
+            inputs.size(), maxError, epsilon, disagreements, (maxError <= epsilon) ? "OK" : "FAILED"));
+
+        long sink = 0;
+        long genericNanos = Long.MAX_VALUE;
+        long compiledNanos = Long.MAX_VALUE;
+        for (int repeat = 0; repeat < TIMING_REPEATS; repeat++) {
+            long t0 = System.nanoTime();
+            for (double[] input : inputs) {
+                sink += NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(input, model));
+            }
+            long t1 = System.nanoTime();
+            for (double[] input : inputs) {
+                sink += NeuralNetwork.getMax(compiled.computeHypothesis(input));
+            }
+            long t2 = System.nanoTime();
+            genericNanos = Math.min(genericNanos, t1 - t0);
+            compiledNanos = Math.min(compiledNanos, t2 - t1);
+        }
+        System.out.print(String.format("Generic %.2f us/digit, compiled %.2f us/digit (%.2fx)%s\n",
+            genericNanos / 1e3 / inputs.size(), compiledNanos / 1e3 / inputs.size(),
+            genericNanos / (double) compiledNanos, (sink == 42) ? " " : ""));
+        if (maxError > epsilon) {
+            System.exit(1);
+        }
+    }
+}
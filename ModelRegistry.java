@@ -0,0 +1,148 @@
+
+/**
+ * Holds the model that classifications should currently use, and swaps it for a new one
+ * without stopping anybody.
+ *
+ * Readers call current() once per request and use that Model for the whole request.
+ * Since a Model never changes, a request that started before a swap simply finishes on
+ * the old version, and the old weights are garbage collected when the last such request
+ * is done.  Writers build and validate the new Model first and then publish() it, which
+ * is a single reference assignment.  Publishes are serialized, so listeners see the
+ * swaps one at a time and in the order they happened: two threads publishing at once
+ * can never leave a listener (a PredictionCache, say) on the older of the two models.
+ *
+ * The registry can also watch a directory: whenever a model file appears or changes in
+ * it, the file is loaded on the watcher thread and published if it reads cleanly.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ModelRegistry {
+
+    // Editors and copy tools tend to fire several events per save; wait this long for them to settle.
+    private static final long SETTLE_MILLIS = 250;
+
+    /* Notified after every publish(), on the publishing thread, while other publishes wait.
+     */
+    public interface Listener {
+        void modelPublished(Model previous, Model current);
+    }
+
+    private final AtomicReference<Model> current = new AtomicReference<Model>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final Object publishLock = new Object();
+    private Thread watcher;
+
+    /* Returns the live model, or null if nothing has been published yet.
+     */
+    public Model current() {
+        return current.get();
+    }
+
+    public void publish(Model model) {
+        if (model == null) {
+            throw new IllegalArgumentException("Cannot publish a null model");
+        }
+        synchronized (publishLock) {
+            Model previous = current.getAndSet(model);
+            for (Listener listener : listeners) {
+                listener.modelPublished(previous, model);
+            }
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /* Starts a daemon thread that loads every model file created in or moved into the
+     * directory and publishes it.  Files whose names start with '.' are ignored, since
+     * Model.write() uses those for its temporary files.  A file that does not parse is
+     * reported and the current model stays in place.
+     */
+    public synchronized void watch(File directory) throws IOException {
+        if (watcher != null) {
+            throw new IllegalStateException("Already watching a directory");
+        }
+        final Path dir = directory.toPath();
+        final WatchService watchService = dir.getFileSystem().newWatchService();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        watcher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    watchLoop(dir, watchService);
+                } catch (InterruptedException e) {
+                    // stopWatching() was called
+                } finally {
+                    try {
+                        watchService.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "model-watcher " + dir);
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+
+    private void watchLoop(Path dir, WatchService watchService) throws InterruptedException {
+        Map<Path, Long> lastLoaded = new HashMap<Path, Long>();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key = watchService.take();
+            Set<Path> changed = new LinkedHashSet<Path>();
+            do {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        continue;
+                    }
+                    Path name = (Path) event.context();
+                    if (!name.toString().startsWith(".")) {
+                        changed.add(dir.resolve(name));
+                    }
+                }
+                key.reset();
+                key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+            } while (key != null);
+
+            for (Path path : changed) {
+                File file = path.toFile();
+                if (!file.isFile()) {
+                    continue;
+                }
+                Long stamp = file.lastModified() ^ (file.length() << 20);
+                if (stamp.equals(lastLoaded.get(path))) {
+                    continue;
+                }
+                try {
+                    Model model = Model.read(file);
+                    lastLoaded.put(path, stamp);
+                    publish(model);
+                    System.out.print("Loaded " + model + "\n");
+                } catch (Exception e) {
+                    System.out.print("Ignoring " + file + ": " + e + "\n");
+                }
+            }
+        }
+    }
+}
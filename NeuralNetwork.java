@@ -0,0 +1,275 @@
+
+/**
+ * The arithmetic of our three layer network, pulled out of ClassifierWindow so that it
+ * can run without a window (the online trainer, for instance).  Everything here is
+ * static and keeps no state between calls, so it is safe to use from several threads.
+ *
+ * The methods work on the same theta matrices as before (theta1 is hidden x (input + 1),
+ * theta2 is output x (hidden + 1), column 0 holding the bias weights).  The matrix
+ * kernels themselves come from a LinearAlgebra backend, chosen with -Dnn.backend (see
+ * LinearAlgebra); the default one reads and writes the entries through getArray() instead
+ * of get()/set() and temporary Matrix objects.  The math is exactly the one described in
+ * our notes and used by performBackPropagation().
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import Jama.Matrix;
+
+public final class NeuralNetwork {
+
+    public static final int NUM_OUTPUT_CLASSES = 10;
+    public static final int INPUT_VECTOR_DIMENSION = 256;  // The number of input units, not counting the bias unit.
+    public static final int HIDDEN_LAYER_SIZE = 256;
+
+    private static volatile LinearAlgebra backend =
+        LinearAlgebra.forName(System.getProperty("nn.backend", "blocked"));
+
+    private NeuralNetwork() {
+    }
+
+    public static LinearAlgebra getBackend() {
+        return backend;
+    }
+
+    public static void setBackend(LinearAlgebra newBackend) {
+        backend = newBackend;
+    }
+
+    /* 
+     * This method takes a double as input, and output the value of the logistic function when applied to x.
+     */
+    public static double logisticFunction(double x) {
+        return (1 / (1 + Math.exp(0 - x)));
+    }
+
+    /* Forward propagation.  input holds the input units without the bias unit.  If a2 is not null it
+     * must have room for hidden + 1 entries and receives the hidden activations, bias unit first;
+     * back propagation needs them.  If z3 is not null it receives the weighted inputs of the output
+     * layer, from which the cost can be computed without rounding trouble.  Returns the output
+     * activations.
+     */
+    public static double[] computeHypothesis(double[] input, Matrix theta1, Matrix theta2, OutputLayer outputLayer,
+                                             double[] a2, double[] z3) {
+        LinearAlgebra kernels = backend;
+        int hidden = theta1.getRowDimension();
+        int outputs = theta2.getRowDimension();
+
+        if (a2 == null) {
+            a2 = new double[hidden + 1];
+        }
+        // z2 goes into the first hidden entries of a2 and is turned into activations from the top
+        // down, one place further on, so no scratch vector is needed
+        kernels.multiplyWithBias(theta1, input, a2);
+        for (int j = hidden - 1; j >= 0; j--) {
+            a2[j + 1] = logisticFunction(a2[j]);
+        }
+        a2[0] = 1;
+
+        if (z3 == null) {
+            z3 = new double[outputs];
+        }
+        kernels.multiply(theta2, a2, z3);
+        double[] a3 = new double[outputs];
+        outputLayer.activate(z3, a3);
+        return a3;
+    }
+
+    public static double[] computeHypothesis(double[] input, Model model) {
+        return computeHypothesis(input, model.getTheta1(), model.getTheta2(), model.getOutputLayer(), null, null);
+    }
+
+    /* Back propagation for a single example.  Adds the gradient of the cost for (input, target) to
+     * delta1 and delta2, which have the shapes of theta1 and theta2.  Returns the output activations
+     * so callers can track the cost without a second forward pass.
+     *
+     * Both output layers pair their activation with the matching cost (log-loss for sigmoid,
+     * cross-entropy for softmax), so the output error is a3 - y in either case and the softmax
+     * Jacobian never has to be formed.
+     */
+    public static double[] accumulateGradient(double[] input, double[] target, Matrix theta1, Matrix theta2,
+                                              OutputLayer outputLayer, Matrix delta1, Matrix delta2) {
+        return accumulateGradient(input, target, theta1, theta2, outputLayer, delta1, delta2, null);
+    }
+
+    /* As above, and if inputError is not null it also receives the derivative of the cost with respect
+     * to each input unit (theta1' * err2 without the bias row), for a layer that sits in front of this
+     * network and needs to be trained as well, such as a ConvolutionLayer.
+     */
+    public static double[] accumulateGradient(double[] input, double[] target, Matrix theta1, Matrix theta2,
+                                              OutputLayer outputLayer, Matrix delta1, Matrix delta2,
+                                              double[] inputError) {
+        int hidden = theta1.getRowDimension();
+
+        double[] a2 = new double[hidden + 1];
+        double[] a3 = computeHypothesis(input, theta1, theta2, outputLayer, a2, null);
+
+        // err3 = a3 - y
+        double[] err3 = new double[a3.length];
+        for (int k = 0; k < a3.length; k++) {
+            err3[k] = a3[k] - target[k];
+        }
+        backPropagate(input, a2, err3, theta1, theta2, delta1, delta2, inputError);
+        return a3;
+    }
+
+    /* Back propagation for the first size examples of a mini-batch at once: the same gradient as
+     * accumulateGradient() for each of them, summed, but computed with matrix products (the backend's
+     * times() and transpose()) over all examples instead of one matrix-vector pass per example, which
+     * is where a blocked, multi-threaded product pays off.  labels holds the digit of each example.
+     * Adds the summed gradient to delta1 and delta2 and returns the output activations, one row per
+     * example.
+     */
+    public static double[][] accumulateBatchGradient(double[][] inputs, int[] labels, int size, Matrix theta1,
+                                                     Matrix theta2, OutputLayer outputLayer, Matrix delta1,
+                                                     Matrix delta2) {
+        LinearAlgebra kernels = backend;
+        int n = theta1.getColumnDimension() - 1;
+        int hidden = theta1.getRowDimension();
+        int outputs = theta2.getRowDimension();
+
+        // one row per example: A1 = [1 X], A2 = [1 g(A1 theta1')], Z3 = A2 theta2'
+        Matrix a1 = new Matrix(size, n + 1);
+        double[][] a1Rows = a1.getArray();
+        for (int i = 0; i < size; i++) {
+            a1Rows[i][0] = 1;
+            System.arraycopy(inputs[i], 0, a1Rows[i], 1, n);
+        }
+        Matrix z2 = kernels.times(a1, kernels.transpose(theta1));
+        Matrix a2 = new Matrix(size, hidden + 1);
+        double[][] a2Rows = a2.getArray();
+        for (int i = 0; i < size; i++) {
+            double[] z2Row = z2.getArray()[i];
+            a2Rows[i][0] = 1;
+            for (int j = 0; j < hidden; j++) {
+                a2Rows[i][j + 1] = logisticFunction(z2Row[j]);
+            }
+        }
+        Matrix z3 = kernels.times(a2, kernels.transpose(theta2));
+
+        // Err3 = A3 - Y, and delta2 += Err3' A2
+        double[][] a3 = new double[size][outputs];
+        Matrix err3 = new Matrix(size, outputs);
+        double[][] err3Rows = err3.getArray();
+        for (int i = 0; i < size; i++) {
+            outputLayer.activate(z3.getArray()[i], a3[i]);
+            for (int k = 0; k < outputs; k++) {
+                err3Rows[i][k] = a3[i][k] - ((k == labels[i]) ? 1 : 0);
+            }
+        }
+        kernels.step(delta2, kernels.times(kernels.transpose(err3), a2), -1);
+
+        // Err2 = (Err3 theta2 without the bias column) .* A2 .* (1 - A2), and delta1 += Err2' A1
+        Matrix back = kernels.times(err3, theta2);
+        Matrix err2 = new Matrix(size, hidden);
+        double[][] err2Rows = err2.getArray();
+        for (int i = 0; i < size; i++) {
+            double[] backRow = back.getArray()[i];
+            for (int j = 0; j < hidden; j++) {
+                double a = a2Rows[i][j + 1];
+                err2Rows[i][j] = backRow[j + 1] * a * (1 - a);
+            }
+        }
+        kernels.step(delta1, kernels.times(kernels.transpose(err2), a1), -1);
+        return a3;
+    }
+
+    /* The backward half of accumulateGradient(), for callers whose cost does not give the plain a3 - y
+     * as the output error (distillation, for one).  a2 holds the hidden activations of the forward pass
+     * for input, bias unit first, and err3 the derivative of the cost with respect to z3.  inputError
+     * may be null.
+     */
+    public static void backPropagate(double[] input, double[] a2, double[] err3, Matrix theta1, Matrix theta2,
+                                     Matrix delta1, Matrix delta2, double[] inputError) {
+        LinearAlgebra kernels = backend;
+        int hidden = theta1.getRowDimension();
+
+        // delta2 += err3 * a2'
+        kernels.addOuterProduct(delta2, err3, a2, false);
+
+        // err2 = (theta2' * err3) .* a2 .* (1 - a2), dropping the bias unit, and delta1 += err2 * a1'
+        double[] err2 = new double[hidden];
+        kernels.multiplyTransposed(theta2, err3, err2, 1);
+        for (int j = 0; j < hidden; j++) {
+            err2[j] *= a2[j + 1] * (1 - a2[j + 1]);
+        }
+        kernels.addOuterProduct(delta1, err2, input, true);
+        if (inputError != null) {
+            kernels.multiplyTransposed(theta1, err2, inputError, 1);
+        }
+    }
+
+    /* theta := theta - rate * delta, in place.  Only use this on matrices nobody else can see;
+     * a published Model must never change.
+     */
+    public static void step(Matrix theta, Matrix delta, double rate) {
+        backend.step(theta, delta, rate);
+    }
+
+    /* Sets every entry of m back to zero, so gradient accumulators can be reused between steps.
+     */
+    public static void clear(Matrix m) {
+        backend.clear(m);
+    }
+
+    /* The one-hot output vector for a digit: 1 at index label, 0 everywhere else.
+     */
+    public static double[] vectorizeY(int label) {
+        double[] y = new double[NUM_OUTPUT_CLASSES];
+        y[label] = 1;
+        return y;
+    }
+
+    /* Unpacks the first dimension pixels of an image into input units (1 for ink, 0 for paper).
+     */
+    public static double[] toInput(PackedBitmap image, int dimension) {
+        double[] input = new double[dimension];
+        toInput(image, input);
+        return input;
+    }
+
+    /* Same as above, but fills an existing array so batches can be decoded without allocating.
+     */
+    public static void toInput(PackedBitmap image, double[] input) {
+        long[] words = image.getWords();
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (words[i >>> 6] >>> i) & 1L;
+        }
+    }
+
+    /* Returns the indices of the k largest entries, largest first.
+     */
+    public static int[] topK(double[] hypothesis, int k) {
+        k = Math.min(k, hypothesis.length);
+        int[] best = new int[k];
+        int found = 0;
+        for (int i = 0; i < hypothesis.length; i++) {
+            // insertion into a sorted list of at most k entries; k is tiny
+            int position = found;
+            while (position > 0 && hypothesis[best[position - 1]] < hypothesis[i]) {
+                --position;
+            }
+            if (position < k) {
+                int last = Math.min(found, k - 1);
+                System.arraycopy(best, position, best, position + 1, last - position);
+                best[position] = i;
+                found = Math.min(found + 1, k);
+            }
+        }
+        return best;
+    }
+
+    /* Returns the index of the largest entry, i.e. the digit the network votes for.
+     */
+    public static int getMax(double[] hypothesis) {
+        int index = 0;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < hypothesis.length; i++) {
+            if (hypothesis[i] > max) {
+                index = i;
+                max = hypothesis[i];
+            }
+        }
+        return index;
+    }
+}
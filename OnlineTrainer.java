@@ -0,0 +1,235 @@
+
+/**
+ * Online learning: keeps updating a model with mini-batch stochastic gradient descent as
+ * new labelled vectors arrive, instead of loading a whole training file and running
+ * full-batch epochs over it.
+ *
+ * Samples come from a SampleReader, which can follow an .input file while it grows or
+ * read standard input.  Only one mini-batch is ever held in memory, so memory use does
+ * not depend on how much data goes by.  Every publishInterval samples a snapshot of the
+ * weights is published to a ModelRegistry and, if an output file was given, written to
+ * disk; a ClassifierWindow started with -Dclassifier.modelDir pointing at the same
+ * directory picks it up without a restart.  So that a quiet stream still makes progress,
+ * samples that have waited flushMillis (-Donline.flushMillis, 5 seconds by default) are
+ * trained on and published even if the batch is not full; that holds for a followed file
+ * and for a pipe on standard input alike.
+ *
+ * Usage:
+ *   java OnlineTrainer (input-file | -) model-out [start-model] [batch-size] [alpha] [publish-interval] [sigmoid | softmax]
+ *
+ * Pass "-" to read standard input, and "-" as the start model to begin from random weights
+ * with the given output layer (sigmoid unless stated).  An input file is followed until the process is
+ * stopped; standard input is read until it closes.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.util.Random;
+import Jama.Matrix;
+
+public class OnlineTrainer {
+
+    private static final long DEFAULT_SEED = 478978392;
+    private static final double EPSILON_INIT = 1.0;
+    private static final int DEFAULT_BATCH_SIZE = 32;
+    private static final double DEFAULT_ALPHA = 0.5;
+    private static final int DEFAULT_PUBLISH_INTERVAL = 1000;
+    private static final long POLL_MILLIS = 500;
+    private static final long DEFAULT_FLUSH_MILLIS = 5000;
+
+    private final ModelRegistry registry;
+    private final File modelFile;       // may be null
+    private final int batchSize;
+    private final double alpha;
+    private final int publishInterval;
+    private final long flushNanos;
+    private final OutputLayer outputLayer;
+
+    // the working weights; private to this trainer and updated in place
+    private final Matrix theta1;
+    private final Matrix theta2;
+    private final Matrix delta1;
+    private final Matrix delta2;
+
+    // the current mini-batch, reused from batch to batch
+    private final double[][] batchInputs;
+    private final int[] batchLabels;
+    private int batchFill;
+
+    private long samplesSeen;
+    private long sinceLastPublish;
+    private double costSinceLastPublish;
+    private long pendingSince;   // when the oldest sample not yet published arrived, if there is one
+
+    private long startTime;
+    private long lastReport;
+
+    public OnlineTrainer(Model start, ModelRegistry registry, File modelFile, int batchSize, double alpha,
+                         int publishInterval) {
+        this.registry = registry;
+        this.modelFile = modelFile;
+        this.batchSize = batchSize;
+        this.alpha = alpha;
+        this.publishInterval = publishInterval;
+        this.flushNanos = Long.getLong("online.flushMillis", DEFAULT_FLUSH_MILLIS) * 1000000L;
+        this.outputLayer = start.getOutputLayer();
+
+        theta1 = start.getTheta1().copy();
+        theta2 = start.getTheta2().copy();
+        delta1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+        delta2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+
+        batchInputs = new double[batchSize][start.getInputDimension()];
+        batchLabels = new int[batchSize];
+    }
+
+    /* Trains on every sample the reader produces, and publishes the final weights when it runs dry.
+     */
+    public void train(SampleReader reader) throws IOException {
+        startTime = System.nanoTime();
+        lastReport = startTime;
+        reader.setIdleListener(new Runnable() {
+            public void run() {
+                try {
+                    flushIfStale();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        while (reader.next()) {
+            if (batchFill == 0 && sinceLastPublish == 0) {
+                pendingSince = System.nanoTime();
+            }
+            NeuralNetwork.toInput(reader.getImage(), batchInputs[batchFill]);
+            batchLabels[batchFill] = reader.getLabel();
+            if (++batchFill == batchSize) {
+                trainBatch();
+            }
+
+            if (sinceLastPublish >= publishInterval) {
+                reportAndPublish();
+            } else {
+                flushIfStale();
+            }
+        }
+
+        if (batchFill > 0) {
+            trainBatch();
+        }
+        reportAndPublish();
+    }
+
+    /* Trains on a partial batch and publishes once the oldest sample not yet published has waited
+     * flushNanos.  Runs after every sample and whenever a followed file has nothing new.
+     */
+    private void flushIfStale() throws IOException {
+        if (batchFill == 0 && sinceLastPublish == 0) {
+            return;
+        }
+        if (System.nanoTime() - pendingSince < flushNanos) {
+            return;
+        }
+        if (batchFill > 0) {
+            trainBatch();
+        }
+        reportAndPublish();
+    }
+
+    private void reportAndPublish() throws IOException {
+        long now = System.nanoTime();
+        report(sinceLastPublish, now - lastReport, samplesSeen, now - startTime);
+        lastReport = now;
+        publish();
+    }
+
+    /* One SGD step on the examples collected so far.
+     */
+    private void trainBatch() {
+        NeuralNetwork.clear(delta1);
+        NeuralNetwork.clear(delta2);
+        for (int i = 0; i < batchFill; i++) {
+            double[] target = NeuralNetwork.vectorizeY(batchLabels[i]);
+            double[] hypothesis = NeuralNetwork.accumulateGradient(batchInputs[i], target, theta1, theta2, outputLayer,
+                delta1, delta2);
+            costSinceLastPublish -= Math.log(Math.max(hypothesis[batchLabels[i]], 1e-300));
+        }
+        NeuralNetwork.step(theta1, delta1, alpha / batchFill);
+        NeuralNetwork.step(theta2, delta2, alpha / batchFill);
+
+        samplesSeen += batchFill;
+        sinceLastPublish += batchFill;
+        batchFill = 0;
+    }
+
+    /* Publishes a copy of the working weights; the copies are never touched again, so readers
+     * of the registry see a consistent model while training carries on.
+     */
+    private void publish() throws IOException {
+        if (samplesSeen == 0) {
+            return;
+        }
+        Model model = new Model(theta1.copy(), theta2.copy(), outputLayer, "online after " + samplesSeen + " samples");
+        registry.publish(model);
+        if (modelFile != null) {
+            model.write(modelFile);
+        }
+        sinceLastPublish = 0;
+        costSinceLastPublish = 0;
+    }
+
+    private void report(long samples, long nanos, long totalSamples, long totalNanos) {
+        if (samples == 0) {
+            return;
+        }
+        System.out.print(String.format("%d samples, mean -log p(label) %.4f, %.1f samples/sec (%.1f overall)%n",
+            totalSamples, costSinceLastPublish / samples, samples * 1e9 / nanos, totalSamples * 1e9 / totalNanos));
+    }
+
+    /* A model with the usual random initial weights, for starting from scratch.
+     */
+    public static Model createInitialModel(Random generator, OutputLayer outputLayer) {
+        Matrix theta1 = new Matrix(NeuralNetwork.HIDDEN_LAYER_SIZE, NeuralNetwork.INPUT_VECTOR_DIMENSION + 1);
+        Matrix theta2 = new Matrix(NeuralNetwork.NUM_OUTPUT_CLASSES, NeuralNetwork.HIDDEN_LAYER_SIZE + 1);
+        Matrix[] thetas = {theta1, theta2};
+        for (Matrix m : thetas) {
+            double[][] entries = m.getArray();
+            for (int i = 0; i < entries.length; i++) {
+                for (int j = 0; j < entries[i].length; j++) {
+                    entries[i][j] = generator.nextDouble() * EPSILON_INIT * 2 - EPSILON_INIT;
+                }
+            }
+        }
+        return new Model(theta1, theta2, outputLayer, "random");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.print("usage: java OnlineTrainer (input-file | -) model-out [start-model] [batch-size] [alpha]"
+                + " [publish-interval] [sigmoid | softmax]\n");
+            System.exit(1);
+        }
+
+        Model start = (args.length > 2 && !args[2].equals("-"))
+            ? Model.read(new File(args[2]))
+            : createInitialModel(new Random(DEFAULT_SEED),
+                (args.length > 6) ? OutputLayer.fromFileName(args[6]) : OutputLayer.SIGMOID);
+        int batchSize = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_BATCH_SIZE;
+        double alpha = (args.length > 4) ? Double.parseDouble(args[4]) : DEFAULT_ALPHA;
+        int publishInterval = (args.length > 5) ? Integer.parseInt(args[5]) : DEFAULT_PUBLISH_INTERVAL;
+
+        SampleReader reader = args[0].equals("-")
+            ? new SampleReader(System.in, false, POLL_MILLIS)
+            : new SampleReader(new FileInputStream(args[0]), true, POLL_MILLIS);
+
+        OnlineTrainer trainer = new OnlineTrainer(start, new ModelRegistry(), new File(args[1]),
+            batchSize, alpha, publishInterval);
+        try {
+            trainer.train(reader);
+        } finally {
+            reader.close();
+        }
+    }
+}
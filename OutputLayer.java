@@ -0,0 +1,130 @@
+
+/**
+ * How the output units turn their weighted inputs z into the network's answer.
+ *
+ * SIGMOID is what we started with: every class gets its own logistic unit and the cost
+ * is a separate yes/no log-loss per class.  SOFTMAX makes the ten outputs a probability
+ * distribution over the digits and uses categorical cross-entropy, which suits digits
+ * better since exactly one of them is right.
+ *
+ * With either choice the derivative of the cost with respect to z is simply a - y, so
+ * back propagation does not change; only the forward activation and the cost do.
+ *
+ * The choice is stored with the weights (see Model) so a model is always evaluated the
+ * way it was trained.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+public enum OutputLayer {
+
+    SIGMOID {
+        public void activate(double[] z, double[] a) {
+            for (int k = 0; k < z.length; k++) {
+                a[k] = logistic(z[k]);
+            }
+        }
+
+        public void activate(float[] z, float[] a) {
+            for (int k = 0; k < z.length; k++) {
+                a[k] = (float) logistic(z[k]);
+            }
+        }
+
+        /* -sum( y log(sigmoid(z)) + (1 - y) log(1 - sigmoid(z)) ), written so that neither log ever
+         * sees 0: log(1 + e^-|z|) + max(z, 0) - y z.
+         */
+        public double cost(double[] z, double[] y) {
+            double cost = 0;
+            for (int k = 0; k < z.length; k++) {
+                cost += Math.log1p(Math.exp(-Math.abs(z[k]))) + Math.max(z[k], 0) - y[k] * z[k];
+            }
+            return cost;
+        }
+    },
+
+    SOFTMAX {
+        /* e^(z - max z) / sum e^(z - max z); subtracting the maximum keeps exp() from overflowing.
+         */
+        public void activate(double[] z, double[] a) {
+            double max = max(z);
+            double sum = 0;
+            for (int k = 0; k < z.length; k++) {
+                a[k] = Math.exp(z[k] - max);
+                sum += a[k];
+            }
+            for (int k = 0; k < z.length; k++) {
+                a[k] /= sum;
+            }
+        }
+
+        public void activate(float[] z, float[] a) {
+            float max = Float.NEGATIVE_INFINITY;
+            for (int k = 0; k < z.length; k++) {
+                max = Math.max(max, z[k]);
+            }
+            float sum = 0;
+            for (int k = 0; k < z.length; k++) {
+                a[k] = (float) Math.exp(z[k] - max);
+                sum += a[k];
+            }
+            for (int k = 0; k < z.length; k++) {
+                a[k] /= sum;
+            }
+        }
+
+        /* -sum( y log softmax(z) ), with log softmax(z) = z - max - log(sum e^(z - max)).
+         */
+        public double cost(double[] z, double[] y) {
+            double max = max(z);
+            double sum = 0;
+            for (int k = 0; k < z.length; k++) {
+                sum += Math.exp(z[k] - max);
+            }
+            double logSum = max + Math.log(sum);
+            double cost = 0;
+            for (int k = 0; k < z.length; k++) {
+                cost -= y[k] * (z[k] - logSum);
+            }
+            return cost;
+        }
+    };
+
+    /* Fills a with the output activations for the weighted inputs z.  a and z may be the same array.
+     */
+    public abstract void activate(double[] z, double[] a);
+
+    /* The same in single precision, for FloatTrainer.
+     */
+    public abstract void activate(float[] z, float[] a);
+
+    /* The cost of one example, computed from the weighted inputs z rather than the activations so
+     * that it stays finite even when an output saturates.
+     */
+    public abstract double cost(double[] z, double[] y);
+
+    /* The name used in weight files: "sigmoid" or "softmax".
+     */
+    public String fileName() {
+        return name().toLowerCase();
+    }
+
+    public static OutputLayer fromFileName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    /* The same function as NeuralNetwork.logisticFunction(), kept here so that classifying with a
+     * MappedModel does not load NeuralNetwork and, through it, the LinearAlgebra backend.
+     */
+    private static double logistic(double z) {
+        return 1 / (1 + Math.exp(-z));
+    }
+
+    private static double max(double[] z) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < z.length; k++) {
+            max = Math.max(max, z[k]);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,118 @@
+
+/**
+ * A drawing from the canvas (or one vector from an .input file) packed one bit per
+ * pixel into a long array.  Pixel p lives in bit (p % 64) of word (p / 64), so the
+ * 400 pixels of a 20 x 20 image fit in seven longs.
+ *
+ * Instances are immutable once constructed and compare by content, which makes them
+ * cheap keys for hash based lookups such as the PredictionCache.  No Strings are built
+ * when hashing or comparing them.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.util.Arrays;
+
+public final class PackedBitmap {
+
+    public static final int NUM_ROWS = 20;
+    public static final int NUM_COLS = 20;
+    public static final int NUM_PIXELS = NUM_ROWS * NUM_COLS;
+
+    private final int numPixels;
+    private final long[] words;
+    private final int hash;
+
+    /* Wraps the given words.  The array is NOT copied, so the caller must not modify it
+     * afterwards.
+     */
+    public PackedBitmap(int numPixels, long[] words) {
+        if (words.length != wordsFor(numPixels)) {
+            throw new IllegalArgumentException("Expected " + wordsFor(numPixels) + " words for "
+                + numPixels + " pixels but got " + words.length);
+        }
+        this.numPixels = numPixels;
+        this.words = words;
+        this.hash = 31 * Arrays.hashCode(words) + numPixels;
+    }
+
+    /* Returns the number of longs needed to hold the given number of pixels.
+     */
+    public static int wordsFor(int numPixels) {
+        return (numPixels + 63) >>> 6;
+    }
+
+    /* Sets pixel p in a word array that is being filled in before being wrapped.
+     */
+    public static void set(long[] words, int pixel) {
+        words[pixel >>> 6] |= 1L << pixel;
+    }
+
+    /* Parses the binary part of a line from an .input file ("0010...").  Any character
+     * other than '1' is treated as an empty pixel, matching Character.getNumericValue()
+     * for the files we produce.
+     */
+    public static PackedBitmap fromString(String input) {
+        return fromString(input, NUM_PIXELS);
+    }
+
+    public static PackedBitmap fromString(String input, int numPixels) {
+        long[] words = new long[wordsFor(numPixels)];
+        int length = Math.min(input.length(), numPixels);
+        for (int i = 0; i < length; i++) {
+            if (input.charAt(i) == '1') {
+                set(words, i);
+            }
+        }
+        return new PackedBitmap(numPixels, words);
+    }
+
+    public boolean get(int pixel) {
+        return (words[pixel >>> 6] & (1L << pixel)) != 0;
+    }
+
+    public int getNumPixels() {
+        return numPixels;
+    }
+
+    /* Returns the backing words without copying them.  Do not modify the result.
+     */
+    public long[] getWords() {
+        return words;
+    }
+
+    /* The number of pixels that are switched on.
+     */
+    public int cardinality() {
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            count += Long.bitCount(words[i]);
+        }
+        return count;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof PackedBitmap)) {
+            return false;
+        }
+        PackedBitmap that = (PackedBitmap) other;
+        return hash == that.hash && numPixels == that.numPixels && Arrays.equals(words, that.words);
+    }
+
+    /* Produces the same '0'/'1' representation that is used in the .input files.
+     */
+    public String toString() {
+        char[] chars = new char[numPixels];
+        for (int i = 0; i < numPixels; i++) {
+            chars[i] = get(i) ? '1' : '0';
+        }
+        return new String(chars);
+    }
+}
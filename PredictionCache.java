@@ -0,0 +1,109 @@
+
+/**
+ * A bounded, least-recently-used cache of network outputs keyed by the packed input
+ * image.  Many of the images we classify are exact repeats (blank canvases, retries of
+ * the same drawing), and for those there is no reason to run computeHypothesis() again.
+ *
+ * The cached outputs are only valid for the weights that produced them.  Every lookup
+ * and store names the Model version it is working with, and invalidate() moves the
+ * cache on to a new version.  Requests still running on an older version then neither
+ * read from nor write into the cache, so a late store can never resurrect stale outputs.
+ *
+ * All methods are synchronized so the cache may be shared between threads.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PredictionCache {
+
+    private final int capacity;
+    private final LinkedHashMap<PackedBitmap, double[]> entries;
+    private long modelVersion;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public PredictionCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        // access order = true turns the LinkedHashMap into an LRU list
+        this.entries = new LinkedHashMap<PackedBitmap, double[]>(capacity * 4 / 3 + 1, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<PackedBitmap, double[]> eldest) {
+                if (size() > PredictionCache.this.capacity) {
+                    ++evictions;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /* Returns the cached output for this image, or null if there is none or if the cache
+     * belongs to a different model version.  The returned array is shared with the cache
+     * and must not be modified.
+     */
+    public synchronized double[] get(PackedBitmap image, long version) {
+        double[] hypothesis = (version == modelVersion) ? entries.get(image) : null;
+        if (hypothesis == null) {
+            ++misses;
+        } else {
+            ++hits;
+        }
+        return hypothesis;
+    }
+
+    /* Stores the output the given model version produced for this image.  The array is
+     * kept as is, so the caller should hand over a copy it will not touch again.
+     */
+    public synchronized void put(PackedBitmap image, double[] hypothesis, long version) {
+        if (version == modelVersion) {
+            entries.put(image, hypothesis);
+        }
+    }
+
+    /* Drops every entry and accepts only the given model version from now on.  Called
+     * whenever the weights change.
+     */
+    public synchronized void invalidate(long version) {
+        entries.clear();
+        modelVersion = version;
+        ++invalidations;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /* Fraction of lookups that were answered from the cache, or 0 if there were none.
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0.0 : hits / (double) lookups;
+    }
+
+    public synchronized String toString() {
+        return "PredictionCache[size=" + entries.size() + "/" + capacity
+            + ", hits=" + hits + ", misses=" + misses
+            + ", hitRatio=" + String.format("%.3f", getHitRatio())
+            + ", evictions=" + evictions + ", invalidations=" + invalidations + "]";
+    }
+}
@@ -0,0 +1,252 @@
+
+/**
+ * Iterative magnitude pruning.  Starting from a trained model, each round sets the
+ * smallest weights of theta1 to zero until the round's sparsity is reached, and then
+ * fine-tunes the remaining weights for a few epochs with the pruned ones held at zero.
+ * Raising the sparsity step by step and retraining in between loses much less accuracy
+ * than cutting everything at once.  The bias column of theta1 and all of theta2 (which
+ * is small) are left alone.
+ *
+ * main() runs the schedule on a weight file and, after every round, reports accuracy on
+ * held out examples and the time per digit of the dense path (NeuralNetwork and Jama)
+ * against the sparse CSR kernels (one vector at a time, and the whole test set as one
+ * matrix), and writes each round's model in the sparse format.
+ *
+ * Usage:
+ *   java Pruner model-file input-file [sparsities] [fine-tune-epochs] [alpha] [output-prefix]
+ *   e.g. java Pruner trainedTheta trainingSet.input 0.5,0.75,0.9,0.95,0.98 2 0.05 pruned
+ *
+ * Every fifth example of the input file is held out for testing.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import Jama.Matrix;
+
+public class Pruner {
+
+    private static final long DEFAULT_SEED = 478978392;
+    // fine-tuning starts from trained weights, so it takes much smaller steps than training from scratch
+    private static final double DEFAULT_FINE_TUNE_ALPHA = 0.05;
+    private static final int BATCH_SIZE = 32;
+    private static final int TIMING_REPEATS = 100;
+
+    private final Matrix theta1;
+    private final Matrix theta2;
+    private final OutputLayer outputLayer;
+    private final boolean[][] pruned;   // pruned[j][i] is true once theta1[j][i] has been cut
+
+    /* Works on copies of the model's weights.
+     */
+    public Pruner(Model model) {
+        theta1 = model.getTheta1().copy();
+        theta2 = model.getTheta2().copy();
+        outputLayer = model.getOutputLayer();
+        pruned = new boolean[theta1.getRowDimension()][theta1.getColumnDimension()];
+    }
+
+    /* Zeroes the smallest weights of theta1 (not counting the bias column) until the given fraction
+     * of them is zero.  Weights pruned in earlier rounds stay pruned.
+     */
+    public void prune(double sparsity) {
+        double[][] t1 = theta1.getArray();
+        int rows = t1.length;
+        int cols = t1[0].length;
+        double[] magnitudes = new double[rows * (cols - 1)];
+        int n = 0;
+        for (int j = 0; j < rows; j++) {
+            for (int i = 1; i < cols; i++) {
+                magnitudes[n++] = pruned[j][i] ? 0 : Math.abs(t1[j][i]);
+            }
+        }
+        int toPrune = (int) Math.round(sparsity * magnitudes.length);
+        if (toPrune == 0) {
+            return;
+        }
+        Arrays.sort(magnitudes);
+        double cut = magnitudes[toPrune - 1];
+
+        // cut strictly below the cut-off first, then at it until the count is right, so ties do not overshoot
+        int count = 0;
+        for (int j = 0; j < rows; j++) {
+            for (int i = 1; i < cols; i++) {
+                if (pruned[j][i] || Math.abs(t1[j][i]) < cut) {
+                    pruned[j][i] = true;
+                    t1[j][i] = 0;
+                    ++count;
+                }
+            }
+        }
+        for (int j = 0; j < rows && count < toPrune; j++) {
+            for (int i = 1; i < cols && count < toPrune; i++) {
+                if (!pruned[j][i] && Math.abs(t1[j][i]) == cut) {
+                    pruned[j][i] = true;
+                    t1[j][i] = 0;
+                    ++count;
+                }
+            }
+        }
+    }
+
+    /* A few epochs of mini-batch gradient descent, putting the pruned weights back to zero after
+     * every step.
+     */
+    public void fineTune(LabelledImages data, int epochs, double alpha, long seed) throws InterruptedException {
+        if (epochs <= 0) {
+            return;
+        }
+        Matrix delta1 = new Matrix(theta1.getRowDimension(), theta1.getColumnDimension());
+        Matrix delta2 = new Matrix(theta2.getRowDimension(), theta2.getColumnDimension());
+        double[][] t1 = theta1.getArray();
+        BatchLoader loader = new BatchLoader(data, BATCH_SIZE, theta1.getColumnDimension() - 1, seed, epochs);
+        try {
+            BatchLoader.Batch batch;
+            while ((batch = loader.take()) != null) {
+                NeuralNetwork.clear(delta1);
+                NeuralNetwork.clear(delta2);
+                for (int i = 0; i < batch.size; i++) {
+                    NeuralNetwork.accumulateGradient(batch.inputs[i], NeuralNetwork.vectorizeY(batch.labels[i]),
+                        theta1, theta2, outputLayer, delta1, delta2);
+                }
+                NeuralNetwork.step(theta1, delta1, alpha / batch.size);
+                NeuralNetwork.step(theta2, delta2, alpha / batch.size);
+                loader.release(batch);
+
+                for (int j = 0; j < t1.length; j++) {
+                    for (int i = 0; i < t1[j].length; i++) {
+                        if (pruned[j][i]) {
+                            t1[j][i] = 0;
+                        }
+                    }
+                }
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    /* The current weights as a new Model (copies, so pruning can go on).
+     */
+    public Model toModel(String source) {
+        return new Model(theta1.copy(), theta2.copy(), outputLayer, source);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.print("usage: java Pruner model-file input-file [sparsities] [fine-tune-epochs] [alpha]"
+                + " [output-prefix]\n");
+            System.exit(1);
+        }
+        Model model = Model.read(new File(args[0]));
+        LabelledImages all = Dataset.open(new File(args[1]));
+        try {
+            String[] levels = ((args.length > 2) ? args[2] : "0.5,0.75,0.9,0.95,0.98").split(",");
+            int epochs = (args.length > 3) ? Integer.parseInt(args[3]) : 2;
+            double alpha = (args.length > 4) ? Double.parseDouble(args[4]) : DEFAULT_FINE_TUNE_ALPHA;
+            String prefix = (args.length > 5) ? args[5] : null;
+
+            LabelledImages train = LabelledSubset.allBut(all, 5, 4);
+            LabelledImages test = LabelledSubset.every(all, 5, 4);
+            double[][] inputs = new double[test.size()][];
+            for (int i = 0; i < test.size(); i++) {
+                inputs[i] = NeuralNetwork.toInput(test.getImage(i), model.getInputDimension());
+            }
+            System.out.print(train.size() + " fine-tuning and " + test.size() + " test examples, " + epochs
+                + " fine-tuning epoch(s) per round\n\n");
+            System.out.print(String.format("%9s %9s %10s %10s %10s %10s %10s%n", "sparsity", "non-zero", "accuracy",
+                "dense us", "Jama us", "SpMV us", "SpMM us"));
+
+            report(model, inputs, test);
+            Pruner pruner = new Pruner(model);
+            for (int round = 0; round < levels.length; round++) {
+                pruner.prune(Double.parseDouble(levels[round]));
+                pruner.fineTune(train, epochs, alpha, DEFAULT_SEED + round);
+                Model prunedModel = pruner.toModel("pruned to " + levels[round]);
+                report(prunedModel, inputs, test);
+                if (prefix != null) {
+                    SparseModel.fromModel(prunedModel).write(new File(prefix + "-" + levels[round] + ".csr"));
+                }
+            }
+        } finally {
+            all.close();
+        }
+    }
+
+    /* One line of the table: sparsity of theta1, accuracy, and time per digit for each path.
+     */
+    private static void report(Model model, double[][] inputs, LabelledImages test) {
+        SparseModel sparse = SparseModel.fromModel(model);
+        int n = inputs.length;
+        int correct = 0;
+        for (int i = 0; i < n; i++) {
+            double[] dense = NeuralNetwork.computeHypothesis(inputs[i], model);
+            double[] csr = sparse.computeHypothesis(inputs[i]);
+            for (int k = 0; k < dense.length; k++) {
+                if (Math.abs(dense[k] - csr[k]) > 1e-9) {
+                    throw new IllegalStateException("Sparse and dense outputs differ for example " + i);
+                }
+            }
+            if (NeuralNetwork.getMax(dense) == test.getLabel(i)) {
+                ++correct;
+            }
+        }
+
+        // the dense Jama path works on all inputs at once: [1; X] as a (inputs + 1) x n matrix
+        Matrix x = new Matrix(inputs[0].length + 1, n);
+        double[][] xs = x.getArray();
+        Arrays.fill(xs[0], 1);
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < inputs[j].length; i++) {
+                xs[i + 1][j] = inputs[j][i];
+            }
+        }
+
+        long sink = 0;
+        long denseNanos = Long.MAX_VALUE;
+        long jamaNanos = Long.MAX_VALUE;
+        long spmvNanos = Long.MAX_VALUE;
+        long spmmNanos = Long.MAX_VALUE;
+        for (int repeat = 0; repeat < TIMING_REPEATS; repeat++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                sink += NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(inputs[i], model));
+            }
+            long t1 = System.nanoTime();
+            sink += jamaForward(model, x).getRowDimension();
+            long t2 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                sink += NeuralNetwork.getMax(sparse.computeHypothesis(inputs[i]));
+            }
+            long t3 = System.nanoTime();
+            sink += sparse.computeHypotheses(inputs).length;
+            long t4 = System.nanoTime();
+            denseNanos = Math.min(denseNanos, t1 - t0);
+            jamaNanos = Math.min(jamaNanos, t2 - t1);
+            spmvNanos = Math.min(spmvNanos, t3 - t2);
+            spmmNanos = Math.min(spmmNanos, t4 - t3);
+        }
+        System.out.print(String.format("%8.1f%% %9d %9.1f%% %10.2f %10.2f %10.2f %10.2f%s%n",
+            100 * sparse.getTheta1().getSparsity(), sparse.getTheta1().getNumNonZeros(), 100.0 * correct / n,
+            denseNanos / 1e3 / n, jamaNanos / 1e3 / n, spmvNanos / 1e3 / n, spmmNanos / 1e3 / n,
+            (sink == 42) ? " " : ""));
+    }
+
+    /* The forward pass for a whole batch with Jama's dense matrix product; returns the output layer's
+     * inputs z3, one column per example.
+     */
+    private static Matrix jamaForward(Model model, Matrix x) {
+        Matrix z2 = model.getTheta1().times(x);
+        double[][] z = z2.getArray();
+        Matrix a2 = new Matrix(z.length + 1, x.getColumnDimension());
+        double[][] a = a2.getArray();
+        Arrays.fill(a[0], 1);
+        for (int j = 0; j < z.length; j++) {
+            for (int k = 0; k < z[j].length; k++) {
+                a[j + 1][k] = NeuralNetwork.logisticFunction(z[j][k]);
+            }
+        }
+        return model.getTheta2().times(a2);
+    }
+}
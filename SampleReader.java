@@ -0,0 +1,227 @@
+
+/**
+ * Reads labelled vectors ("0010...0110:7") one at a time from an .input file or from any
+ * other stream, without first counting or storing them all the way readTrainingData()
+ * does.  Records are separated by whitespace and tokens starting with '#' are skipped,
+ * the same rules the rest of the program uses.
+ *
+ * In follow mode the reader behaves like "tail -f": when it reaches the end of the
+ * stream it waits for more data to be appended (by the "Save Image Vector" button, say)
+ * instead of stopping.  A record is only handed out once the whitespace after it has
+ * arrived, so a half written line is never parsed.
+ *
+ * A pipe cannot be polled that way, since a read from it blocks until data comes.  When
+ * a stream is read to its end with a positive pollMillis, a daemon thread does the
+ * blocking reads and hands the bytes over, and the reader wakes up every pollMillis that
+ * nothing arrives; either way the idle listener runs whenever the stream is quiet.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+public class SampleReader implements Closeable {
+
+    private static final int MAX_TOKEN_LENGTH = 4096;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNKS = 16;
+    private static final int NO_DATA = -2;             // read() found nothing within pollMillis
+    private static final byte[] END = new byte[0];     // the pump thread reached the end of the stream
+
+    private final InputStream in;
+    private final boolean follow;
+    private final long pollMillis;
+    private final int numPixels;
+
+    private final StringBuilder token = new StringBuilder();
+    private PackedBitmap image;
+    private int label;
+    private long numRead;
+    private long numSkipped;
+    private Runnable idleListener;   // may be null
+
+    // filled by the pump thread when reading to the end with a poll interval, otherwise null
+    private final BlockingQueue<byte[]> chunks;
+    private volatile IOException pumpError;
+    private byte[] chunk = END;
+    private int chunkPosition;
+    private boolean endOfStream;
+
+    /* If follow is true the reader never reports the end of the stream; it polls every pollMillis
+     * for new data until the calling thread is interrupted.  Otherwise a positive pollMillis has the
+     * stream read on a separate thread, so the idle listener still runs while a pipe is quiet.
+     */
+    public SampleReader(InputStream in, boolean follow, long pollMillis) {
+        this.in = (in instanceof BufferedInputStream) ? in : new BufferedInputStream(in);
+        this.follow = follow;
+        this.pollMillis = pollMillis;
+        this.numPixels = PackedBitmap.NUM_PIXELS;
+        if (!follow && pollMillis > 0) {
+            chunks = new ArrayBlockingQueue<byte[]>(MAX_CHUNKS);
+            startPump();
+        } else {
+            chunks = null;
+        }
+    }
+
+    public SampleReader(File file) throws FileNotFoundException {
+        this(new FileInputStream(file), false, 0);
+    }
+
+    /* Moves on to the next record.  Returns false at the end of the stream, or in follow mode when
+     * the thread is interrupted while waiting.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (!nextToken()) {
+                return false;
+            }
+            if (token.charAt(0) == '#') {
+                continue;
+            }
+            int colon = token.indexOf(":");
+            if (colon > 0 && colon == token.length() - 2 && Character.isDigit(token.charAt(colon + 1))) {
+                image = PackedBitmap.fromString(token.substring(0, colon), numPixels);
+                label = token.charAt(colon + 1) - '0';
+                ++numRead;
+                return true;
+            }
+            ++numSkipped;
+            System.out.print("Skipping malformed record of length " + token.length() + "\n");
+        }
+    }
+
+    public PackedBitmap getImage() {
+        return image;
+    }
+
+    public int getLabel() {
+        return label;
+    }
+
+    public long getNumRead() {
+        return numRead;
+    }
+
+    public long getNumSkipped() {
+        return numSkipped;
+    }
+
+    /* listener is run on the reading thread every time the reader has found no new data for pollMillis
+     * (in follow mode, or when reading a pipe on a separate thread), so the caller can do time based work
+     * on a quiet stream.
+     */
+    public void setIdleListener(Runnable listener) {
+        this.idleListener = listener;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /* Collects the next whitespace separated token into token.  Returns false if there is none.
+     */
+    private boolean nextToken() throws IOException {
+        token.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == NO_DATA) {
+                runIdleListener();
+                continue;
+            }
+            if (c < 0) {
+                if (follow && waitForData()) {
+                    continue;
+                }
+                // a final record without trailing whitespace still counts when we are not following
+                return !follow && token.length() > 0;
+            }
+            if (Character.isWhitespace(c)) {
+                if (token.length() > 0) {
+                    return true;
+                }
+            } else if (token.length() < MAX_TOKEN_LENGTH) {
+                token.append((char) c);
+            }
+        }
+    }
+
+    /* The next byte, -1 at the end of the stream, or NO_DATA if the pump thread had nothing for
+     * pollMillis.
+     */
+    private int read() throws IOException {
+        if (chunks == null) {
+            return in.read();
+        }
+        if (chunkPosition == chunk.length) {
+            if (endOfStream) {
+                return -1;
+            }
+            try {
+                chunk = chunks.poll(pollMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                chunk = END;
+            }
+            chunkPosition = 0;
+            if (chunk == null) {
+                chunk = END;
+                return NO_DATA;
+            }
+            if (chunk == END) {
+                endOfStream = true;
+                if (pumpError != null) {
+                    throw pumpError;
+                }
+                return -1;
+            }
+        }
+        return chunk[chunkPosition++] & 0xff;
+    }
+
+    /* Starts the daemon thread that does the blocking reads for read().
+     */
+    private void startPump() {
+        Thread pump = new Thread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                try {
+                    try {
+                        int n;
+                        while ((n = in.read(buffer)) >= 0) {
+                            if (n > 0) {
+                                chunks.put(Arrays.copyOf(buffer, n));
+                            }
+                        }
+                    } catch (IOException e) {
+                        pumpError = e;
+                    }
+                    chunks.put(END);
+                } catch (InterruptedException e) {
+                    // nobody is reading any more
+                }
+            }
+        }, "sample-reader");
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    private void runIdleListener() {
+        if (idleListener != null) {
+            idleListener.run();
+        }
+    }
+
+    private boolean waitForData() {
+        runIdleListener();
+        try {
+            Thread.sleep(pollMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
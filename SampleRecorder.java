@@ -0,0 +1,313 @@
+
+/**
+ * Appends labelled drawings to a data file for collecting training corpora.  The file is
+ * opened once and kept open: records go into a buffer that is written to the channel
+ * when it fills, instead of opening a FileWriter, writing one record and closing it
+ * again for every sample.  A daemon thread writes out whatever has been recorded and
+ * forces it to disk every syncMillis, so records reach the disk even when the user stops
+ * drawing, and the caller (the event dispatch thread, in the window) never waits for a
+ * force; flush() and close() do the same on demand.
+ *
+ * Two formats are supported, picked from the file name:
+ *   - anything else: the usual text records ("0010...0110:7", one per line), so the file
+ *     can be read by everything that reads .input files;
+ *   - a name ending in ".bin": a header (MAGIC, number of pixels) followed by fixed size
+ *     records of one label byte and the packed words of the bitmap, little endian.
+ *     Dataset.read() understands both.
+ *
+ * A drawing that is already in the file under the same label is not written again.  The
+ * existing records are read when the recorder is opened so that this also holds across
+ * sessions.  An existing file has to be in the format its name asks for (and a binary
+ * one has to have our number of pixels, and a text one must not be a DatasetStore);
+ * otherwise opening it fails with an IOException rather than appending garbage or
+ * cutting the file to fit.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SampleRecorder implements Closeable {
+
+    public static final int MAGIC = 0x44494731;   // "DIG1"
+    public static final String BINARY_SUFFIX = ".bin";
+    public static final long DEFAULT_SYNC_MILLIS = 1000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int NUM_LABELS = 10;
+
+    private final File file;
+    private final boolean binary;
+    private final int numPixels;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final List<Set<PackedBitmap>> seen;
+    private final ScheduledExecutorService syncer;
+
+    private boolean dirty;   // records have been added since the last sync
+    private long numRecorded;
+    private long numDuplicates;
+
+    public SampleRecorder(File file, long syncMillis) throws IOException {
+        this.file = file;
+        this.binary = file.getName().endsWith(BINARY_SUFFIX);
+        this.numPixels = PackedBitmap.NUM_PIXELS;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        seen = new ArrayList<Set<PackedBitmap>>(NUM_LABELS);
+        for (int i = 0; i < NUM_LABELS; i++) {
+            seen.add(new HashSet<PackedBitmap>());
+        }
+        if (file.length() > 0) {
+            checkFormat(file, binary, numPixels);
+            Dataset existing = Dataset.read(file);
+            for (int i = 0; i < existing.size(); i++) {
+                seen.get(existing.getLabel(i)).add(existing.getImage(i));
+            }
+        }
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        long end = channel.size();
+        if (binary && end == 0) {
+            buffer.putInt(MAGIC).putInt(numPixels);
+            dirty = true;
+        } else if (binary) {
+            // drop a record torn by a crash, so the ones appended now line up again
+            end -= (end - 8) % recordSize(numPixels);
+            channel.truncate(end);
+        } else if (end > 0 && !Character.isWhitespace(lastByte(end))) {
+            buffer.put((byte) '\n');
+            dirty = true;
+        }
+        channel.position(end);
+
+        syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "sample-recorder-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        syncer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public SampleRecorder(File file) throws IOException {
+        this(file, DEFAULT_SYNC_MILLIS);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /* Appends a drawing with its label.  Returns false (and writes nothing) if the file already holds
+     * the same drawing under the same label.
+     */
+    public synchronized boolean record(PackedBitmap image, int label) throws IOException {
+        if (label < 0 || label >= NUM_LABELS) {
+            throw new IllegalArgumentException("Label must be a digit: " + label);
+        }
+        if (image.getNumPixels() != numPixels) {
+            throw new IllegalArgumentException("Expected " + numPixels + " pixels, got " + image.getNumPixels());
+        }
+        if (!seen.get(label).add(image)) {
+            ++numDuplicates;
+            return false;
+        }
+
+        int size = binary ? recordSize(numPixels) : numPixels + 3;
+        if (buffer.remaining() < size) {
+            drain();
+        }
+        if (binary) {
+            buffer.put((byte) label);
+            for (long word : image.getWords()) {
+                buffer.putLong(word);
+            }
+        } else {
+            for (int i = 0; i < numPixels; i++) {
+                buffer.put(image.get(i) ? (byte) '1' : (byte) '0');
+            }
+            buffer.put((byte) ':').put((byte) ('0' + label)).put((byte) '\n');
+        }
+        ++numRecorded;
+        dirty = true;
+        return true;
+    }
+
+    /* Writes out everything recorded so far and forces it to disk.
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            drain();
+            dirty = false;
+        }
+        channel.force(false);
+    }
+
+    /* What the sync thread runs every syncMillis: like flush(), but only if something was recorded, and
+     * quietly does nothing once the recorder is closed.  The force happens outside the lock, so record()
+     * is never held up by the disk.
+     */
+    private void sync() throws IOException {
+        synchronized (this) {
+            if (!dirty || !channel.isOpen()) {
+                return;
+            }
+            drain();
+            dirty = false;
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // close() forced everything itself
+        }
+    }
+
+    public synchronized long getNumRecorded() {
+        return numRecorded;
+    }
+
+    public synchronized long getNumDuplicates() {
+        return numDuplicates;
+    }
+
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        syncer.shutdown();
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    public String toString() {
+        return "Recorded " + getNumRecorded() + " sample(s) to " + file.getName() + ", skipped "
+            + getNumDuplicates() + " duplicate(s)";
+    }
+
+    private char lastByte(long size) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, size - 1);
+        return (char) last.get(0);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static int recordSize(int numPixels) {
+        return 1 + 8 * PackedBitmap.wordsFor(numPixels);
+    }
+
+    /* Throws an IOException unless an existing, non-empty file is in the format a recorder for it would
+     * write: for a binary name, our header with the same number of pixels; for any other name, text
+     * (not a binary sample file, and not a DatasetStore either, although Dataset.read() accepts both).
+     */
+    private static void checkFormat(File file, boolean binary, int numPixels) throws IOException {
+        if (!binary) {
+            if (isBinary(file)) {
+                throw new IOException(file + " is a binary sample file; record to it under a name ending in "
+                    + BINARY_SUFFIX);
+            }
+            if (DatasetStore.isStore(file)) {
+                throw new IOException(file + " is a dataset store, which cannot be appended to");
+            }
+            return;
+        }
+        if (!isBinary(file)) {
+            throw new IOException(file + " ends in " + BINARY_SUFFIX + " but is not a binary sample file");
+        }
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            in.read(header, 0);
+            if (header.getInt(4) != numPixels) {
+                throw new IOException(file + " holds " + header.getInt(4) + " pixel drawings, not " + numPixels);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /* True if the file starts with the binary header.
+     */
+    public static boolean isBinary(File file) throws IOException {
+        if (file.length() < 8) {
+            return false;
+        }
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            in.read(header, 0);
+            return header.position() == 4 && header.getInt(0) == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /* Reads every complete record of a binary file.  A torn record at the end is ignored, and a record
+     * whose label is not a digit is skipped with a message, like a malformed text record.
+     */
+    public static Dataset readBinary(File file) throws IOException {
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && in.read(header) >= 0) {
+            }
+            header.flip();
+            if (header.remaining() < 8 || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a binary sample file");
+            }
+            int pixels = header.getInt();
+            int numWords = PackedBitmap.wordsFor(pixels);
+
+            Dataset dataset = new Dataset();
+            ByteBuffer data = ByteBuffer.allocate(BUFFER_SIZE - BUFFER_SIZE % recordSize(pixels))
+                .order(ByteOrder.LITTLE_ENDIAN);
+            boolean endOfFile = false;
+            while (!endOfFile) {
+                endOfFile = in.read(data) < 0;
+                data.flip();
+                while (data.remaining() >= recordSize(pixels)) {
+                    int label = data.get();
+                    if (label < 0 || label >= NUM_LABELS) {
+                        System.out.print("Skipping record with label " + label + "\n");
+                        data.position(data.position() + 8 * numWords);
+                        continue;
+                    }
+                    long[] words = new long[numWords];
+                    for (int w = 0; w < numWords; w++) {
+                        words[w] = data.getLong();
+                    }
+                    dataset.add(new PackedBitmap(pixels, words), label);
+                }
+                data.compact();
+            }
+            return dataset;
+        } finally {
+            in.close();
+        }
+    }
+}
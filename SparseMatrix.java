@@ -0,0 +1,171 @@
+
+/**
+ * An immutable matrix in compressed sparse row (CSR) form: for each row, the columns and
+ * values of its non zero entries only.  Used for pruned weights, where most of theta1 is
+ * zero and the dense multiply spends most of its time adding zeros.
+ *
+ * Row r's entries are values[rowStart[r] .. rowStart[r + 1] - 1], in columns
+ * columns[rowStart[r] ..].  Columns are increasing within a row.
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import Jama.Matrix;
+
+public final class SparseMatrix {
+
+    private final int rows;
+    private final int cols;
+    private final int[] rowStart;
+    private final int[] columns;
+    private final double[] values;
+
+    private SparseMatrix(int rows, int cols, int[] rowStart, int[] columns, double[] values) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /* The non zero entries of m.
+     */
+    public static SparseMatrix fromDense(Matrix m) {
+        double[][] entries = m.getArray();
+        int rows = m.getRowDimension();
+        int cols = m.getColumnDimension();
+        int nonZeros = 0;
+        for (double[] row : entries) {
+            for (double entry : row) {
+                if (entry != 0) {
+                    ++nonZeros;
+                }
+            }
+        }
+        int[] rowStart = new int[rows + 1];
+        int[] columns = new int[nonZeros];
+        double[] values = new double[nonZeros];
+        int next = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (entries[r][c] != 0) {
+                    columns[next] = c;
+                    values[next++] = entries[r][c];
+                }
+            }
+            rowStart[r + 1] = next;
+        }
+        return new SparseMatrix(rows, cols, rowStart, columns, values);
+    }
+
+    public Matrix toDense() {
+        Matrix m = new Matrix(rows, cols);
+        double[][] entries = m.getArray();
+        for (int r = 0; r < rows; r++) {
+            for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+                entries[r][columns[k]] = values[k];
+            }
+        }
+        return m;
+    }
+
+    public int getRowDimension() {
+        return rows;
+    }
+
+    public int getColumnDimension() {
+        return cols;
+    }
+
+    public int getNumNonZeros() {
+        return values.length;
+    }
+
+    /* Fraction of the entries that are zero.
+     */
+    public double getSparsity() {
+        return 1 - values.length / ((double) rows * cols);
+    }
+
+    /* y = this * x (sparse matrix times vector).  x has getColumnDimension() entries and y
+     * getRowDimension().
+     */
+    public void multiply(double[] x, double[] y) {
+        for (int r = 0; r < rows; r++) {
+            double sum = 0;
+            for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+                sum += values[k] * x[columns[k]];
+            }
+            y[r] = sum;
+        }
+    }
+
+    /* Y = this * X (sparse matrix times dense matrix), with X given as getColumnDimension() rows of n
+     * entries and Y as getRowDimension() rows of n entries.  Each non zero weight is used once for a
+     * whole row of X, which is what makes a batch cheaper than n separate multiplies.
+     */
+    public void multiply(double[][] x, double[][] y) {
+        for (int r = 0; r < rows; r++) {
+            double[] out = y[r];
+            java.util.Arrays.fill(out, 0);
+            for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+                double value = values[k];
+                double[] in = x[columns[k]];
+                for (int j = 0; j < out.length; j++) {
+                    out[j] += value * in[j];
+                }
+            }
+        }
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(rows);
+        out.writeInt(cols);
+        out.writeInt(values.length);
+        for (int start : rowStart) {
+            out.writeInt(start);
+        }
+        for (int column : columns) {
+            out.writeInt(column);
+        }
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    public static SparseMatrix read(DataInputStream in) throws IOException {
+        int rows = in.readInt();
+        int cols = in.readInt();
+        int nonZeros = in.readInt();
+        if (rows <= 0 || cols <= 0 || nonZeros < 0 || nonZeros > (long) rows * cols) {
+            throw new IOException("Corrupt sparse matrix header: " + rows + " x " + cols + ", " + nonZeros + " entries");
+        }
+        int[] rowStart = new int[rows + 1];
+        int[] columns = new int[nonZeros];
+        double[] values = new double[nonZeros];
+        for (int r = 0; r <= rows; r++) {
+            rowStart[r] = in.readInt();
+        }
+        for (int k = 0; k < nonZeros; k++) {
+            columns[k] = in.readInt();
+        }
+        for (int k = 0; k < nonZeros; k++) {
+            values[k] = in.readDouble();
+        }
+        if (rowStart[0] != 0 || rowStart[rows] != nonZeros) {
+            throw new IOException("Corrupt sparse matrix row index");
+        }
+        for (int r = 0; r < rows; r++) {
+            if (rowStart[r] > rowStart[r + 1]) {
+                throw new IOException("Corrupt sparse matrix row index");
+            }
+            for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+                if (columns[k] < 0 || columns[k] >= cols || (k > rowStart[r] && columns[k] <= columns[k - 1])) {
+                    throw new IOException("Corrupt sparse matrix column index in row " + r);
+                }
+            }
+        }
+        return new SparseMatrix(rows, cols, rowStart, columns, values);
+    }
+}
@@ -0,0 +1,169 @@
+
+/**
+ * A Model whose weights are held as SparseMatrix (CSR) instead of dense matrices, for
+ * serving pruned networks.  The forward pass is the same as
+ * NeuralNetwork.computeHypothesis(), with the two dense multiplies replaced by sparse
+ * ones, so it only costs as much as there are weights left.
+ *
+ * Sparse weight files are binary: MAGIC, the output layer name, then theta1 and theta2 as
+ * written by SparseMatrix.write().
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.nio.file.*;
+
+public final class SparseModel {
+
+    static final int MAGIC = 0x43535231;   // "CSR1"
+
+    private final SparseMatrix theta1;
+    private final SparseMatrix theta2;
+    private final OutputLayer outputLayer;
+
+    public SparseModel(SparseMatrix theta1, SparseMatrix theta2, OutputLayer outputLayer) {
+        if (theta2.getColumnDimension() != theta1.getRowDimension() + 1) {
+            throw new IllegalArgumentException("theta2 has " + theta2.getColumnDimension() + " columns, expected "
+                + (theta1.getRowDimension() + 1));
+        }
+        this.theta1 = theta1;
+        this.theta2 = theta2;
+        this.outputLayer = outputLayer;
+    }
+
+    public static SparseModel fromModel(Model model) {
+        return new SparseModel(SparseMatrix.fromDense(model.getTheta1()), SparseMatrix.fromDense(model.getTheta2()),
+            model.getOutputLayer());
+    }
+
+    public Model toModel(String source) {
+        return new Model(theta1.toDense(), theta2.toDense(), outputLayer, source);
+    }
+
+    public SparseMatrix getTheta1() {
+        return theta1;
+    }
+
+    public SparseMatrix getTheta2() {
+        return theta2;
+    }
+
+    public OutputLayer getOutputLayer() {
+        return outputLayer;
+    }
+
+    public int getInputDimension() {
+        return theta1.getColumnDimension() - 1;
+    }
+
+    /* Output activations for one input vector (without the bias unit).
+     */
+    public double[] computeHypothesis(double[] input) {
+        int hidden = theta1.getRowDimension();
+        double[] a1 = new double[theta1.getColumnDimension()];
+        a1[0] = 1;
+        System.arraycopy(input, 0, a1, 1, a1.length - 1);
+
+        double[] z2 = new double[hidden];
+        theta1.multiply(a1, z2);
+        double[] a2 = new double[hidden + 1];
+        a2[0] = 1;
+        for (int j = 0; j < hidden; j++) {
+            a2[j + 1] = NeuralNetwork.logisticFunction(z2[j]);
+        }
+
+        double[] z3 = new double[theta2.getRowDimension()];
+        theta2.multiply(a2, z3);
+        double[] a3 = new double[z3.length];
+        outputLayer.activate(z3, a3);
+        return a3;
+    }
+
+    /* Output activations for a batch of input vectors, using the sparse matrix-matrix kernel.
+     * Returns one row per input.
+     */
+    public double[][] computeHypotheses(double[][] inputs) {
+        int n = inputs.length;
+        int hidden = theta1.getRowDimension();
+        int classes = theta2.getRowDimension();
+
+        // the inputs as columns, with a row of ones for the bias unit on top
+        double[][] a1 = new double[theta1.getColumnDimension()][n];
+        java.util.Arrays.fill(a1[0], 1);
+        for (int j = 0; j < n; j++) {
+            for (int i = 1; i < a1.length; i++) {
+                a1[i][j] = inputs[j][i - 1];
+            }
+        }
+
+        double[][] a2 = new double[hidden + 1][n];
+        double[][] z2 = new double[hidden][];
+        System.arraycopy(a2, 1, z2, 0, hidden);   // z2 is computed straight into rows 1.. of a2
+        theta1.multiply(a1, z2);
+        java.util.Arrays.fill(a2[0], 1);
+        for (int j = 1; j <= hidden; j++) {
+            double[] row = a2[j];
+            for (int k = 0; k < n; k++) {
+                row[k] = NeuralNetwork.logisticFunction(row[k]);
+            }
+        }
+
+        double[][] z3 = new double[classes][n];
+        theta2.multiply(a2, z3);
+        double[][] outputs = new double[n][classes];
+        double[] column = new double[classes];
+        for (int j = 0; j < n; j++) {
+            for (int k = 0; k < classes; k++) {
+                column[k] = z3[k][j];
+            }
+            outputLayer.activate(column, outputs[j]);
+        }
+        return outputs;
+    }
+
+    /* Writes to a temporary file next to the target and renames it, like Model.write().
+     */
+    public void write(File file) throws IOException {
+        File target = file.getAbsoluteFile();
+        File temp = File.createTempFile(".model", ".tmp", target.getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeUTF(outputLayer.fileName());
+                theta1.write(out);
+                theta2.write(out);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    public static SparseModel read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a sparse weight file");
+            }
+            OutputLayer outputLayer = OutputLayer.fromFileName(in.readUTF());
+            return new SparseModel(SparseMatrix.read(in), SparseMatrix.read(in), outputLayer);
+        } finally {
+            in.close();
+        }
+    }
+
+    public String toString() {
+        return String.format("SparseModel(%d-%d-%d %s, theta1 %.1f%% sparse, theta2 %.1f%% sparse)",
+            getInputDimension(), theta1.getRowDimension(), theta2.getRowDimension(), outputLayer.fileName(),
+            100 * theta1.getSparsity(), 100 * theta2.getSparsity());
+    }
+}
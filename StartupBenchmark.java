@@ -0,0 +1,192 @@
+
+/**
+ * Measures time to first prediction: how long it takes from launching a JVM until the
+ * first classified digit comes back, for
+ *
+ *   - the window path: what ClassifierMain did before it had a command line mode, i.e.
+ *     build the ClassifierWindow, read the text weight file and classify;
+ *   - the headless ClassifyCli (ClassifierMain with arguments), mapping the model;
+ *   - the same with a class data sharing archive, which this benchmark builds itself
+ *     the way build-cds.sh does.  Class data sharing only takes jar files, so every
+ *     directory on the class path is first packed into a temporary jar, and all the
+ *     command line rows use that jar so they differ in nothing but the JVM options;
+ *   - and with -XX:TieredStopAtLevel=1 on top, which skips the optimizing compiler.
+ *
+ * Each configuration is launched several times with the first record of the input file;
+ * the table shows the median and the best run.  Without a display the window cannot be
+ * opened, so that row then only sets up Swing and the drawing canvas and understates the
+ * real cost.
+ *
+ * Usage: java StartupBenchmark [model-file] [input-file] [runs]
+ *
+ * @author (Soho Kim, Robin Chen, and Zihao Liu)
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.jar.*;
+
+public class StartupBenchmark {
+
+    private static final String WINDOW_MODE = "--window";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(WINDOW_MODE)) {
+            windowPath(new File(args[1]), new File(args[2]));
+            return;
+        }
+        String model = (args.length > 0) ? args[0] : "trainedTheta";
+        File input = new File((args.length > 1) ? args[1] : "trainingSet.input");
+        int runs = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+        File record = File.createTempFile("startup", ".input");
+        File archive = File.createTempFile("startup", ".jsa");
+        File jar = File.createTempFile("startup", ".jar");
+        try {
+            writeFirstRecord(input, record);
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            String classPath = jarClassPath(System.getProperty("java.class.path"), jar);
+            List<String> cli = Arrays.asList("ClassifierMain", model, record.getPath());
+
+            // convert the model to its mapped copy now, so no timed run pays for that
+            launch(command(java, classPath, cli));
+            archive.delete();
+            launch(command(java, classPath, cli, "-XX:ArchiveClassesAtExit=" + archive.getPath()));
+            if (!archive.exists()) {
+                System.out.print("Could not build a class data sharing archive; those rows will not use one\n");
+            }
+
+            System.out.print(String.format("%-44s %12s %12s%n", "path", "median ms", "best ms"));
+            row("window (ClassifierMain, text model)", runs, command(java, classPath,
+                Arrays.asList("StartupBenchmark", WINDOW_MODE, model, record.getPath())));
+            row("ClassifyCli, mapped model", runs, command(java, classPath, cli));
+            row("ClassifyCli + AppCDS", runs, command(java, classPath, cli,
+                "-XX:SharedArchiveFile=" + archive.getPath()));
+            row("ClassifyCli + AppCDS + TieredStopAtLevel=1", runs, command(java, classPath, cli,
+                "-XX:SharedArchiveFile=" + archive.getPath(), "-XX:TieredStopAtLevel=1"));
+        } finally {
+            record.delete();
+            archive.delete();
+            jar.delete();
+        }
+    }
+
+    /* Packs the class files of every directory on the class path into jar and returns the class path
+     * with those directories replaced by it.
+     */
+    private static String jarClassPath(String classPath, File jar) throws IOException {
+        StringBuilder result = new StringBuilder(jar.getPath());
+        JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(jar)));
+        try {
+            Set<String> added = new HashSet<String>();
+            for (String entry : classPath.split(File.pathSeparator)) {
+                File file = new File(entry.length() == 0 ? "." : entry);
+                if (file.isDirectory()) {
+                    addClasses(out, file, "", added);
+                } else {
+                    result.append(File.pathSeparator).append(entry);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return result.toString();
+    }
+
+    private static void addClasses(JarOutputStream out, File directory, String prefix, Set<String> added)
+        throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                addClasses(out, file, name + "/", added);
+            } else if (name.endsWith(".class") && added.add(name)) {
+                // the first directory on the class path wins, as it would for the class loader
+                out.putNextEntry(new JarEntry(name));
+                Files.copy(file.toPath(), out);
+                out.closeEntry();
+            }
+        }
+    }
+
+    /* What starting the program used to take before the first digit could be shown.
+     */
+    private static void windowPath(File modelFile, File input) throws IOException {
+        if (java.awt.GraphicsEnvironment.isHeadless()) {
+            javax.swing.UIManager.getLookAndFeelDefaults();
+            new BitmapCanvas(PackedBitmap.NUM_ROWS, PackedBitmap.NUM_COLS);
+            new javax.swing.JPanel().add(new javax.swing.JButton("Classify Vector"));
+        } else {
+            new ClassifierWindow().dispose();
+        }
+        Model model = Model.read(modelFile);
+        SampleReader reader = new SampleReader(input);
+        try {
+            reader.next();
+            double[] x = NeuralNetwork.toInput(reader.getImage(), model.getInputDimension());
+            System.out.print(NeuralNetwork.getMax(NeuralNetwork.computeHypothesis(x, model)) + "\n");
+        } finally {
+            reader.close();
+        }
+        System.exit(0);
+    }
+
+    private static List<String> command(String java, String classPath, List<String> main, String... options) {
+        List<String> command = new ArrayList<String>();
+        command.add(java);
+        command.addAll(Arrays.asList(options));
+        command.add("-cp");
+        command.add(classPath);
+        command.addAll(main);
+        return command;
+    }
+
+    private static void row(String name, int runs, List<String> command) throws IOException, InterruptedException {
+        long[] nanos = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            nanos[i] = launch(command);
+        }
+        Arrays.sort(nanos);
+        System.out.print(String.format("%-44s %12.1f %12.1f%n", name, nanos[runs / 2] / 1e6, nanos[0] / 1e6));
+    }
+
+    /* Starts the command and returns the nanoseconds until its first line of output arrived.
+     */
+    private static long launch(List<String> command) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        long start = System.nanoTime();
+        Process process = builder.start();
+        BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line = out.readLine();
+        long nanos = System.nanoTime() - start;
+        while (out.readLine() != null) {
+        }
+        if (process.waitFor() != 0 || line == null) {
+            throw new IOException("No prediction from " + command);
+        }
+        return nanos;
+    }
+
+    private static void writeFirstRecord(File input, File record) throws IOException {
+        SampleReader reader = new SampleReader(input);
+        try {
+            if (!reader.next()) {
+                throw new IOException(input + " holds no records");
+            }
+            String bits = reader.getImage().toString();
+            Writer out = new FileWriter(record);
+            try {
+                out.write(bits + ":" + reader.getLabel() + "\n");
+            } finally {
+                out.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+#!/bin/sh
+# Compiles the classifier into classify.jar and builds classify.jsa, a class data sharing
+# (AppCDS) archive holding the classes the headless command line classifier loads, so that
+#
+#   java -XX:SharedArchiveFile=classify.jsa -cp classify.jar:lib/Jama-1.0.3.jar ClassifierMain model-file input-file
+#
+# starts without loading and verifying them again.  Needs JDK 13 or later.  Class data
+# sharing only accepts jar files on the class path (no directories), the archive is only
+# used with exactly this class path, and it has to be rebuilt after the classes are
+# recompiled; the JVM silently ignores a stale one.
+#
+# Usage: ./build-cds.sh [model-file] [input-file]
+
+set -e
+cd "$(dirname "$0")"
+
+MODEL=${1:-trainedTheta}
+INPUT=${2:-short_training_set.input}
+JAMA=${JAMA:-lib/Jama-1.0.3.jar}
+CLASSPATH=classify.jar:$JAMA
+ARCHIVE=classify.jsa
+
+BUILD=$(mktemp -d)
+trap 'rm -rf "$BUILD"' EXIT
+javac -cp "$JAMA" -d "$BUILD" *.java
+jar cf classify.jar -C "$BUILD" .
+
+# the first run converts a text model into its mapped copy; the second one only does what
+# every later run will do, and that is what gets archived
+java -cp "$CLASSPATH" ClassifierMain "$MODEL" "$INPUT" > /dev/null
+java -XX:ArchiveClassesAtExit="$ARCHIVE" -cp "$CLASSPATH" ClassifierMain "$MODEL" "$INPUT" > /dev/null
+
+echo "Wrote $ARCHIVE.  Run with:"
+echo "  java -XX:SharedArchiveFile=$ARCHIVE -XX:TieredStopAtLevel=1 -cp $CLASSPATH ClassifierMain $MODEL [input-file | -]"